@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A pool of mutable bitmaps that are no longer displayed, so that their pixel buffers can be
+ * reused by later decodes through {@link android.graphics.BitmapFactory.Options#inBitmap}.
+ * <p>
+ * Bitmaps are grouped by allocation size. A request is served by the smallest pooled bitmap
+ * that is big enough, as long as it does not waste more than half of its memory. When the
+ * pool is full, the bitmaps that were added first are dropped.
+ * <p>
+ * Only bitmaps that are guaranteed not to be drawn any more may be added to the pool.
+ */
+class ContactPhotoBitmapPool {
+    /**
+     * A pooled bitmap may be at most this many times bigger than the request it is used for.
+     */
+    private static final int MAX_SIZE_MULTIPLE = 2;
+
+    private final int mMaxBytes;
+
+    /** Pooled bitmaps by allocation byte count. */
+    private final TreeMap<Integer, ArrayDeque<Bitmap>> mBitmaps = new TreeMap<>();
+
+    /** All pooled bitmaps, in the order they were added. */
+    private final ArrayDeque<Bitmap> mInsertionOrder = new ArrayDeque<>();
+
+    private int mSizeBytes;
+    private int mHitCount;
+    private int mMissCount;
+    private long mBytesReused;
+
+    ContactPhotoBitmapPool(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns a bitmap whose pixel buffer can hold at least {@code byteCount} bytes, or null if
+     * there is none. The returned bitmap is removed from the pool.
+     */
+    synchronized Bitmap get(int byteCount) {
+        if (byteCount <= 0) {
+            return null;
+        }
+        final Map.Entry<Integer, ArrayDeque<Bitmap>> entry = mBitmaps.ceilingEntry(byteCount);
+        if (entry == null || entry.getKey() > byteCount * MAX_SIZE_MULTIPLE) {
+            mMissCount++;
+            return null;
+        }
+        final ArrayDeque<Bitmap> bitmaps = entry.getValue();
+        final Bitmap bitmap = bitmaps.removeLast();
+        if (bitmaps.isEmpty()) {
+            mBitmaps.remove(entry.getKey());
+        }
+        mInsertionOrder.remove(bitmap);
+        mSizeBytes -= entry.getKey();
+        mHitCount++;
+        mBytesReused += byteCount;
+        return bitmap;
+    }
+
+    /**
+     * Adds a bitmap that is no longer in use to the pool. Immutable and recycled bitmaps
+     * cannot be reused and are ignored.
+     */
+    synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || !bitmap.isMutable() || bitmap.isRecycled()) {
+            return;
+        }
+        final int size = bitmap.getAllocationByteCount();
+        if (size > mMaxBytes) {
+            return;
+        }
+        ArrayDeque<Bitmap> bitmaps = mBitmaps.get(size);
+        if (bitmaps == null) {
+            bitmaps = new ArrayDeque<>();
+            mBitmaps.put(size, bitmaps);
+        } else if (bitmaps.contains(bitmap)) {
+            return;
+        }
+        bitmaps.addLast(bitmap);
+        mInsertionOrder.addLast(bitmap);
+        mSizeBytes += size;
+        trimToSize(mMaxBytes);
+    }
+
+    /**
+     * Drops pooled bitmaps until the pool holds at most {@code maxBytes}.
+     */
+    synchronized void trimToSize(int maxBytes) {
+        final Iterator<Bitmap> iterator = mInsertionOrder.iterator();
+        while (mSizeBytes > maxBytes && iterator.hasNext()) {
+            final Bitmap eldest = iterator.next();
+            iterator.remove();
+            final int size = eldest.getAllocationByteCount();
+            final ArrayDeque<Bitmap> bitmaps = mBitmaps.get(size);
+            if (bitmaps != null) {
+                bitmaps.remove(eldest);
+                if (bitmaps.isEmpty()) {
+                    mBitmaps.remove(size);
+                }
+            }
+            mSizeBytes -= size;
+        }
+    }
+
+    synchronized void clear() {
+        trimToSize(0);
+    }
+
+    synchronized int getSizeBytes() {
+        return mSizeBytes;
+    }
+
+    synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    synchronized long getBytesReused() {
+        return mBytesReused;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final int requests = mHitCount + mMissCount;
+        return "BitmapPool[" + mInsertionOrder.size() + " bitmaps, " + mSizeBytes + "/"
+                + mMaxBytes + " bytes, hits=" + mHitCount + " misses=" + mMissCount
+                + " hitRate=" + (requests == 0 ? 0 : 100 * mHitCount / requests)
+                + "% reused=" + mBytesReused + " bytes]";
+    }
+}
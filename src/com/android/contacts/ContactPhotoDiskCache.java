@@ -0,0 +1,508 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.util.Log;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Size-bounded on-disk cache of contact thumbnails. It sits between the in-memory caches of
+ * {@link ContactPhotoManagerImpl} and the contacts provider so that thumbnails survive process
+ * death and trim-memory events.
+ * <p>
+ * Thumbnails are appended to a single blob file which is memory-mapped for reading. Lookups
+ * return a read-only slice of the mapping, so a cached thumbnail can be decoded without
+ * copying it onto the Java heap first. The file is grown ahead of the records in doubling
+ * steps and mapped as a whole, so that appends are mapped a few times in all rather than once
+ * each; the zeroed space past the last record is not a record and is dropped when the file is
+ * opened again. Removals append a tombstone; once the file outgrows its
+ * budget, the most recently used entries are copied to a fresh file. Slices handed out earlier
+ * stay valid, because a mapping outlives the file it was created from.
+ * <p>
+ * Entries are keyed by photo id and remember the data version and photo file id of the row
+ * they were read from, so that a changed photo can be detected with a cheap query that does
+ * not fetch the blob. Entries also store the smaller extent of the image so that it does not
+ * have to be recomputed when the thumbnail is read back.
+ * <p>
+ * This class is meant to be used from the photo loader thread only; the methods are
+ * synchronized merely to keep the stats and the index consistent for debug dumps.
+ */
+class ContactPhotoDiskCache {
+    private static final String TAG = "ContactPhotoDiskCache";
+
+    private static final String BLOB_FILE_NAME = "thumbnails.blob";
+    private static final String COMPACT_FILE_NAME = "thumbnails.blob.new";
+
+    /** Marks the start of a record; changing the format requires a new value. */
+    private static final int MAGIC = 0x43505402;
+
+    /** Record length that marks the removal of an earlier record for the same photo id. */
+    private static final int TOMBSTONE = -1;
+
+    /** Size of a record header: magic, photo id, data version, photo file id, extent, length. */
+    private static final int HEADER_BYTES = 4 + 8 + 8 + 8 + 4 + 4;
+
+    /**
+     * Thumbnails bigger than this are not worth a disk entry; they would push out many
+     * regular sized thumbnails.
+     */
+    private static final int MAX_ENTRY_BYTES = 64 * 1024;
+
+    /** Size of the first mapping of the blob file; later ones double it. */
+    private static final int MIN_MAPPING_BYTES = 256 * 1024;
+
+    /**
+     * A thumbnail read back from disk. {@link #buffer} is a read-only slice of the mapped blob
+     * file.
+     */
+    static final class Entry {
+        final long photoId;
+        final long dataVersion;
+        final long photoFileId;
+        final int originalSmallerExtent;
+        final ByteBuffer buffer;
+
+        Entry(long photoId, long dataVersion, long photoFileId, int originalSmallerExtent,
+                ByteBuffer buffer) {
+            this.photoId = photoId;
+            this.dataVersion = dataVersion;
+            this.photoFileId = photoFileId;
+            this.originalSmallerExtent = originalSmallerExtent;
+            this.buffer = buffer;
+        }
+    }
+
+    /** Location of a live record in the blob file. */
+    private static final class Record {
+        final int offset;
+        final int length;
+        final long dataVersion;
+        final long photoFileId;
+        final int originalSmallerExtent;
+
+        Record(int offset, int length, long dataVersion, long photoFileId,
+                int originalSmallerExtent) {
+            this.offset = offset;
+            this.length = length;
+            this.dataVersion = dataVersion;
+            this.photoFileId = photoFileId;
+            this.originalSmallerExtent = originalSmallerExtent;
+        }
+    }
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+
+    /** Photo id to record, in least recently used order. Loaded lazily. */
+    private final LinkedHashMap<Long, Record> mIndex = new LinkedHashMap<>(0, 0.75f, true);
+    private boolean mOpened;
+    private RandomAccessFile mFile;
+    private FileChannel mChannel;
+    private MappedByteBuffer mMapped;
+    private long mFileLength;
+    private long mLiveBytes;
+
+    private final AtomicInteger mHitCount = new AtomicInteger();
+    private final AtomicInteger mMissCount = new AtomicInteger();
+    private final AtomicInteger mInvalidatedCount = new AtomicInteger();
+    private final AtomicInteger mCompactionCount = new AtomicInteger();
+    private final AtomicInteger mMappingCount = new AtomicInteger();
+
+    ContactPhotoDiskCache(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the cached thumbnail for the given photo id or null if there is none.
+     */
+    synchronized Entry get(long photoId) {
+        ensureOpened();
+        final Record record = mIndex.get(photoId);
+        if (record == null) {
+            mMissCount.incrementAndGet();
+            return null;
+        }
+        try {
+            final Entry entry = toEntry(photoId, record);
+            mHitCount.incrementAndGet();
+            return entry;
+        } catch (IOException e) {
+            // Keep the record; mapping it may work again later, e.g. once memory frees up
+            Log.w(TAG, "Unable to map thumbnail " + photoId, e);
+            mMissCount.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Appends a thumbnail to the blob file, compacting the file if it grows past its budget.
+     *
+     * @return the stored entry, or null if the thumbnail was not stored
+     */
+    synchronized Entry put(long photoId, long dataVersion, long photoFileId,
+            int originalSmallerExtent, byte[] bytes) {
+        if (bytes == null || bytes.length == 0 || bytes.length > MAX_ENTRY_BYTES) {
+            remove(photoId);
+            return null;
+        }
+        ensureOpened();
+        if (mChannel == null) {
+            return null;
+        }
+        try {
+            final int offset = append(photoId, dataVersion, photoFileId, originalSmallerExtent,
+                    bytes);
+            final Record record = new Record(offset, bytes.length, dataVersion, photoFileId,
+                    originalSmallerExtent);
+            final Record previous = mIndex.put(photoId, record);
+            if (previous != null) {
+                mLiveBytes -= HEADER_BYTES + previous.length;
+            }
+            mLiveBytes += HEADER_BYTES + bytes.length;
+            if (mFileLength > mMaxBytes) {
+                compact();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write thumbnail " + photoId, e);
+            reset();
+            return null;
+        }
+        final Record current = mIndex.get(photoId);
+        if (current == null) {
+            return null;
+        }
+        try {
+            return toEntry(photoId, current);
+        } catch (IOException e) {
+            // The record was written; mapping it may work again later, e.g. once memory frees up
+            Log.w(TAG, "Unable to map thumbnail " + photoId, e);
+            return new Entry(photoId, dataVersion, photoFileId, originalSmallerExtent,
+                    ByteBuffer.wrap(bytes).asReadOnlyBuffer());
+        }
+    }
+
+    /**
+     * Drops the entry for the given photo id, e.g. because the photo was changed or removed.
+     */
+    synchronized void remove(long photoId) {
+        ensureOpened();
+        final Record record = mIndex.remove(photoId);
+        if (record == null) {
+            return;
+        }
+        mInvalidatedCount.incrementAndGet();
+        mLiveBytes -= HEADER_BYTES + record.length;
+        try {
+            append(photoId, 0, 0, 0, null);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to remove thumbnail " + photoId, e);
+            reset();
+        }
+    }
+
+    /**
+     * Returns true if the cached entry still describes the given provider row.
+     */
+    static boolean isCurrent(Entry entry, long dataVersion, long photoFileId) {
+        return entry.dataVersion == dataVersion && entry.photoFileId == photoFileId;
+    }
+
+    int getHitCount() {
+        return mHitCount.get();
+    }
+
+    int getMissCount() {
+        return mMissCount.get();
+    }
+
+    @VisibleForTesting
+    synchronized long getSizeBytes() {
+        ensureOpened();
+        return mLiveBytes;
+    }
+
+    @VisibleForTesting
+    synchronized long getFileLength() {
+        ensureOpened();
+        return mFileLength;
+    }
+
+    @VisibleForTesting
+    int getMappingCount() {
+        return mMappingCount.get();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DiskCache[" + mIndex.size() + " entries, " + mLiveBytes + "/" + mFileLength
+                + "/" + mMaxBytes + " bytes, hits=" + mHitCount.get()
+                + " misses=" + mMissCount.get() + " invalidated=" + mInvalidatedCount.get()
+                + " compactions=" + mCompactionCount.get()
+                + " mappings=" + mMappingCount.get() + "]";
+    }
+
+    private Entry toEntry(long photoId, Record record) throws IOException {
+        final int end = record.offset + record.length;
+        if (mMapped == null || mMapped.capacity() < end) {
+            // The file grew past the mapping. Slices of the old mapping stay valid.
+            map(end);
+        }
+        final ByteBuffer slice = mMapped.duplicate();
+        slice.limit(end);
+        slice.position(record.offset);
+        return new Entry(photoId, record.dataVersion, record.photoFileId,
+                record.originalSmallerExtent, slice.slice());
+    }
+
+    /**
+     * Maps the blob file, first growing it to at least twice the size of the current mapping
+     * and at least {@code minBytes}, so that the records appended next fit the new mapping.
+     */
+    private void map(long minBytes) throws IOException {
+        long capacity = mMapped == null ? MIN_MAPPING_BYTES : 2L * mMapped.capacity();
+        while (capacity < minBytes) {
+            capacity *= 2;
+        }
+        // The file never grows much past its budget before it is compacted
+        capacity = Math.max(minBytes,
+                Math.min(capacity, mMaxBytes + HEADER_BYTES + MAX_ENTRY_BYTES));
+        if (mChannel.size() < capacity) {
+            mFile.setLength(capacity);
+        }
+        mMapped = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, capacity);
+        mMappingCount.incrementAndGet();
+    }
+
+    /**
+     * Appends a record at the end of the blob file. A null {@code bytes} writes a tombstone.
+     *
+     * @return the offset of the thumbnail bytes in the file
+     */
+    private int append(long photoId, long dataVersion, long photoFileId,
+            int originalSmallerExtent, byte[] bytes) throws IOException {
+        final int length = bytes == null ? 0 : bytes.length;
+        final ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + length);
+        record.putInt(MAGIC);
+        record.putLong(photoId);
+        record.putLong(dataVersion);
+        record.putLong(photoFileId);
+        record.putInt(originalSmallerExtent);
+        record.putInt(bytes == null ? TOMBSTONE : length);
+        if (bytes != null) {
+            record.put(bytes);
+        }
+        record.flip();
+        final long position = mFileLength;
+        while (record.hasRemaining()) {
+            mChannel.write(record, position + record.position());
+        }
+        mFileLength += HEADER_BYTES + length;
+        return (int) (position + HEADER_BYTES);
+    }
+
+    /**
+     * Copies the most recently used records into a new blob file that fills at most three
+     * quarters of the budget, and replaces the current file with it.
+     */
+    private void compact() throws IOException {
+        mCompactionCount.incrementAndGet();
+        final long budget = mMaxBytes * 3 / 4;
+
+        // Walk from the most recently used end and keep what fits.
+        final List<Map.Entry<Long, Record>> kept = Lists.newArrayList();
+        final List<Map.Entry<Long, Record>> all = Lists.newArrayList(mIndex.entrySet());
+        long keptBytes = 0;
+        for (int i = all.size() - 1; i >= 0; i--) {
+            final long size = HEADER_BYTES + all.get(i).getValue().length;
+            if (keptBytes + size > budget) {
+                break;
+            }
+            keptBytes += size;
+            kept.add(0, all.get(i));
+        }
+
+        final File compactFile = new File(mDirectory, COMPACT_FILE_NAME);
+        compactFile.delete();
+        final RandomAccessFile newFile = new RandomAccessFile(compactFile, "rw");
+        final FileChannel newChannel = newFile.getChannel();
+        final LinkedHashMap<Long, Record> newIndex = new LinkedHashMap<>(0, 0.75f, true);
+        long position = 0;
+        try {
+            for (Map.Entry<Long, Record> entry : kept) {
+                final Record record = entry.getValue();
+                final long headerStart = record.offset - HEADER_BYTES;
+                final long size = HEADER_BYTES + record.length;
+                long copied = 0;
+                while (copied < size) {
+                    copied += mChannel.transferTo(headerStart + copied, size - copied,
+                            newChannel);
+                }
+                newIndex.put(entry.getKey(), new Record((int) position + HEADER_BYTES,
+                        record.length, record.dataVersion, record.photoFileId,
+                        record.originalSmallerExtent));
+                position += size;
+            }
+            newChannel.force(false);
+        } catch (IOException e) {
+            newFile.close();
+            compactFile.delete();
+            throw e;
+        }
+        if (!compactFile.renameTo(new File(mDirectory, BLOB_FILE_NAME))) {
+            newFile.close();
+            compactFile.delete();
+            throw new IOException("Unable to replace blob file");
+        }
+
+        closeQuietly();
+        mFile = newFile;
+        mChannel = newChannel;
+        mMapped = null;
+        mFileLength = position;
+        mLiveBytes = keptBytes;
+        mIndex.clear();
+        mIndex.putAll(newIndex);
+    }
+
+    private void ensureOpened() {
+        if (mOpened) {
+            return;
+        }
+        mOpened = true;
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "Unable to create " + mDirectory);
+            return;
+        }
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!BLOB_FILE_NAME.equals(file.getName())) {
+                    // Leftovers of an interrupted compaction or of an older format.
+                    file.delete();
+                }
+            }
+        }
+        try {
+            mFile = new RandomAccessFile(new File(mDirectory, BLOB_FILE_NAME), "rw");
+            mChannel = mFile.getChannel();
+            mFileLength = mChannel.size();
+            readIndex();
+            if (mFileLength > mMaxBytes) {
+                compact();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to open thumbnail cache", e);
+            reset();
+        }
+    }
+
+    /**
+     * Rebuilds the index by scanning the records of the blob file. A torn record at the end,
+     * left behind by a process that died while writing, is truncated, as is the zeroed space
+     * the file was grown by.
+     */
+    private void readIndex() throws IOException {
+        mIndex.clear();
+        mLiveBytes = 0;
+        if (mFileLength == 0) {
+            return;
+        }
+        mMapped = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, mFileLength);
+        mMappingCount.incrementAndGet();
+        int position = 0;
+        boolean torn = false;
+        while (position + HEADER_BYTES <= mFileLength) {
+            mMapped.position(position);
+            final int magic = mMapped.getInt();
+            if (magic != MAGIC) {
+                // Zeroes are the space the file was grown by ahead of the records
+                torn = magic != 0;
+                break;
+            }
+            final long photoId = mMapped.getLong();
+            final long dataVersion = mMapped.getLong();
+            final long photoFileId = mMapped.getLong();
+            final int originalSmallerExtent = mMapped.getInt();
+            final int length = mMapped.getInt();
+
+            final Record previous;
+            if (length == TOMBSTONE) {
+                previous = mIndex.remove(photoId);
+                position += HEADER_BYTES;
+            } else {
+                if (length < 0 || length > MAX_ENTRY_BYTES
+                        || position + HEADER_BYTES + length > mFileLength) {
+                    torn = true;
+                    break;
+                }
+                previous = mIndex.put(photoId, new Record(position + HEADER_BYTES, length,
+                        dataVersion, photoFileId, originalSmallerExtent));
+                mLiveBytes += HEADER_BYTES + length;
+                position += HEADER_BYTES + length;
+            }
+            if (previous != null) {
+                mLiveBytes -= HEADER_BYTES + previous.length;
+            }
+        }
+        if (position < mFileLength) {
+            if (torn) {
+                Log.w(TAG, "Truncating thumbnail cache at " + position + "/" + mFileLength);
+            }
+            mChannel.truncate(position);
+            mFileLength = position;
+            mMapped = null;
+        }
+    }
+
+    /**
+     * Drops all cached thumbnails after an I/O error, so that a broken file is not read again.
+     */
+    private void reset() {
+        closeQuietly();
+        mFile = null;
+        mChannel = null;
+        mMapped = null;
+        mFileLength = 0;
+        mLiveBytes = 0;
+        mIndex.clear();
+        new File(mDirectory, BLOB_FILE_NAME).delete();
+    }
+
+    private void closeQuietly() {
+        if (mFile != null) {
+            try {
+                mFile.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
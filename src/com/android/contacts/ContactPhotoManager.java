@@ -25,10 +25,12 @@ import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Paint.Style;
+import android.graphics.Shader;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
@@ -40,6 +42,7 @@ import android.net.Uri.Builder;
 import android.os.Handler;
 import android.os.Handler.Callback;
 import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Message;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Contacts;
@@ -57,6 +60,7 @@ import android.widget.ImageView;
 
 import com.android.contacts.lettertiles.LetterTileDrawable;
 import com.android.contacts.util.BitmapUtil;
+import com.android.contacts.util.LatencyHistogram;
 import com.android.contacts.util.PermissionsUtil;
 import com.android.contacts.util.TrafficStatsTags;
 import com.android.contacts.util.UriUtils;
@@ -64,21 +68,36 @@ import com.android.contactsbind.util.UserAgentGenerator;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
 import java.lang.ref.Reference;
 import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Asynchronously loads contact photos and maintains a cache of photos.
@@ -564,6 +583,22 @@ public abstract class ContactPhotoManager implements ComponentCallbacks2 {
      */
     public abstract void preloadPhotosInBackground();
 
+    /**
+     * Prints the state of the caches and the latencies of photo loading, e.g. for dumpsys.
+     */
+    public abstract void dump(String prefix, PrintWriter writer);
+
+    /**
+     * Loads the thumbnails with the given photo ids into cache ahead of time, e.g. for the list
+     * rows that are about to be scrolled into view. Replaces the photo ids of any earlier
+     * prefetch request that has not been processed yet. Prefetching continues while loading
+     * is paused.
+     *
+     * @param photoIds Photo ids in the order they are needed
+     * @param count Number of valid entries in {@code photoIds}
+     */
+    public abstract void prefetchThumbnails(long[] photoIds, int count);
+
     // ComponentCallbacks2
     @Override
     public void onConfigurationChanged(Configuration newConfig) {
@@ -582,6 +617,40 @@ public abstract class ContactPhotoManager implements ComponentCallbacks2 {
 
 class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     private static final String LOADER_THREAD_NAME = "ContactPhotoLoader";
+    private static final String URI_LOADER_THREAD_NAME = "ContactPhotoUriLoader";
+    private static final String DECODER_THREAD_NAME = "ContactPhotoDecoder";
+
+    /**
+     * Photos are loaded in three lanes, in this order of priority:
+     * <ul>
+     * <li>{@link #LANE_VISIBLE}: photos of views that are on screen now. Thumbnails are read
+     * by the {@link LoaderThread}, photos referenced by URI by {@link #mUriLoadExecutor}.</li>
+     * <li>{@link #LANE_HI_RES}: large photos referenced by URI, e.g. in QuickContact or the
+     * editor. They are started on {@link #mUriLoadExecutor} after the visible photos.</li>
+     * <li>Speculative loads: thumbnails that are prefetched or preloaded by the
+     * {@link LoaderThread}, which always yields to visible thumbnails first.</li>
+     * </ul>
+     */
+    private static final int LANE_VISIBLE = 0;
+    private static final int LANE_HI_RES = 1;
+
+    /**
+     * Number of photos loaded by URI at the same time, so that e.g. the remote photos of a
+     * page of directory search results load in parallel, and one slow URI does not hold up
+     * the others.
+     */
+    private static final int MAX_URI_LOADS_IN_FLIGHT = 6;
+
+    /**
+     * Number of photos loaded at the same time from one content provider or host, so that
+     * one slow source cannot take up all of {@link #MAX_URI_LOADS_IN_FLIGHT}.
+     */
+    private static final int MAX_URI_LOADS_PER_AUTHORITY = 4;
+
+    /** Time after which idle URI loading and decoding threads are stopped. */
+    private static final int WORKER_KEEP_ALIVE_SECONDS = 10;
+
+    private static final int URI_LOADER_BUFFER_SIZE = 1024 * 16;
 
     private static final int FADE_TRANSITION_DURATION = 200;
 
@@ -599,7 +668,19 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
     private static final String[] EMPTY_STRING_ARRAY = new String[0];
 
-    private static final String[] COLUMNS = new String[] { Photo._ID, Photo.PHOTO };
+    private static final String[] COLUMNS = new String[] { Photo._ID, Photo.PHOTO,
+            Data.DATA_VERSION, ContactsContract.CommonDataKinds.Photo.PHOTO_FILE_ID };
+    private static final int COLUMN_ID = 0;
+    private static final int COLUMN_PHOTO = 1;
+    private static final int COLUMN_DATA_VERSION = 2;
+    private static final int COLUMN_PHOTO_FILE_ID = 3;
+
+    /**
+     * Columns used to check whether thumbnails in {@link #mDiskCache} are still current,
+     * without reading the photo blobs.
+     */
+    private static final String[] VERSION_COLUMNS = new String[] { Photo._ID,
+            Data.DATA_VERSION, ContactsContract.CommonDataKinds.Photo.PHOTO_FILE_ID };
 
     /**
      * Placeholder object used to indicate that a bitmap for a given key could not
@@ -612,11 +693,22 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         BITMAP_UNAVAILABLE.bitmapRef = new SoftReference<Bitmap>(null);
     }
 
+    /**
+     * Size accounted in {@link #mBitmapHolderCache} for a holder whose bytes live in the
+     * memory-mapped {@link #mDiskCache} rather than on the Java heap.
+     */
+    private static final int MAPPED_HOLDER_SIZE = 256;
+
     /**
      * Maintains the state of a particular photo.
      */
     private static class BitmapHolder {
         final byte[] bytes;
+        /**
+         * Slice of the memory-mapped disk cache holding the photo. Used instead of
+         * {@link #bytes} for thumbnails, so that they do not take up space on the Java heap.
+         */
+        final ByteBuffer buffer;
         final int originalSmallerExtent;
 
         volatile boolean fresh;
@@ -626,9 +718,41 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
         public BitmapHolder(byte[] bytes, int originalSmallerExtent) {
             this.bytes = bytes;
+            this.buffer = null;
             this.fresh = true;
             this.originalSmallerExtent = originalSmallerExtent;
         }
+
+        public BitmapHolder(ByteBuffer buffer, int originalSmallerExtent) {
+            this.bytes = null;
+            this.buffer = buffer;
+            this.fresh = true;
+            this.originalSmallerExtent = originalSmallerExtent;
+        }
+
+        /**
+         * Returns false if loading the photo failed. Note that a holder for a photo that
+         * successfully turned out to be empty does have data.
+         */
+        boolean hasData() {
+            return bytes != null || buffer != null;
+        }
+
+        /** Returns the size of the compressed photo. */
+        int getByteCount() {
+            if (bytes != null) {
+                return bytes.length;
+            }
+            return buffer != null ? buffer.remaining() : 0;
+        }
+
+        /** Returns the number of bytes this holder keeps on the Java heap. */
+        int getHeapByteCount() {
+            if (bytes != null) {
+                return bytes.length;
+            }
+            return buffer != null ? MAPPED_HOLDER_SIZE : 0;
+        }
     }
 
     private final Context mContext;
@@ -646,9 +770,35 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     private volatile boolean mBitmapHolderCacheAllUnfresh = true;
 
     /**
-     * Cache size threshold at which bitmaps will not be preloaded.
+     * Initial sizes of {@link #mBitmapHolderCache} and {@link #mBitmapCache}, scaled to the
+     * memory class of the device. The caches grow beyond these while their hit rates are low,
+     * see {@link #adaptCacheSizes()}.
      */
-    private final int mBitmapHolderCacheRedZoneBytes;
+    private final int mBaseHolderCacheSize;
+    private final int mBaseBitmapCacheSize;
+
+    /**
+     * Photos displayed by {@link #loadCachedPhoto} whose bitmap was still in memory, and those
+     * that had to be decoded again. Only accessed on the UI thread.
+     */
+    private int mBitmapHitCount;
+    private int mBitmapMissCount;
+
+    /**
+     * Lookups of {@link #mBitmapHolderCache} by {@link #prefetchThumbnails}, which the cache
+     * counts as hits and misses like any other. They are not photos that were displayed, so
+     * {@link #adaptCacheSizes()} leaves them out. Only accessed on the UI thread.
+     */
+    private int mPrefetchHolderHitCount;
+    private int mPrefetchHolderMissCount;
+
+    /** Counts at the time of the last {@link #adaptCacheSizes()}. */
+    private int mLastHolderHitCount;
+    private int mLastHolderMissCount;
+    private int mLastHolderEvictionCount;
+    private int mLastBitmapHitCount;
+    private int mLastBitmapMissCount;
+    private int mLastBitmapEvictionCount;
 
     /**
      * Level 2 LRU cache for bitmaps. This is a smaller cache that holds
@@ -657,6 +807,40 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      */
     private final LruCache<Object, Bitmap> mBitmapCache;
 
+    /**
+     * Level 3 cache that keeps thumbnails on disk, so that they do not have to be read from
+     * the provider again after process death or after the memory caches were trimmed.
+     */
+    private final ContactPhotoDiskCache mDiskCache;
+
+    /**
+     * Circular copies of the photos that are displayed as circles, by cache key. Drawing a
+     * copy is a plain blit, while a {@link RoundedBitmapDrawable} clips the photo on every
+     * draw. Only accessed on the UI thread.
+     */
+    private final LruCache<Object, CircularBitmap> mCircularBitmapCache;
+
+    /**
+     * Bitmaps that dropped out of {@link #mBitmapCache} and are not displayed any more. Their
+     * pixel buffers are reused when decoding other photos.
+     */
+    private final ContactPhotoBitmapPool mBitmapPool;
+
+    /**
+     * Bitmaps decoded by {@link #inflateBitmap}, mapped to the holder that refers to them.
+     * Only these bitmaps may be added to {@link #mBitmapPool}; bitmaps passed in by
+     * {@link #cacheBitmap(Uri, Bitmap, byte[])} may still be used by the caller.
+     */
+    private final Map<Bitmap, WeakReference<BitmapHolder>> mPoolableBitmaps =
+            Collections.synchronizedMap(new WeakHashMap<Bitmap, WeakReference<BitmapHolder>>());
+
+    /**
+     * The bitmap that is currently displayed by each view that this manager has set a photo
+     * on. A bitmap that is still displayed must not be added to {@link #mBitmapPool}. Only
+     * accessed on the UI thread.
+     */
+    private final WeakHashMap<ImageView, Bitmap> mBoundBitmaps = new WeakHashMap<>();
+
     /**
      * A map from ImageView to the corresponding photo ID or uri, encapsulated in a request.
      * The request may swapped out before the photo loading request is started.
@@ -664,6 +848,49 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     private final ConcurrentHashMap<ImageView, Request> mPendingRequests =
             new ConcurrentHashMap<ImageView, Request>();
 
+    /**
+     * Loads photos referenced by URI. Loads wait in {@link #mQueuedUriLoads} until they can
+     * be started within the limits on loads in flight, see {@link #startUriLoads()}.
+     */
+    private final ThreadPoolExecutor mUriLoadExecutor;
+
+    /**
+     * URI loads that have not been started, visible ones first. See {@link #LANE_VISIBLE}.
+     * Also guards {@link #mUriLoadsPerAuthority} and {@link #mRunningUriLoadCount}.
+     */
+    private final TreeSet<UriLoadTask> mQueuedUriLoads = new TreeSet<UriLoadTask>();
+
+    /** Number of running URI loads by authority. */
+    private final Map<String, Integer> mUriLoadsPerAuthority = Maps.newHashMap();
+
+    private int mRunningUriLoadCount;
+
+    /**
+     * Photos that are queued or being loaded by {@link #mUriLoadExecutor}, by cache key. Used
+     * to load each photo only once, and to cancel loads that are no longer needed.
+     */
+    private final ConcurrentHashMap<Object, UriLoadTask> mUriLoadsInFlight =
+            new ConcurrentHashMap<Object, UriLoadTask>();
+
+    /** Keeps URI loads in the same lane in the order they were requested. */
+    private final AtomicLong mUriLoadSequence = new AtomicLong();
+
+    /**
+     * Decodes the thumbnails of a batch loaded by the {@link LoaderThread} in parallel, before
+     * the UI thread is told that they are ready. Photos are never decoded on the UI thread.
+     */
+    private final ThreadPoolExecutor mDecodeExecutor;
+
+    /** Latencies of the different kinds of photo loads, see {@link #dump}. */
+    private final LoadLatencies mThumbnailLatencies = new LoadLatencies();
+    private final LoadLatencies mUriLatencies = new LoadLatencies();
+    private final LoadLatencies mPreloadLatencies = new LoadLatencies();
+
+    /** Stats for {@link #inflateBitmap}. */
+    private final AtomicInteger mDecodeCount = new AtomicInteger();
+    private final AtomicLong mDecodeTimeNanos = new AtomicLong();
+    private final AtomicInteger mUiThreadDecodeCount = new AtomicInteger();
+
     /**
      * Handler for messages sent to the UI thread.
      */
@@ -691,6 +918,38 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     /** Cache size for {@link #mBitmapCache} for devices with "large" RAM. */
     private static final int BITMAP_CACHE_SIZE = 36864 * 48; // 1728K
 
+    /** Memory class in MB for which the cache sizes above are tuned. */
+    private static final int REFERENCE_MEMORY_CLASS = 128;
+
+    /** Limits of the adjustment of cache sizes to the memory class. */
+    private static final float MIN_CACHE_SIZE_ADJUSTMENT = 0.5f;
+    private static final float MAX_CACHE_SIZE_ADJUSTMENT = 2.0f;
+
+    /**
+     * Limit on how much {@link #adaptCacheSizes()} grows a cache over its initial size, and
+     * the factor by which a cache is grown or shrunk at a time.
+     */
+    private static final float MAX_CACHE_GROWTH = 2.0f;
+    private static final float CACHE_GROWTH_STEP = 1.25f;
+
+    /** Number of photos displayed between two runs of {@link #adaptCacheSizes()}. */
+    private static final int CACHE_ADAPT_INTERVAL = 200;
+
+    /** A cache whose hit rate is below this percentage grows if it has evicted entries. */
+    private static final int TARGET_HIT_RATE = 90;
+
+    /** Cache size for {@link #mCircularBitmapCache} for devices with "large" RAM. */
+    private static final int CIRCULAR_BITMAP_CACHE_SIZE = 36864 * 24; // 864K
+
+    /** Maximum size of {@link #mBitmapPool} for devices with "large" RAM. */
+    private static final int BITMAP_POOL_SIZE = 36864 * 24; // 864K
+
+    /** Cache size for {@link #mDiskCache} for devices with "large" RAM. */
+    private static final int DISK_CACHE_SIZE = 8 * 1024 * 1024;
+
+    /** Name of the directory in the cache dir that holds {@link #mDiskCache}. */
+    private static final String DISK_CACHE_DIRECTORY = "contact_thumbnails";
+
     /** Height/width of a thumbnail image */
     private static int mThumbnailSize;
 
@@ -711,23 +970,35 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         final ActivityManager am = ((ActivityManager) context.getSystemService(
                 Context.ACTIVITY_SERVICE));
 
-        final float cacheSizeAdjustment = (am.isLowRamDevice()) ? 0.5f : 1.0f;
+        final float cacheSizeAdjustment = am.isLowRamDevice() ? MIN_CACHE_SIZE_ADJUSTMENT
+                : Math.max(MIN_CACHE_SIZE_ADJUSTMENT, Math.min(MAX_CACHE_SIZE_ADJUSTMENT,
+                        (float) am.getMemoryClass() / REFERENCE_MEMORY_CLASS));
 
-        final int bitmapCacheSize = (int) (cacheSizeAdjustment * BITMAP_CACHE_SIZE);
-        mBitmapCache = new LruCache<Object, Bitmap>(bitmapCacheSize) {
+        mBaseBitmapCacheSize = (int) (cacheSizeAdjustment * BITMAP_CACHE_SIZE);
+        mBitmapCache = new LruCache<Object, Bitmap>(mBaseBitmapCacheSize) {
             @Override protected int sizeOf(Object key, Bitmap value) {
                 return value.getByteCount();
             }
 
             @Override protected void entryRemoved(
                     boolean evicted, Object key, Bitmap oldValue, Bitmap newValue) {
+                if (oldValue != newValue) {
+                    recycleBitmap(oldValue);
+                }
                 if (DEBUG) dumpStats();
             }
         };
-        final int holderCacheSize = (int) (cacheSizeAdjustment * HOLDER_CACHE_SIZE);
-        mBitmapHolderCache = new LruCache<Object, BitmapHolder>(holderCacheSize) {
+        mBitmapPool = new ContactPhotoBitmapPool((int) (cacheSizeAdjustment * BITMAP_POOL_SIZE));
+        mCircularBitmapCache = new LruCache<Object, CircularBitmap>(
+                (int) (cacheSizeAdjustment * CIRCULAR_BITMAP_CACHE_SIZE)) {
+            @Override protected int sizeOf(Object key, CircularBitmap value) {
+                return value.bitmap.getByteCount();
+            }
+        };
+        mBaseHolderCacheSize = (int) (cacheSizeAdjustment * HOLDER_CACHE_SIZE);
+        mBitmapHolderCache = new LruCache<Object, BitmapHolder>(mBaseHolderCacheSize) {
             @Override protected int sizeOf(Object key, BitmapHolder value) {
-                return value.bytes != null ? value.bytes.length : 0;
+                return value.getHeapByteCount();
             }
 
             @Override protected void entryRemoved(
@@ -735,7 +1006,9 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 if (DEBUG) dumpStats();
             }
         };
-        mBitmapHolderCacheRedZoneBytes = (int) (holderCacheSize * 0.75);
+        mDiskCache = new ContactPhotoDiskCache(
+                new File(context.getCacheDir(), DISK_CACHE_DIRECTORY),
+                (long) (cacheSizeAdjustment * DISK_CACHE_SIZE));
         Log.i(TAG, "Cache adj: " + cacheSizeAdjustment);
         if (DEBUG) {
             Log.d(TAG, "Cache size: " + btk(mBitmapHolderCache.maxSize())
@@ -745,6 +1018,17 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         mThumbnailSize = context.getResources().getDimensionPixelSize(
                 R.dimen.contact_browser_list_item_photo_size);
 
+        mUriLoadExecutor = new ThreadPoolExecutor(MAX_URI_LOADS_IN_FLIGHT,
+                MAX_URI_LOADS_IN_FLIGHT, WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), newThreadFactory(URI_LOADER_THREAD_NAME));
+        mUriLoadExecutor.allowCoreThreadTimeOut(true);
+
+        final int decoderThreads = Runtime.getRuntime().availableProcessors();
+        mDecodeExecutor = new ThreadPoolExecutor(decoderThreads, decoderThreads,
+                WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                newThreadFactory(DECODER_THREAD_NAME));
+        mDecodeExecutor.allowCoreThreadTimeOut(true);
+
         // Get a user agent string to use for URI photo requests.
         mUserAgent = UserAgentGenerator.getUserAgent(context);
         if (mUserAgent == null) {
@@ -768,14 +1052,16 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         if (!DEBUG) return;
         {
             int numHolders = 0;
+            int numMappedHolders = 0;
             int rawBytes = 0;
             int bitmapBytes = 0;
             int numBitmaps = 0;
             for (BitmapHolder h : mBitmapHolderCache.snapshot().values()) {
                 numHolders++;
-                if (h.bytes != null) {
-                    rawBytes += h.bytes.length;
+                if (h.buffer != null) {
+                    numMappedHolders++;
                 }
+                rawBytes += h.getByteCount();
                 Bitmap b = h.bitmapRef != null ? h.bitmapRef.get() : null;
                 if (b != null) {
                     numBitmaps++;
@@ -783,8 +1069,8 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 }
             }
             Log.d(TAG, "L1: " + btk(rawBytes) + " + " + btk(bitmapBytes) + " = "
-                    + btk(rawBytes + bitmapBytes) + ", " + numHolders + " holders, "
-                    + numBitmaps + " bitmaps, avg: "
+                    + btk(rawBytes + bitmapBytes) + ", " + numHolders + " holders ("
+                    + numMappedHolders + " mapped), " + numBitmaps + " bitmaps, avg: "
                     + btk(safeDiv(rawBytes, numHolders))
                     + "," + btk(safeDiv(bitmapBytes,numBitmaps)));
             Log.d(TAG, "L1 Stats: " + mBitmapHolderCache.toString()
@@ -803,14 +1089,150 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                     + ", avg: " + btk(safeDiv(bitmapBytes, numBitmaps)));
             // We don't get from L2 cache, so L2 stats is meaningless.
         }
+
+        Log.d(TAG, "Circular: " + mCircularBitmapCache);
+        Log.d(TAG, "Pool: " + mBitmapPool);
+
+        {
+            final int decodes = mDecodeCount.get();
+            Log.d(TAG, "Decodes: " + decodes + ", avg: "
+                    + safeDiv((int) (mDecodeTimeNanos.get() / 1000), decodes) + "us"
+                    + ", on UI thread: " + mUiThreadDecodeCount.get());
+        }
+        synchronized (mQueuedUriLoads) {
+            Log.d(TAG, "URI loads: " + mQueuedUriLoads.size() + " queued, "
+                    + mRunningUriLoadCount + " running " + mUriLoadsPerAuthority);
+        }
+
+        {
+            final int hits = mDiskCache.getHitCount();
+            final int misses = mDiskCache.getMissCount();
+            Log.d(TAG, "L3: " + mDiskCache + ", hit rate: "
+                    + safeDiv(100 * hits, hits + misses) + "%");
+        }
     }
 
+    @Override
+    public void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "ContactPhotoManager:");
+        final String innerPrefix = prefix + "  ";
+        writer.println(innerPrefix + "L1: " + mBitmapHolderCache + ", "
+                + btk(mBitmapHolderCache.size()) + "/" + btk(mBitmapHolderCache.maxSize()));
+        writer.println(innerPrefix + "L2: " + mBitmapCache + ", "
+                + btk(mBitmapCache.size()) + "/" + btk(mBitmapCache.maxSize()));
+        writer.println(innerPrefix + "L3: " + mDiskCache);
+        writer.println(innerPrefix + "Pool: " + mBitmapPool);
+        writer.println(innerPrefix + "Decodes: " + mDecodeCount.get()
+                + ", on UI thread: " + mUiThreadDecodeCount.get());
+        mThumbnailLatencies.dump(innerPrefix, "Thumbnails", writer);
+        mUriLatencies.dump(innerPrefix, "URIs", writer);
+        mPreloadLatencies.dump(innerPrefix, "Preloads and prefetches", writer);
+    }
+
+    /**
+     * Latencies of one kind of photo load.
+     */
+    private static final class LoadLatencies {
+        /** From the request until a background thread starts loading the photo. */
+        final LatencyHistogram queueWait = new LatencyHistogram();
+        /** Reading a batch of thumbnails from the provider, or one photo from its URI. */
+        final LatencyHistogram fetch = new LatencyHistogram();
+        final LatencyHistogram decode = new LatencyHistogram();
+        /** Setting the photo on its view. */
+        final LatencyHistogram apply = new LatencyHistogram();
+        /** From the request until the photo is set on its view. */
+        final LatencyHistogram timeToPixel = new LatencyHistogram();
+
+        void dump(String prefix, String name, PrintWriter writer) {
+            writer.println(prefix + name + ":");
+            writer.println(prefix + "  queue wait:    " + queueWait);
+            writer.println(prefix + "  fetch:         " + fetch);
+            writer.println(prefix + "  decode:        " + decode);
+            writer.println(prefix + "  apply:         " + apply);
+            writer.println(prefix + "  time to pixel: " + timeToPixel);
+        }
+    }
+
+    /**
+     * Cache size threshold at which bitmaps will not be preloaded.
+     */
+    private int getBitmapHolderCacheRedZoneBytes() {
+        return (int) (mBitmapHolderCache.maxSize() * 0.75);
+    }
+
+    /**
+     * Frees memory step by step as the pressure rises. Short of
+     * {@link ComponentCallbacks2#TRIM_MEMORY_COMPLETE} the thumbnail bytes are kept as far as
+     * possible, so that coming back to the app does not have to query all photos again.
+     */
     @Override
     public void onTrimMemory(int level) {
         if (DEBUG) Log.d(TAG, "onTrimMemory: " + level);
-        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
             // Clear the caches.  Note all pending requests will be removed too.
             clear();
+            return;
+        }
+
+        // Anything the caches have grown beyond their initial size goes first
+        mBitmapHolderCache.resize(mBaseHolderCacheSize);
+        mBitmapCache.resize(mBaseBitmapCacheSize);
+        mBitmapPool.clear();
+        mCircularBitmapCache.evictAll();
+
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            mBitmapCache.evictAll();
+            mBitmapHolderCache.trimToSize(mBaseHolderCacheSize / 4);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            mBitmapCache.trimToSize(mBaseBitmapCacheSize / 4);
+            mBitmapHolderCache.trimToSize(mBaseHolderCacheSize / 2);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            // Also covers TRIM_MEMORY_UI_HIDDEN
+            mBitmapCache.trimToSize(mBaseBitmapCacheSize / 2);
+        }
+    }
+
+    /**
+     * Grows a cache while it evicts entries and its hit rate is low, up to
+     * {@link #MAX_CACHE_GROWTH} times its initial size, and shrinks it back towards its
+     * initial size when it does not fill up.
+     */
+    private void adaptCacheSizes() {
+        final int holderHits = mBitmapHolderCache.hitCount() - mPrefetchHolderHitCount;
+        final int holderMisses = mBitmapHolderCache.missCount() - mPrefetchHolderMissCount;
+        final int holderEvictions = mBitmapHolderCache.evictionCount();
+        adaptCacheSize(mBitmapHolderCache, mBaseHolderCacheSize,
+                holderHits - mLastHolderHitCount, holderMisses - mLastHolderMissCount,
+                holderEvictions - mLastHolderEvictionCount);
+        mLastHolderHitCount = holderHits;
+        mLastHolderMissCount = holderMisses;
+        mLastHolderEvictionCount = holderEvictions;
+
+        final int bitmapEvictions = mBitmapCache.evictionCount();
+        adaptCacheSize(mBitmapCache, mBaseBitmapCacheSize,
+                mBitmapHitCount - mLastBitmapHitCount, mBitmapMissCount - mLastBitmapMissCount,
+                bitmapEvictions - mLastBitmapEvictionCount);
+        mLastBitmapHitCount = mBitmapHitCount;
+        mLastBitmapMissCount = mBitmapMissCount;
+        mLastBitmapEvictionCount = bitmapEvictions;
+    }
+
+    private static void adaptCacheSize(LruCache<?, ?> cache, int baseSize, int hits, int misses,
+            int evictions) {
+        final int maxSize = cache.maxSize();
+        final int hitRate = safeDiv(100 * hits, hits + misses);
+        if (evictions > 0 && hitRate < TARGET_HIT_RATE) {
+            final int newSize = (int) Math.min(maxSize * CACHE_GROWTH_STEP,
+                    baseSize * MAX_CACHE_GROWTH);
+            if (newSize > maxSize) {
+                if (DEBUG) Log.d(TAG, "Growing cache to " + btk(newSize) + ", hit rate: "
+                        + hitRate + "%");
+                cache.resize(newSize);
+            }
+        } else if (evictions == 0 && maxSize > baseSize && cache.size() < maxSize / 2) {
+            final int newSize = Math.max(baseSize, (int) (maxSize / CACHE_GROWTH_STEP));
+            if (DEBUG) Log.d(TAG, "Shrinking cache to " + btk(newSize));
+            cache.resize(newSize);
         }
     }
 
@@ -820,12 +1242,34 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         mLoaderThread.requestPreloading();
     }
 
+    @Override
+    public void prefetchThumbnails(long[] photoIds, int count) {
+        final List<Long> ids = Lists.newArrayListWithCapacity(count);
+        for (int i = 0; i < count; i++) {
+            final BitmapHolder holder = mBitmapHolderCache.get(photoIds[i]);
+            if (holder != null) {
+                mPrefetchHolderHitCount++;
+            } else {
+                mPrefetchHolderMissCount++;
+            }
+            if (holder == null || !holder.fresh) {
+                ids.add(photoIds[i]);
+            }
+        }
+        if (ids.isEmpty()) {
+            return;
+        }
+        ensureLoaderThread();
+        mLoaderThread.requestPrefetching(ids);
+    }
+
     @Override
     public void loadThumbnail(ImageView view, long photoId, boolean darkTheme, boolean isCircular,
             DefaultImageRequest defaultImageRequest, DefaultImageProvider defaultProvider) {
         if (photoId == 0) {
             // No photo is needed
             defaultProvider.applyDefaultImage(view, -1, darkTheme, defaultImageRequest);
+            mBoundBitmaps.remove(view);
             mPendingRequests.remove(view);
         } else {
             if (DEBUG) Log.d(TAG, "loadPhoto request: " + photoId);
@@ -842,6 +1286,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             // No photo is needed
             defaultProvider.applyDefaultImage(view, requestedExtent, darkTheme,
                     defaultImageRequest);
+            mBoundBitmaps.remove(view);
             mPendingRequests.remove(view);
         } else {
             if (DEBUG) Log.d(TAG, "loadPhoto request: " + photoUri);
@@ -860,6 +1305,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         DefaultImageRequest request = getDefaultImageRequestFromUri(uri);
         request.isCircular = isCircular;
         defaultProvider.applyDefaultImage(view, requestedExtent, darkTheme, request);
+        mBoundBitmaps.remove(view);
     }
 
     private void loadPhotoByIdOrUri(ImageView view, Request request) {
@@ -878,6 +1324,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     @Override
     public void removePhoto(ImageView view) {
         view.setImageDrawable(null);
+        mBoundBitmaps.remove(view);
         mPendingRequests.remove(view);
     }
 
@@ -890,19 +1337,59 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     public void cancelPendingRequests(View fragmentRootView) {
         if (fragmentRootView == null) {
             mPendingRequests.clear();
-            return;
+            if (mLoaderThread != null) {
+                mLoaderThread.cancelPrefetching();
+            }
+        } else {
+            final Iterator<Entry<ImageView, Request>> iterator =
+                    mPendingRequests.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final ImageView imageView = iterator.next().getKey();
+                // If an ImageView is orphaned (currently scrap) or a child of fragmentRootView,
+                // then we can safely remove its request.
+                if (imageView.getParent() == null || isChildView(fragmentRootView, imageView)) {
+                    iterator.remove();
+                }
+            }
         }
-        final Iterator<Entry<ImageView, Request>> iterator = mPendingRequests.entrySet().iterator();
-        while (iterator.hasNext()) {
-            final ImageView imageView = iterator.next().getKey();
-            // If an ImageView is orphaned (currently scrap) or a child of fragmentRootView, then
-            // we can safely remove its request.
-            if (imageView.getParent() == null || isChildView(fragmentRootView, imageView)) {
-                iterator.remove();
+        cancelOrphanedUriLoads();
+    }
+
+    /**
+     * Cancels the URI loads that no pending request is waiting for any more. Queued loads are
+     * dropped, running loads stop reading the photo.
+     */
+    private void cancelOrphanedUriLoads() {
+        for (UriLoadTask task : mUriLoadsInFlight.values()) {
+            if (!isRequested(task.getKey())) {
+                task.cancel();
             }
         }
     }
 
+    /**
+     * Returns true if a view is waiting for the photo with the given cache key.
+     */
+    private boolean isRequested(Object key) {
+        for (Request request : mPendingRequests.values()) {
+            if (request.getKey().equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, name + "-" + mCount.incrementAndGet());
+            }
+        };
+    }
+
     private static boolean isChildView(View parent, View potentialChild) {
         return potentialChild.getParent() != null && (potentialChild.getParent() == parent || (
                 potentialChild.getParent() instanceof ViewGroup && isChildView(parent,
@@ -933,29 +1420,33 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         BitmapHolder holder = mBitmapHolderCache.get(request.getKey());
         if (holder == null) {
             // The bitmap has not been loaded ==> show default avatar
-            request.applyDefaultImage(view, request.mIsCircular);
+            applyDefaultImage(view, request);
             return false;
         }
 
-        if (holder.bytes == null || holder.bytes.length == 0) {
-            request.applyDefaultImage(view, request.mIsCircular);
+        if (holder.getByteCount() == 0) {
+            applyDefaultImage(view, request);
             return holder.fresh;
         }
 
-        Bitmap cachedBitmap = holder.bitmapRef == null ? null : holder.bitmapRef.get();
+        final Bitmap cachedBitmap = holder.bitmapRef == null ? null : holder.bitmapRef.get();
         if (cachedBitmap == null) {
-            if (holder.bytes.length < 8 * 1024) {
-                // Small thumbnails are usually quick to inflate. Let's do that on the UI thread
-                inflateBitmap(holder, request.getRequestedExtent());
-                cachedBitmap = holder.bitmap;
-                if (cachedBitmap == null) return false;
-            } else {
-                // This is bigger data. Let's send that back to the Loader so that we can
-                // inflate this in the background
-                request.applyDefaultImage(view, request.mIsCircular);
-                return false;
-            }
+            mBitmapMissCount++;
+        } else {
+            mBitmapHitCount++;
+        }
+        if ((mBitmapHitCount + mBitmapMissCount) % CACHE_ADAPT_INTERVAL == 0) {
+            adaptCacheSizes();
         }
+        if (cachedBitmap == null) {
+            // Send this back to the Loader so that we can inflate this in the background. Even
+            // small thumbnails are not inflated here, so that binding a list row does not
+            // have to wait for a decode.
+            applyDefaultImage(view, request);
+            return false;
+        }
+        final long applyStart = System.nanoTime();
+        mBoundBitmaps.put(view, cachedBitmap);
 
         final Drawable previousDrawable = view.getDrawable();
         if (fadeIn && previousDrawable != null) {
@@ -987,15 +1478,54 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         // Soften the reference
         holder.bitmap = null;
 
+        final long applyEnd = System.nanoTime();
+        final LoadLatencies latencies =
+                request.isUriRequest() ? mUriLatencies : mThumbnailLatencies;
+        latencies.apply.record(applyEnd - applyStart);
+        latencies.timeToPixel.record(applyEnd - request.mRequestNanos);
+
         return holder.fresh;
     }
 
+    private void applyDefaultImage(ImageView view, Request request) {
+        mBoundBitmaps.remove(view);
+        request.applyDefaultImage(view, request.mIsCircular);
+    }
+
+    /**
+     * Adds a bitmap that dropped out of {@link #mBitmapCache} to {@link #mBitmapPool}, unless
+     * it was not decoded by this class or is still displayed. The holder that refers to the
+     * bitmap forgets it, so that it does not show a photo that is later decoded into it.
+     */
+    private void recycleBitmap(Bitmap bitmap) {
+        final WeakReference<BitmapHolder> holderRef = mPoolableBitmaps.remove(bitmap);
+        if (holderRef == null || mBoundBitmaps.containsValue(bitmap)) {
+            return;
+        }
+        final BitmapHolder holder = holderRef.get();
+        if (holder != null) {
+            synchronized (holder) {
+                if (holder.bitmap == bitmap) {
+                    holder.bitmap = null;
+                }
+                if (holder.bitmapRef != null && holder.bitmapRef.get() == bitmap) {
+                    holder.bitmapRef = null;
+                }
+            }
+        }
+        mBitmapPool.put(bitmap);
+    }
+
     /**
      * Given a bitmap, returns a drawable that is configured to display the bitmap based on the
      * specified request.
      */
     private Drawable getDrawableForBitmap(Resources resources, Bitmap bitmap, Request request) {
         if (request.mIsCircular) {
+            final Bitmap circularBitmap = getCircularBitmap(request.getKey(), bitmap);
+            if (circularBitmap != null) {
+                return new BitmapDrawable(resources, circularBitmap);
+            }
             final RoundedBitmapDrawable drawable =
                     RoundedBitmapDrawableFactory.create(resources, bitmap);
             drawable.setAntiAlias(true);
@@ -1006,16 +1536,67 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         }
     }
 
+    /**
+     * Returns a circular copy of the given square photo from {@link #mCircularBitmapCache},
+     * rendering it if necessary. Returns null if the photo is not square or too big to be
+     * cached, in which case it has to be clipped while drawing.
+     */
+    private Bitmap getCircularBitmap(Object key, Bitmap bitmap) {
+        final int size = bitmap.getWidth();
+        if (size != bitmap.getHeight()
+                || bitmap.getByteCount() >= mCircularBitmapCache.maxSize() / 6) {
+            return null;
+        }
+        final CircularBitmap cached = mCircularBitmapCache.get(key);
+        if (cached != null && cached.isCopyOf(bitmap)) {
+            return cached.bitmap;
+        }
+
+        final Bitmap circularBitmap;
+        try {
+            circularBitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        } catch (OutOfMemoryError e) {
+            return null;
+        }
+        final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+        paint.setShader(new BitmapShader(bitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP));
+        new Canvas(circularBitmap).drawCircle(size / 2f, size / 2f, size / 2f, paint);
+        mCircularBitmapCache.put(key, new CircularBitmap(bitmap, circularBitmap));
+        return circularBitmap;
+    }
+
+    /**
+     * A photo clipped to a circle, see {@link #mCircularBitmapCache}.
+     */
+    private static final class CircularBitmap {
+        final Bitmap bitmap;
+        private final WeakReference<Bitmap> mSource;
+        private final int mSourceGenerationId;
+
+        CircularBitmap(Bitmap source, Bitmap bitmap) {
+            this.bitmap = bitmap;
+            mSource = new WeakReference<Bitmap>(source);
+            mSourceGenerationId = source.getGenerationId();
+        }
+
+        /**
+         * Returns true if this is a copy of the given bitmap in its current state. The pixels
+         * of a photo may have been reused for another one since the copy was made.
+         */
+        boolean isCopyOf(Bitmap source) {
+            return mSource.get() == source && mSourceGenerationId == source.getGenerationId();
+        }
+    }
+
     /**
      * If necessary, decodes bytes stored in the holder to Bitmap.  As long as the
      * bitmap is held either by {@link #mBitmapCache} or by a soft reference in
      * the holder, it will not be necessary to decode the bitmap.
      */
-    private static void inflateBitmap(BitmapHolder holder, int requestedExtent) {
+    private void inflateBitmap(BitmapHolder holder, int requestedExtent) {
         final int sampleSize =
                 BitmapUtil.findOptimalSampleSize(holder.originalSmallerExtent, requestedExtent);
-        byte[] bytes = holder.bytes;
-        if (bytes == null || bytes.length == 0) {
+        if (holder.getByteCount() == 0) {
             return;
         }
 
@@ -1030,8 +1611,31 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             }
         }
 
+        final long decodeStart = System.nanoTime();
         try {
-            Bitmap bitmap = BitmapUtil.decodeBitmapFromBytes(bytes, sampleSize);
+            final Bitmap reusable;
+            Bitmap bitmap;
+            if (holder.buffer != null) {
+                reusable = mBitmapPool.get(
+                        BitmapUtil.getDecodedByteCount(holder.buffer, sampleSize));
+                bitmap = BitmapUtil.decodeBitmapFromBuffer(holder.buffer, sampleSize, reusable);
+            } else {
+                reusable = mBitmapPool.get(
+                        BitmapUtil.getDecodedByteCount(holder.bytes, sampleSize));
+                bitmap = BitmapUtil.decodeBitmapFromBytes(holder.bytes, sampleSize, reusable);
+            }
+            mDecodeCount.incrementAndGet();
+            mDecodeTimeNanos.addAndGet(System.nanoTime() - decodeStart);
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                mUiThreadDecodeCount.incrementAndGet();
+            }
+            if (reusable != null && bitmap != reusable) {
+                // Not used after all
+                mBitmapPool.put(reusable);
+            }
+            if (bitmap == null) {
+                return;
+            }
 
             // TODO: As a temporary workaround while framework support is being added to
             // clip non-square bitmaps into a perfect circle, manually crop the bitmap into
@@ -1045,7 +1649,12 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             // sample size.
             if (height != width && Math.min(height, width) <= mThumbnailSize * 2) {
                 final int dimension = Math.min(height, width);
-                bitmap = ThumbnailUtils.extractThumbnail(bitmap, dimension, dimension);
+                final Bitmap uncropped = bitmap;
+                bitmap = ThumbnailUtils.extractThumbnail(uncropped, dimension, dimension);
+                if (bitmap != uncropped) {
+                    // The uncropped bitmap was never displayed
+                    mBitmapPool.put(uncropped);
+                }
             }
             // make bitmap mutable and draw size onto it
             if (DEBUG_SIZES) {
@@ -1063,11 +1672,16 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 canvas.drawText(bitmap.getWidth() + "/" + sampleSize, 0, 15, paint);
             }
 
-            holder.decodedSampleSize = sampleSize;
-            holder.bitmap = bitmap;
-            holder.bitmapRef = new SoftReference<Bitmap>(bitmap);
+            synchronized (holder) {
+                holder.decodedSampleSize = sampleSize;
+                holder.bitmap = bitmap;
+                holder.bitmapRef = new SoftReference<Bitmap>(bitmap);
+            }
+            if (bitmap.isMutable()) {
+                mPoolableBitmaps.put(bitmap, new WeakReference<BitmapHolder>(holder));
+            }
             if (DEBUG) {
-                Log.d(TAG, "inflateBitmap " + btk(bytes.length) + " -> "
+                Log.d(TAG, "inflateBitmap " + btk(holder.getByteCount()) + " -> "
                         + bitmap.getWidth() + "x" + bitmap.getHeight()
                         + ", " + btk(bitmap.getByteCount()));
             }
@@ -1079,8 +1693,11 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     public void clear() {
         if (DEBUG) Log.d(TAG, "clear");
         mPendingRequests.clear();
+        cancelOrphanedUriLoads();
         mBitmapHolderCache.evictAll();
         mBitmapCache.evictAll();
+        mCircularBitmapCache.evictAll();
+        mBitmapPool.clear();
     }
 
     @Override
@@ -1182,9 +1799,30 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      * a successful load but no photo was available.
      */
     private void cacheBitmap(Object key, byte[] bytes, boolean preloading, int requestedExtent) {
+        cacheBitmap(key, bytes,
+                bytes == null ? -1 : BitmapUtil.getSmallerExtentFromBytes(bytes),
+                preloading, requestedExtent);
+    }
+
+    /**
+     * Same as {@link #cacheBitmap(Object, byte[], boolean, int)}, for photos whose smaller
+     * extent is already known.
+     */
+    private void cacheBitmap(Object key, byte[] bytes, int originalSmallerExtent,
+            boolean preloading, int requestedExtent) {
+        cacheBitmapHolder(key, new BitmapHolder(bytes, originalSmallerExtent), preloading,
+                requestedExtent);
+    }
+
+    /**
+     * Stores the supplied holder in cache. A holder without data indicates a failure to load
+     * the photo.
+     */
+    private void cacheBitmapHolder(Object key, BitmapHolder holder, boolean preloading,
+            int requestedExtent) {
         if (DEBUG) {
             BitmapHolder prev = mBitmapHolderCache.get(key);
-            if (prev != null && prev.bytes != null) {
+            if (prev != null && prev.hasData()) {
                 Log.d(TAG, "Overwriting cache: key=" + key + (prev.fresh ? " FRESH" : " stale"));
                 if (prev.fresh) {
                     mFreshCacheOverwrite.incrementAndGet();
@@ -1193,18 +1831,22 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 }
             }
             Log.d(TAG, "Caching data: key=" + key + ", " +
-                    (bytes == null ? "<null>" : btk(bytes.length)));
+                    (!holder.hasData() ? "<null>" : btk(holder.getByteCount())));
         }
-        BitmapHolder holder = new BitmapHolder(bytes,
-                bytes == null ? -1 : BitmapUtil.getSmallerExtentFromBytes(bytes));
 
         // Unless this image is being preloaded, decode it right away while
         // we are still on the background thread.
         if (!preloading) {
             inflateBitmap(holder, requestedExtent);
         }
+        putBitmapHolder(key, holder);
+    }
 
-        if (bytes != null) {
+    /**
+     * Stores the supplied holder in cache without decoding it.
+     */
+    private void putBitmapHolder(Object key, BitmapHolder holder) {
+        if (holder.hasData()) {
             mBitmapHolderCache.put(key, holder);
             if (mBitmapHolderCache.get(key) != holder) {
                 Log.w(TAG, "Bitmap too big to fit in cache.");
@@ -1241,7 +1883,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         photoIdsAsStrings.clear();
         uris.clear();
 
-        boolean jpegsDecoded = false;
+        final List<DecodeTask> decodes = Lists.newArrayList();
 
         /*
          * Since the call is made from the loader thread, the map could be
@@ -1258,16 +1900,21 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             if (holder == BITMAP_UNAVAILABLE) {
                 continue;
             }
-            if (holder != null && holder.bytes != null && holder.fresh &&
+            if (holder != null && holder.hasData() && holder.fresh &&
                     (holder.bitmapRef == null || holder.bitmapRef.get() == null)) {
                 // This was previously loaded but we don't currently have the inflated Bitmap
-                inflateBitmap(holder, request.getRequestedExtent());
-                jpegsDecoded = true;
+                decodes.add(new DecodeTask(request.getKey(), holder,
+                        request.getRequestedExtent(), mThumbnailLatencies));
             } else {
                 if (holder == null || !holder.fresh) {
                     if (request.isUriRequest()) {
                         uris.add(request);
                     } else {
+                        if (!request.mQueueWaitRecorded) {
+                            request.mQueueWaitRecorded = true;
+                            mThumbnailLatencies.queueWait.record(
+                                    System.nanoTime() - request.mRequestNanos);
+                        }
                         photoIds.add(request.getId());
                         photoIdsAsStrings.add(String.valueOf(request.mId));
                     }
@@ -1275,16 +1922,69 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             }
         }
 
-        if (jpegsDecoded) mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+        if (!decodes.isEmpty()) {
+            decodeInParallel(decodes);
+            mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+        }
+    }
+
+    /**
+     * Decodes the photos of the given tasks on {@link #mDecodeExecutor} and waits until all
+     * of them are decoded.
+     */
+    private void decodeInParallel(List<DecodeTask> tasks) {
+        if (tasks.size() == 1) {
+            // Not worth a thread hop
+            tasks.get(0).call();
+            return;
+        }
+        try {
+            mDecodeExecutor.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Decodes one photo for {@link #decodeInParallel}.
+     */
+    private final class DecodeTask implements Callable<Void> {
+        final Object mKey;
+        final BitmapHolder mHolder;
+        final int mRequestedExtent;
+        final LoadLatencies mLatencies;
+
+        DecodeTask(Object key, BitmapHolder holder, int requestedExtent,
+                LoadLatencies latencies) {
+            mKey = key;
+            mHolder = holder;
+            mRequestedExtent = requestedExtent;
+            mLatencies = latencies;
+        }
+
+        @Override
+        public Void call() {
+            final long start = System.nanoTime();
+            inflateBitmap(mHolder, mRequestedExtent);
+            mLatencies.decode.record(System.nanoTime() - start);
+            return null;
+        }
     }
 
     /**
      * The thread that performs loading of photos from the database.
      */
     private class LoaderThread extends HandlerThread implements Callback {
-        private static final int BUFFER_SIZE = 1024*16;
         private static final int MESSAGE_PRELOAD_PHOTOS = 0;
         private static final int MESSAGE_LOAD_PHOTOS = 1;
+        private static final int MESSAGE_VALIDATE_DISK_CACHE = 2;
+        private static final int MESSAGE_PREFETCH_PHOTOS = 3;
+
+        /**
+         * A pause before thumbnails served from disk are checked against the provider, so
+         * that the check does not compete with loading of the photos that are on screen.
+         */
+        private static final int DISK_CACHE_VALIDATION_DELAY = 2000;
 
         /**
          * A pause between preload batches that yields to the UI thread.
@@ -1308,9 +2008,20 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         private final Set<String> mPhotoIdsAsStrings = Sets.newHashSet();
         private final Set<Request> mPhotoUris = Sets.newHashSet();
         private final List<Long> mPreloadPhotoIds = Lists.newArrayList();
+        private final List<ContactPhotoDiskCache.Entry> mDiskEntriesToValidate =
+                Lists.newArrayList();
+        private final List<DecodeTask> mDecodeTasks = Lists.newArrayList();
+
+        /** Latencies of the batch of thumbnails that is being loaded. */
+        private LoadLatencies mBatchLatencies;
+
+        /**
+         * Photo ids of the latest prefetch request. Written on the UI thread, so access is
+         * synchronized on the list.
+         */
+        private final List<Long> mPrefetchPhotoIds = Lists.newArrayList();
 
         private Handler mLoaderThreadHandler;
-        private byte mBuffer[];
 
         private static final int PRELOAD_STATUS_NOT_STARTED = 0;
         private static final int PRELOAD_STATUS_IN_PROGRESS = 1;
@@ -1361,6 +2072,31 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             mLoaderThreadHandler.sendEmptyMessage(MESSAGE_LOAD_PHOTOS);
         }
 
+        /**
+         * Sends a message to this thread to prefetch the given photos. The photos of an
+         * earlier prefetch request that was not processed yet are dropped: they are no longer
+         * about to be displayed.
+         */
+        public void requestPrefetching(List<Long> photoIds) {
+            synchronized (mPrefetchPhotoIds) {
+                mPrefetchPhotoIds.clear();
+                mPrefetchPhotoIds.addAll(photoIds);
+            }
+            ensureHandler();
+            if (!mLoaderThreadHandler.hasMessages(MESSAGE_PREFETCH_PHOTOS)) {
+                mLoaderThreadHandler.sendEmptyMessage(MESSAGE_PREFETCH_PHOTOS);
+            }
+        }
+
+        /**
+         * Drops the photos of the latest prefetch request, if they were not loaded yet.
+         */
+        public void cancelPrefetching() {
+            synchronized (mPrefetchPhotoIds) {
+                mPrefetchPhotoIds.clear();
+            }
+        }
+
         /**
          * Receives the above message, loads photos and then sends a message
          * to the main thread to process them.
@@ -1374,6 +2110,12 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 case MESSAGE_LOAD_PHOTOS:
                     loadPhotosInBackground();
                     break;
+                case MESSAGE_VALIDATE_DISK_CACHE:
+                    validateDiskCacheEntries();
+                    break;
+                case MESSAGE_PREFETCH_PHOTOS:
+                    prefetchPhotosInBackground();
+                    break;
             }
             return true;
         }
@@ -1400,7 +2142,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 return;
             }
 
-            if (mBitmapHolderCache.size() > mBitmapHolderCacheRedZoneBytes) {
+            if (mBitmapHolderCache.size() > getBitmapHolderCacheRedZoneBytes()) {
                 mPreloadStatus = PRELOAD_STATUS_DONE;
                 return;
             }
@@ -1419,6 +2161,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 mPreloadPhotoIds.remove(preloadSize);
             }
 
+            mBatchLatencies = mPreloadLatencies;
             loadThumbnails(true);
 
             if (preloadSize == 0) {
@@ -1460,14 +2203,52 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             }
         }
 
+        /**
+         * Loads and decodes the photos of the latest prefetch request, unless photos that are
+         * needed on screen right now are waiting to be loaded.
+         */
+        private void prefetchPhotosInBackground() {
+            if (mLoaderThreadHandler.hasMessages(MESSAGE_LOAD_PHOTOS)) {
+                // Come back after the photos on screen have been loaded
+                mLoaderThreadHandler.sendEmptyMessage(MESSAGE_PREFETCH_PHOTOS);
+                return;
+            }
+            if (!PermissionsUtil.hasPermission(mContext,
+                    android.Manifest.permission.READ_CONTACTS)) {
+                return;
+            }
+
+            mPhotoIds.clear();
+            mPhotoIdsAsStrings.clear();
+            synchronized (mPrefetchPhotoIds) {
+                for (Long id : mPrefetchPhotoIds) {
+                    final BitmapHolder holder = mBitmapHolderCache.get(id);
+                    if (holder == null || !holder.fresh) {
+                        mPhotoIds.add(id);
+                        mPhotoIdsAsStrings.add(String.valueOf(id));
+                    }
+                }
+                mPrefetchPhotoIds.clear();
+            }
+            if (DEBUG) Log.d(TAG, "Prefetching " + mPhotoIds.size() + " photos");
+
+            // Decode right away, so that the photos can be displayed as soon as their rows
+            // are bound.
+            mBatchLatencies = mPreloadLatencies;
+            loadThumbnails(false);
+        }
+
         private void loadPhotosInBackground() {
             if (!PermissionsUtil.hasPermission(mContext,
                     android.Manifest.permission.READ_CONTACTS)) {
                 return;
             }
             obtainPhotoIdsAndUrisToLoad(mPhotoIds, mPhotoIdsAsStrings, mPhotoUris);
+            mBatchLatencies = mThumbnailLatencies;
+            // Queue the URI loads first: they run on their own threads, in parallel with
+            // loading of the thumbnails.
+            loadUriBasedPhotos(mPhotoUris);
             loadThumbnails(false);
-            loadUriBasedPhotos();
             requestPreloading();
         }
 
@@ -1488,33 +2269,27 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 }
             }
 
-            mStringBuilder.setLength(0);
-            mStringBuilder.append(Photo._ID + " IN(");
-            for (int i = 0; i < mPhotoIds.size(); i++) {
-                if (i != 0) {
-                    mStringBuilder.append(',');
-                }
-                mStringBuilder.append('?');
+            loadThumbnailsFromDiskCache(preloading);
+            if (mPhotoIds.isEmpty()) {
+                decodeAndCacheThumbnails();
+                mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+                return;
             }
-            mStringBuilder.append(')');
 
+            final long fetchStart = System.nanoTime();
             Cursor cursor = null;
             try {
                 if (DEBUG) Log.d(TAG, "Loading " + TextUtils.join(",", mPhotoIdsAsStrings));
                 cursor = mResolver.query(Data.CONTENT_URI,
                         COLUMNS,
-                        mStringBuilder.toString(),
+                        buildPhotoIdSelection(mPhotoIds.size()),
                         mPhotoIdsAsStrings.toArray(EMPTY_STRING_ARRAY),
                         null);
 
                 if (cursor != null) {
                     while (cursor.moveToNext()) {
-                        Long id = cursor.getLong(0);
-                        byte[] bytes = cursor.getBlob(1);
-                        if (bytes == null) {
-                            bytes = new byte[0];
-                        }
-                        cacheBitmap(id, bytes, preloading, -1);
+                        Long id = cursor.getLong(COLUMN_ID);
+                        cacheThumbnailFromCursor(cursor, preloading);
                         mPhotoIds.remove(id);
                     }
                 }
@@ -1523,6 +2298,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                     cursor.close();
                 }
             }
+            mBatchLatencies.fetch.record(System.nanoTime() - fetchStart);
 
             // Remaining photos were not found in the contacts database (but might be in profile).
             for (Long id : mPhotoIds) {
@@ -1533,11 +2309,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                                 ContentUris.withAppendedId(Data.CONTENT_URI, id),
                                 COLUMNS, null, null, null);
                         if (profileCursor != null && profileCursor.moveToFirst()) {
-                            byte[] bytes = profileCursor.getBlob(1);
-                            if (bytes == null) {
-                                bytes = new byte[0];
-                            }
-                            cacheBitmap(profileCursor.getLong(0), bytes, preloading, -1);
+                            cacheThumbnailFromCursor(profileCursor, preloading);
                         } else {
                             // Couldn't load a photo this way either.
                             cacheBitmap(id, null, preloading, -1);
@@ -1553,75 +2325,355 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 }
             }
 
+            decodeAndCacheThumbnails();
             mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
         }
 
         /**
-         * Loads photos referenced with Uris. Those can be remote thumbnails
-         * (from directory searches), display photos etc
+         * Caches a thumbnail that was read by this thread. Unless it is being preloaded, it
+         * is decoded together with the other thumbnails of the batch by
+         * {@link #decodeAndCacheThumbnails()}.
          */
-        private void loadUriBasedPhotos() {
-            for (Request uriRequest : mPhotoUris) {
-                // Keep the original URI and use this to key into the cache.  Failure to do so will
-                // result in an image being continually reloaded into cache if the original URI
-                // has a contact type encodedFragment (eg nearby places business photo URLs).
-                Uri originalUri = uriRequest.getUri();
-
-                // Strip off the "contact type" we added to the URI to ensure it was identifiable as
-                // a business photo -- there is no need to pass this on to the server.
-                Uri uri = ContactPhotoManager.removeContactType(originalUri);
-
-                if (mBuffer == null) {
-                    mBuffer = new byte[BUFFER_SIZE];
+        private void cacheThumbnail(long id, BitmapHolder holder, boolean preloading) {
+            if (preloading) {
+                cacheBitmapHolder(id, holder, true, -1);
+            } else {
+                mDecodeTasks.add(new DecodeTask(id, holder, -1, mBatchLatencies));
+            }
+        }
+
+        /**
+         * Decodes the thumbnails queued by {@link #cacheThumbnail} in parallel and caches
+         * them, so that they are ready to be displayed when the UI thread processes them.
+         */
+        private void decodeAndCacheThumbnails() {
+            if (mDecodeTasks.isEmpty()) {
+                return;
+            }
+            decodeInParallel(mDecodeTasks);
+            for (DecodeTask task : mDecodeTasks) {
+                putBitmapHolder(task.mKey, task.mHolder);
+            }
+            mDecodeTasks.clear();
+        }
+
+        private String buildPhotoIdSelection(int count) {
+            mStringBuilder.setLength(0);
+            mStringBuilder.append(Photo._ID + " IN(");
+            for (int i = 0; i < count; i++) {
+                if (i != 0) {
+                    mStringBuilder.append(',');
                 }
-                try {
-                    if (DEBUG) Log.d(TAG, "Loading " + uri);
-                    final String scheme = uri.getScheme();
-                    InputStream is = null;
-                    if (scheme.equals("http") || scheme.equals("https")) {
-                        TrafficStats.setThreadStatsTag(TrafficStatsTags.CONTACT_PHOTO_DOWNLOAD_TAG);
-                        final HttpURLConnection connection =
-                                (HttpURLConnection) new URL(uri.toString()).openConnection();
-
-                        // Include the user agent if it is specified.
-                        if (!TextUtils.isEmpty(mUserAgent)) {
-                            connection.setRequestProperty("User-Agent", mUserAgent);
-                        }
-                        try {
-                            is = connection.getInputStream();
-                        } catch (IOException e) {
-                            connection.disconnect();
-                            is = null;
-                        }
-                        TrafficStats.clearThreadStatsTag();
-                    } else {
-                        is = mResolver.openInputStream(uri);
+                mStringBuilder.append('?');
+            }
+            mStringBuilder.append(')');
+            return mStringBuilder.toString();
+        }
+
+        /**
+         * Caches the thumbnail in the current row of a cursor with {@link #COLUMNS} and
+         * writes it through to {@link #mDiskCache}. If the thumbnail made it to disk, the
+         * memory cache refers to the mapped copy so that the blob can be dropped from the heap.
+         */
+        private void cacheThumbnailFromCursor(Cursor cursor, boolean preloading) {
+            final long id = cursor.getLong(COLUMN_ID);
+            byte[] bytes = cursor.getBlob(COLUMN_PHOTO);
+            if (bytes == null || bytes.length == 0) {
+                mDiskCache.remove(id);
+                cacheBitmap(id, new byte[0], -1, preloading, -1);
+                return;
+            }
+            final int originalSmallerExtent = BitmapUtil.getSmallerExtentFromBytes(bytes);
+            final ContactPhotoDiskCache.Entry entry = mDiskCache.put(id,
+                    cursor.getLong(COLUMN_DATA_VERSION), cursor.getLong(COLUMN_PHOTO_FILE_ID),
+                    originalSmallerExtent, bytes);
+            if (entry != null) {
+                cacheThumbnail(id, new BitmapHolder(entry.buffer, originalSmallerExtent),
+                        preloading);
+            } else {
+                cacheThumbnail(id, new BitmapHolder(bytes, originalSmallerExtent), preloading);
+            }
+        }
+
+        /**
+         * Serves as many of the requested thumbnails as possible from {@link #mDiskCache} and
+         * removes them from {@link #mPhotoIds}. The served entries are checked against the
+         * provider a little later, see {@link #validateDiskCacheEntries()}.
+         */
+        private void loadThumbnailsFromDiskCache(boolean preloading) {
+            final Iterator<Long> iterator = mPhotoIds.iterator();
+            while (iterator.hasNext()) {
+                final Long id = iterator.next();
+                final ContactPhotoDiskCache.Entry entry = mDiskCache.get(id);
+                if (entry == null) {
+                    continue;
+                }
+                cacheThumbnail(id, new BitmapHolder(entry.buffer, entry.originalSmallerExtent),
+                        preloading);
+                iterator.remove();
+                mPhotoIdsAsStrings.remove(String.valueOf(id));
+                mDiskEntriesToValidate.add(entry);
+            }
+            if (!mDiskEntriesToValidate.isEmpty()
+                    && !mLoaderThreadHandler.hasMessages(MESSAGE_VALIDATE_DISK_CACHE)) {
+                mLoaderThreadHandler.sendEmptyMessageDelayed(MESSAGE_VALIDATE_DISK_CACHE,
+                        DISK_CACHE_VALIDATION_DELAY);
+            }
+        }
+
+        /**
+         * Checks the thumbnails that were served from disk against the data version and photo
+         * file id in the provider. Thumbnails that changed or went away are dropped from disk
+         * and marked as stale in memory, so that they are reloaded the next time they are
+         * requested.
+         */
+        private void validateDiskCacheEntries() {
+            if (mDiskEntriesToValidate.isEmpty()) {
+                return;
+            }
+            if (mLoaderThreadHandler.hasMessages(MESSAGE_LOAD_PHOTOS)) {
+                // Photos are needed on screen; try again later.
+                mLoaderThreadHandler.sendEmptyMessageDelayed(MESSAGE_VALIDATE_DISK_CACHE,
+                        DISK_CACHE_VALIDATION_DELAY);
+                return;
+            }
+
+            final Map<Long, ContactPhotoDiskCache.Entry> entries = Maps.newHashMap();
+            final List<String> ids = Lists.newArrayList();
+            for (ContactPhotoDiskCache.Entry entry : mDiskEntriesToValidate) {
+                if (entries.put(entry.photoId, entry) == null) {
+                    ids.add(String.valueOf(entry.photoId));
+                }
+            }
+            mDiskEntriesToValidate.clear();
+
+            Cursor cursor = null;
+            try {
+                cursor = mResolver.query(Data.CONTENT_URI, VERSION_COLUMNS,
+                        buildPhotoIdSelection(ids.size()), ids.toArray(EMPTY_STRING_ARRAY), null);
+                if (cursor == null) {
+                    return;
+                }
+                while (cursor.moveToNext()) {
+                    final ContactPhotoDiskCache.Entry entry = entries.remove(cursor.getLong(0));
+                    if (entry != null && !ContactPhotoDiskCache.isCurrent(
+                            entry, cursor.getLong(1), cursor.getLong(2))) {
+                        invalidateDiskCacheEntry(entry.photoId);
                     }
-                    if (is != null) {
-                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                        try {
-                            int size;
-                            while ((size = is.read(mBuffer)) != -1) {
-                                baos.write(mBuffer, 0, size);
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+
+            // Rows that are gone, except for profile photos which are not returned by this query.
+            for (Long id : entries.keySet()) {
+                if (!ContactsContract.isProfileId(id)) {
+                    invalidateDiskCacheEntry(id);
+                }
+            }
+        }
+
+        private void invalidateDiskCacheEntry(long photoId) {
+            if (DEBUG) Log.d(TAG, "Stale thumbnail on disk: " + photoId);
+            mDiskCache.remove(photoId);
+            final BitmapHolder holder = mBitmapHolderCache.get(photoId);
+            if (holder != null && holder != BITMAP_UNAVAILABLE) {
+                holder.fresh = false;
+            }
+        }
+    }
+
+    /**
+     * Queues loading of photos referenced with Uris, unless they are being loaded already,
+     * and starts as many loads as the limits allow. Those can be remote thumbnails (from
+     * directory searches), display photos etc
+     */
+    private void loadUriBasedPhotos(Set<Request> requests) {
+        if (requests.isEmpty()) {
+            return;
+        }
+        synchronized (mQueuedUriLoads) {
+            for (Request request : requests) {
+                final UriLoadTask task = new UriLoadTask(request,
+                        mUriLoadSequence.getAndIncrement());
+                if (mUriLoadsInFlight.putIfAbsent(request.getKey(), task) == null) {
+                    mQueuedUriLoads.add(task);
+                }
+            }
+            startUriLoads();
+        }
+    }
+
+    /**
+     * Starts queued URI loads in order of priority, skipping those whose authority already
+     * has {@link #MAX_URI_LOADS_PER_AUTHORITY} loads running, until
+     * {@link #MAX_URI_LOADS_IN_FLIGHT} loads are running.
+     */
+    private void startUriLoads() {
+        synchronized (mQueuedUriLoads) {
+            final Iterator<UriLoadTask> iterator = mQueuedUriLoads.iterator();
+            while (mRunningUriLoadCount < MAX_URI_LOADS_IN_FLIGHT && iterator.hasNext()) {
+                final UriLoadTask task = iterator.next();
+                final Integer running = mUriLoadsPerAuthority.get(task.mAuthority);
+                if (running != null && running >= MAX_URI_LOADS_PER_AUTHORITY) {
+                    continue;
+                }
+                iterator.remove();
+                mUriLoadsPerAuthority.put(task.mAuthority, running == null ? 1 : running + 1);
+                mRunningUriLoadCount++;
+                mUriLoadExecutor.execute(task);
+            }
+        }
+    }
+
+    /**
+     * Called when a URI load that was started has finished. Starts the next ones.
+     */
+    private void onUriLoadFinished(UriLoadTask task) {
+        synchronized (mQueuedUriLoads) {
+            mRunningUriLoadCount--;
+            final int running = mUriLoadsPerAuthority.get(task.mAuthority) - 1;
+            if (running == 0) {
+                mUriLoadsPerAuthority.remove(task.mAuthority);
+            } else {
+                mUriLoadsPerAuthority.put(task.mAuthority, running);
+            }
+            startUriLoads();
+        }
+    }
+
+    /**
+     * Loads one photo referenced with a Uri. Tasks are ordered by lane and then by the time
+     * they were queued.
+     */
+    private final class UriLoadTask implements Runnable, Comparable<UriLoadTask> {
+        private final Request mRequest;
+        private final int mLane;
+        private final long mSequence;
+        private final String mAuthority;
+        private volatile boolean mCancelled;
+
+        UriLoadTask(Request request, long sequence) {
+            mRequest = request;
+            mLane = request.getLane();
+            mSequence = sequence;
+            final String authority = request.getUri().getAuthority();
+            mAuthority = authority == null ? "" : authority;
+        }
+
+        Object getKey() {
+            return mRequest.getKey();
+        }
+
+        /**
+         * Drops this task from the queue, or stops it if it is already running.
+         */
+        void cancel() {
+            mCancelled = true;
+            synchronized (mQueuedUriLoads) {
+                if (mQueuedUriLoads.remove(this)) {
+                    mUriLoadsInFlight.remove(getKey(), this);
+                }
+            }
+        }
+
+        @Override
+        public int compareTo(UriLoadTask another) {
+            if (mLane != another.mLane) {
+                return mLane < another.mLane ? -1 : 1;
+            }
+            return Long.compare(mSequence, another.mSequence);
+        }
+
+        @Override
+        public void run() {
+            try {
+                // The view may have been recycled for another photo while this task was queued
+                if (!mCancelled && isRequested(getKey())) {
+                    mUriLatencies.queueWait.record(System.nanoTime() - mRequest.mRequestNanos);
+                    load();
+                }
+            } finally {
+                mUriLoadsInFlight.remove(getKey(), this);
+                onUriLoadFinished(this);
+                // Let the main thread display the photo, or request it again if a view asked
+                // for it after this task was cancelled.
+                mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+            }
+        }
+
+        private void load() {
+            // Keep the original URI and use this to key into the cache.  Failure to do so will
+            // result in an image being continually reloaded into cache if the original URI
+            // has a contact type encodedFragment (eg nearby places business photo URLs).
+            final Uri originalUri = mRequest.getUri();
+
+            // Strip off the "contact type" we added to the URI to ensure it was identifiable as
+            // a business photo -- there is no need to pass this on to the server.
+            final Uri uri = ContactPhotoManager.removeContactType(originalUri);
+
+            final long fetchStart = System.nanoTime();
+            try {
+                if (DEBUG) Log.d(TAG, "Loading " + uri);
+                final String scheme = uri.getScheme();
+                InputStream is = null;
+                int expectedLength = -1;
+                if (scheme.equals("http") || scheme.equals("https")) {
+                    TrafficStats.setThreadStatsTag(TrafficStatsTags.CONTACT_PHOTO_DOWNLOAD_TAG);
+                    final HttpURLConnection connection =
+                            (HttpURLConnection) new URL(uri.toString()).openConnection();
+
+                    // Include the user agent if it is specified.
+                    if (!TextUtils.isEmpty(mUserAgent)) {
+                        connection.setRequestProperty("User-Agent", mUserAgent);
+                    }
+                    try {
+                        is = connection.getInputStream();
+                        expectedLength = connection.getContentLength();
+                    } catch (IOException e) {
+                        connection.disconnect();
+                        is = null;
+                    }
+                    TrafficStats.clearThreadStatsTag();
+                } else {
+                    is = mContext.getContentResolver().openInputStream(uri);
+                }
+                if (is != null) {
+                    // Size the output for the whole photo if its length is known, so that it
+                    // is not copied around while it grows.
+                    final ByteArrayOutputStream baos = new ByteArrayOutputStream(
+                            expectedLength > 0 ? expectedLength : URI_LOADER_BUFFER_SIZE);
+                    final byte[] buffer = new byte[URI_LOADER_BUFFER_SIZE];
+                    try {
+                        int size;
+                        while ((size = is.read(buffer)) != -1) {
+                            if (mCancelled) {
+                                if (DEBUG) Log.d(TAG, "Cancelled loading " + uri);
+                                return;
                             }
-                        } finally {
-                            is.close();
-                        }
-                        cacheBitmap(originalUri, baos.toByteArray(), false,
-                                uriRequest.getRequestedExtent());
-                        mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
-                    } else {
-                        if (Log.isLoggable(TAG, Log.VERBOSE)) {
-                            Log.v(TAG, "Cannot load photo " + uri);
+                            baos.write(buffer, 0, size);
                         }
-                        cacheBitmap(originalUri, null, false, uriRequest.getRequestedExtent());
+                    } finally {
+                        is.close();
                     }
-                } catch (final Exception | OutOfMemoryError ex) {
+                    final long decodeStart = System.nanoTime();
+                    mUriLatencies.fetch.record(decodeStart - fetchStart);
+                    cacheBitmap(originalUri, baos.toByteArray(), false,
+                            mRequest.getRequestedExtent());
+                    mUriLatencies.decode.record(System.nanoTime() - decodeStart);
+                } else {
                     if (Log.isLoggable(TAG, Log.VERBOSE)) {
-                        Log.v(TAG, "Cannot load photo " + uri, ex);
+                        Log.v(TAG, "Cannot load photo " + uri);
                     }
-                    cacheBitmap(originalUri, null, false, uriRequest.getRequestedExtent());
+                    cacheBitmap(originalUri, null, false, mRequest.getRequestedExtent());
+                }
+            } catch (final Exception | OutOfMemoryError ex) {
+                if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                    Log.v(TAG, "Cannot load photo " + uri, ex);
                 }
+                cacheBitmap(originalUri, null, false, mRequest.getRequestedExtent());
             }
         }
     }
@@ -1642,6 +2694,12 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
          */
         private final boolean mIsCircular;
 
+        /** Time of the request, for {@link LoadLatencies}. */
+        private final long mRequestNanos = System.nanoTime();
+
+        /** Whether the time this request waited for the loader thread was recorded. */
+        private boolean mQueueWaitRecorded;
+
         private Request(long id, Uri uri, int requestedExtent, boolean darkTheme,
                 boolean isCircular, DefaultImageProvider defaultProvider,
                 DefaultImageRequest defaultRequest) {
@@ -1689,6 +2747,14 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             return mRequestedExtent;
         }
 
+        /**
+         * Returns the lane in which the photo is loaded: photos that are much bigger than a
+         * thumbnail wait for the visible ones. See {@link #LANE_VISIBLE}.
+         */
+        public int getLane() {
+            return mRequestedExtent > mThumbnailSize * 2 ? LANE_HI_RES : LANE_VISIBLE;
+        }
+
         @Override
         public int hashCode() {
             final int prime = 31;
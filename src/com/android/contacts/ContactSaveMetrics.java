@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.os.Trace;
+
+import com.android.contacts.util.LatencyHistogram;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Latencies of the requests that {@link ContactSaveService} handles, by action, to find out
+ * which actions dominate on devices with large address books.
+ * <p>
+ * A request is bracketed by {@link #onRequestStarted} and {@link #onRequestFinished} on the
+ * worker thread that handles it, which also open and close a trace section named after the
+ * action. Code that runs in between records into {@link #current()} without having to know
+ * the action.
+ */
+final class ContactSaveMetrics {
+    private static final String TRACE_PREFIX = "ContactSaveService.";
+
+    /** Recorded for work that does not run as part of a request. */
+    private static final String OTHER = "other";
+
+    /** Latencies of one action. */
+    static final class ActionMetrics {
+        /** From receiving the request until a worker thread starts handling it. */
+        final LatencyHistogram queueWait = new LatencyHistogram();
+        /** Handling the request on the worker thread. */
+        final LatencyHistogram handle = new LatencyHistogram();
+        /** Building the operations of a save from its raw contact deltas. */
+        final LatencyHistogram buildDiff = new LatencyHistogram();
+        /** Applying one batch of operations. */
+        final LatencyHistogram applyBatch = new LatencyHistogram();
+        /** From posting the callback until the listener returns. */
+        final LatencyHistogram callback = new LatencyHistogram();
+        final AtomicInteger retries = new AtomicInteger();
+
+        void dump(String prefix, String action, PrintWriter writer) {
+            writer.println(prefix + action + ":");
+            writer.println(prefix + "  queue wait:  " + queueWait);
+            writer.println(prefix + "  handle:      " + handle);
+            writer.println(prefix + "  build diff:  " + buildDiff);
+            writer.println(prefix + "  apply batch: " + applyBatch);
+            writer.println(prefix + "  callback:    " + callback);
+            writer.println(prefix + "  retries:     " + retries.get());
+        }
+    }
+
+    private final TreeMap<String, ActionMetrics> mActions = new TreeMap<>();
+    private final ThreadLocal<ActionMetrics> mCurrent = new ThreadLocal<>();
+
+    synchronized ActionMetrics get(String action) {
+        final String key = action == null ? OTHER : action;
+        ActionMetrics metrics = mActions.get(key);
+        if (metrics == null) {
+            metrics = new ActionMetrics();
+            mActions.put(key, metrics);
+        }
+        return metrics;
+    }
+
+    /** Returns the metrics of the request that the calling thread handles. */
+    ActionMetrics current() {
+        final ActionMetrics metrics = mCurrent.get();
+        return metrics != null ? metrics : get(OTHER);
+    }
+
+    /**
+     * Called on the worker thread before it handles a request.
+     *
+     * @param receivedNanos when the request was received, as a {@link System#nanoTime()}
+     * @return the start time to pass to {@link #onRequestFinished}
+     */
+    long onRequestStarted(String action, long receivedNanos) {
+        final long start = System.nanoTime();
+        final ActionMetrics metrics = get(action);
+        metrics.queueWait.record(start - receivedNanos);
+        mCurrent.set(metrics);
+        Trace.beginSection(TRACE_PREFIX + (action == null ? OTHER : action));
+        return start;
+    }
+
+    /** Called on the worker thread once it is done with a request. */
+    void onRequestFinished(long startNanos) {
+        Trace.endSection();
+        current().handle.record(System.nanoTime() - startNanos);
+        mCurrent.remove();
+    }
+
+    void dump(String prefix, PrintWriter writer) {
+        final ArrayList<Map.Entry<String, ActionMetrics>> actions;
+        synchronized (this) {
+            actions = new ArrayList<>(mActions.entrySet());
+        }
+        for (Map.Entry<String, ActionMetrics> entry : actions) {
+            entry.getValue().dump(prefix, entry.getKey(), writer);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs the operations of {@link ContactSaveService} on several lanes at once while keeping
+ * operations that touch the same rows in the order they were submitted.
+ * <p>
+ * Each operation names the rows it touches as a set of keys, e.g. "contact:12" or "raw:34".
+ * An operation starts as soon as no operation that was submitted before it and has not
+ * finished yet shares a key with it. Operations submitted with null keys are barriers: they
+ * wait for all earlier operations, and all later operations wait for them.
+ * <p>
+ * Each lane is an {@link Executor}; operations on the same lane run in the order the lane
+ * runs them, so a single threaded lane never runs two of its operations at once.
+ */
+final class ContactSaveScheduler {
+
+    interface Callback {
+        /** Called on the thread of the finished operation once no operations are left. */
+        void onIdle();
+    }
+
+    private static final class Operation {
+        private final Runnable mWork;
+        private final Executor mLane;
+        private final Set<String> mKeys;
+        private boolean mStarted;
+
+        private Operation(Runnable work, Executor lane, Set<String> keys) {
+            mWork = work;
+            mLane = lane;
+            mKeys = keys;
+        }
+    }
+
+    private final Callback mCallback;
+
+    /** Operations that have not finished yet, in the order they were submitted. */
+    private final ArrayList<Operation> mOperations = new ArrayList<>();
+
+    ContactSaveScheduler(Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * Submits an operation to run on {@code lane} once no earlier operation touches any of
+     * {@code keys}.
+     *
+     * @param keys The rows touched by the operation, or null if they are not known
+     */
+    synchronized void submit(Runnable work, Executor lane, Set<String> keys) {
+        mOperations.add(new Operation(work, lane,
+                keys == null ? null : Collections.unmodifiableSet(new HashSet<>(keys))));
+        startRunnableOperations();
+    }
+
+    synchronized boolean isIdle() {
+        return mOperations.isEmpty();
+    }
+
+    private void startRunnableOperations() {
+        final HashSet<String> busyKeys = new HashSet<>();
+        for (int i = 0; i < mOperations.size(); i++) {
+            final Operation operation = mOperations.get(i);
+            if (operation.mKeys == null) {
+                // A barrier can only start when it is the oldest operation, and nothing after
+                // it can start before it finishes.
+                if (i == 0 && !operation.mStarted) {
+                    start(operation);
+                }
+                return;
+            }
+            if (!operation.mStarted && Collections.disjoint(busyKeys, operation.mKeys)) {
+                start(operation);
+            }
+            busyKeys.addAll(operation.mKeys);
+        }
+    }
+
+    private void start(final Operation operation) {
+        operation.mStarted = true;
+        operation.mLane.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    operation.mWork.run();
+                } finally {
+                    onFinished(operation);
+                }
+            }
+        });
+    }
+
+    private void onFinished(Operation operation) {
+        final boolean idle;
+        synchronized (this) {
+            mOperations.remove(operation);
+            startRunnableOperations();
+            idle = mOperations.isEmpty();
+        }
+        if (idle) {
+            mCallback.onIdle();
+        }
+    }
+}
@@ -19,7 +19,7 @@ package com.android.contacts;
 import static android.Manifest.permission.WRITE_CONTACTS;
 
 import android.app.Activity;
-import android.app.IntentService;
+import android.app.Service;
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderOperation.Builder;
 import android.content.ContentProviderResult;
@@ -29,15 +29,18 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.OperationApplicationException;
+import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.icu.text.MessageFormat;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.Looper;
 import android.os.Parcelable;
 import android.os.RemoteException;
+import android.os.Trace;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.AggregationExceptions;
 import android.provider.ContactsContract.CommonDataKinds.GroupMembership;
@@ -58,6 +61,7 @@ import com.android.contacts.activities.ContactEditorActivity;
 import com.android.contacts.compat.CompatUtils;
 import com.android.contacts.compat.PinnedPositionsCompat;
 import com.android.contacts.database.ContactUpdateUtils;
+import com.android.contacts.database.DuplicateContactsScanner;
 import com.android.contacts.database.SimContactDao;
 import com.android.contacts.model.AccountTypeManager;
 import com.android.contacts.model.CPOWrapper;
@@ -66,27 +70,49 @@ import com.android.contacts.model.RawContactDeltaList;
 import com.android.contacts.model.RawContactModifier;
 import com.android.contacts.model.account.AccountWithDataSet;
 import com.android.contacts.preference.ContactsPreferences;
+import com.android.contacts.util.AdaptiveBatchSizer;
 import com.android.contacts.util.ContactDisplayUtils;
 import com.android.contacts.util.ContactPhotoUtils;
 import com.android.contacts.util.PermissionsUtil;
 import com.android.contactsbind.FeedbackHelper;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A service responsible for saving changes to the content provider.
+ * <p>
+ * Requests run on two worker threads: a fast lane for small updates of a single row, such as
+ * starring a contact, and a heavy lane for saves, joins and other multi-row changes, so that
+ * a small update does not wait behind a large save of another contact. Requests that touch the
+ * same contacts, raw contacts, data rows or groups still run in the order they were received,
+ * see {@link ContactSaveScheduler}.
  */
-public class ContactSaveService extends IntentService {
+public class ContactSaveService extends Service {
     private static final String TAG = "ContactSaveService";
 
     /** Set to true in order to view logs on content provider operations */
@@ -109,6 +135,7 @@ public class ContactSaveService extends IntentService {
     public static final String EXTRA_SAVE_IS_PROFILE = "saveIsProfile";
     public static final String EXTRA_SAVE_SUCCEEDED = "saveSucceeded";
     public static final String EXTRA_UPDATED_PHOTOS = "updatedPhotos";
+    private static final String EXTRA_SAVE_REQUEST_ID = "saveRequestId";
 
     public static final String ACTION_CREATE_GROUP = "createGroup";
     public static final String ACTION_RENAME_GROUP = "renameGroup";
@@ -140,6 +167,8 @@ public class ContactSaveService extends IntentService {
     public static final String EXTRA_CONTACT_ID1 = "contactId1";
     public static final String EXTRA_CONTACT_ID2 = "contactId2";
 
+    public static final String ACTION_MERGE_DUPLICATES = "mergeDuplicates";
+
     public static final String ACTION_SET_SEND_TO_VOICEMAIL = "sendToVoicemail";
     public static final String EXTRA_SEND_TO_VOICEMAIL_FLAG = "sendToVoicemailFlag";
 
@@ -162,11 +191,15 @@ public class ContactSaveService extends IntentService {
 
     public static final String EXTRA_RESULT_CODE = "resultCode";
     public static final String EXTRA_RESULT_COUNT = "count";
+    public static final String EXTRA_RESULT_TOTAL = "total";
 
     public static final int CP2_ERROR = 0;
     public static final int CONTACTS_LINKED = 1;
     public static final int CONTACTS_SPLIT = 2;
     public static final int BAD_ARGUMENTS = 3;
+    public static final int CONTACTS_DELETE_PROGRESS = 4;
+    public static final int CONTACTS_DELETED = 5;
+    public static final int DUPLICATES_MERGED = 6;
     public static final int RESULT_UNKNOWN = 0;
     public static final int RESULT_SUCCESS = 1;
     public static final int RESULT_FAILURE = 2;
@@ -195,6 +228,50 @@ public class ContactSaveService extends IntentService {
 
     private static final int MAX_CONTACTS_PROVIDER_BATCH_SIZE = 499;
 
+    /** Memory the key table of a duplicate scan may use, enough for about 50k contacts. */
+    private static final int DUPLICATE_SCAN_MEMORY_BUDGET_BYTES = 4 * 1024 * 1024;
+
+    /** How many duplicate contacts one scheduled join of a duplicate merge may take. */
+    private static final int MAX_DUPLICATES_PER_JOIN = 100;
+
+    /** The smallest number of operations that saveContact applies in one batch. */
+    private static final int MIN_CONTACTS_PROVIDER_BATCH_SIZE = 50;
+
+    /**
+     * How long one batch of saveContact may hold the provider's database lock before other
+     * writers, like sync adapters, get a chance to write.
+     */
+    private static final long TARGET_BATCH_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /** Sizes the batches of saveContact, and its yield intervals, by how long batches take. */
+    private static final AdaptiveBatchSizer sBatchSizer = new AdaptiveBatchSizer(
+            MIN_CONTACTS_PROVIDER_BATCH_SIZE, MAX_CONTACTS_PROVIDER_BATCH_SIZE, TARGET_BATCH_NANOS);
+
+    /** Journal of unfinished saves in the files directory, see {@link SaveJournal}. */
+    private static final String SAVE_JOURNAL_FILE_NAME = "save_journal";
+
+    private static final String FAST_LANE_THREAD_NAME = TAG + "-fast";
+    private static final String HEAVY_LANE_THREAD_NAME = TAG + "-heavy";
+    private static final String SCAN_LANE_THREAD_NAME = TAG + "-scan";
+    private static final int LANE_KEEP_ALIVE_SECONDS = 10;
+
+    /**
+     * How long small updates are held back so that updates that follow in quick succession
+     * can be merged with them, see {@link ContactWriteCoalescer}.
+     */
+    private static final long COALESCE_WINDOW_MILLIS = 250;
+
+    /** Actions that update a single row and are run on the fast lane. */
+    private static final HashSet<String> FAST_LANE_ACTIONS = Sets.newHashSet(
+        ACTION_SET_STARRED,
+        ACTION_SET_SUPER_PRIMARY,
+        ACTION_CLEAR_PRIMARY,
+        ACTION_SET_SEND_TO_VOICEMAIL,
+        ACTION_SET_RINGTONE,
+        ACTION_DELETE_CONTACT,
+        ACTION_RENAME_GROUP
+    );
+
     public interface Listener {
         public void onServiceCompleted(Intent callbackIntent);
     }
@@ -205,13 +282,55 @@ public class ContactSaveService extends IntentService {
     // Holds the current state of the service
     private static final State sState = new State();
 
+    /** Latencies of the requests by action, kept across instances of the service. */
+    private static final ContactSaveMetrics sMetrics = new ContactSaveMetrics();
+
+    /** Action under which the saves resumed from the journal are measured. */
+    private static final String METRICS_RESUME_SAVES = "resumeSaves";
+
+    /** Action under which coalesced small updates are measured. */
+    private static final String METRICS_COALESCED_WRITES = "coalescedWrites";
+
     private Handler mMainHandler;
     private GroupsDao mGroupsDao;
     private SimContactDao mSimContactDao;
 
+    private ExecutorService mFastLane;
+    private ExecutorService mHeavyLane;
+    /** Runs duplicate scans, which read the whole book and are not ordered by the scheduler. */
+    private ExecutorService mScanLane;
+    private ContactSaveScheduler mScheduler;
+    private SaveJournal mJournal;
+
+    /**
+     * The saves that were resumed from the journal, or that it gave up. A redelivered request
+     * for one of them is ignored, so that it does not start over. Only accessed on the heavy
+     * lane.
+     */
+    private final HashSet<Long> mJournaledSaveIds = new HashSet<>();
+
+    /** The start id of the most recent request, only accessed on the main thread. */
+    private int mLastStartId;
+
+    /** The number of duplicate scans on the scan lane, only accessed on the main thread. */
+    private int mRunningScans;
+
+    /**
+     * Small updates that are held back to be merged, or null if there are none. Only accessed
+     * on the main thread.
+     */
+    private ContactWriteCoalescer mPendingWrites;
+
+    private final Runnable mSubmitPendingWrites = new Runnable() {
+        @Override
+        public void run() {
+            submitPendingWrites();
+            // If all of the requests were malformed, they have already been handled on their own
+            stopSelfIfIdle();
+        }
+    };
+
     public ContactSaveService() {
-        super(TAG);
-        setIntentRedelivery(true);
         mMainHandler = new Handler(Looper.getMainLooper());
     }
 
@@ -220,6 +339,78 @@ public class ContactSaveService extends IntentService {
         super.onCreate();
         mGroupsDao = new GroupsDaoImpl(this);
         mSimContactDao = SimContactDao.create(this);
+        mFastLane = newLane(FAST_LANE_THREAD_NAME);
+        mHeavyLane = newLane(HEAVY_LANE_THREAD_NAME);
+        mScanLane = newLane(SCAN_LANE_THREAD_NAME);
+        mScheduler = new ContactSaveScheduler(new ContactSaveScheduler.Callback() {
+            @Override
+            public void onIdle() {
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // A request may have arrived since the scheduler became idle, in which
+                        // case mLastStartId is newer and the service has to keep running.
+                        stopSelfIfIdle();
+                    }
+                });
+            }
+        });
+        mJournal = new SaveJournal(new File(getFilesDir(), SAVE_JOURNAL_FILE_NAME),
+                getAppVersionCode());
+        // Saves that an earlier process left unfinished go before any new request
+        final long receivedNanos = System.nanoTime();
+        mScheduler.submit(new Runnable() {
+            @Override
+            public void run() {
+                final long start = sMetrics.onRequestStarted(METRICS_RESUME_SAVES,
+                        receivedNanos);
+                try {
+                    resumeUnfinishedSaves();
+                } finally {
+                    sMetrics.onRequestFinished(start);
+                }
+            }
+        }, mHeavyLane, null);
+    }
+
+    @Override
+    public void onDestroy() {
+        mFastLane.shutdown();
+        mHeavyLane.shutdown();
+        mScanLane.shutdown();
+        super.onDestroy();
+    }
+
+    /** Stops the service once no request is queued, held back or scanning. */
+    private void stopSelfIfIdle() {
+        if (mScheduler.isIdle() && mPendingWrites == null && mRunningScans == 0) {
+            stopSelf(mLastStartId);
+        }
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("ContactSaveService:");
+        writer.println("  batch size: " + sBatchSizer.getBatchSize());
+        sMetrics.dump("  ", writer);
+    }
+
+    private static ExecutorService newLane(final String name) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+                LANE_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, name);
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
     public static void registerListener(Listener listener) {
@@ -296,17 +487,234 @@ public class ContactSaveService extends IntentService {
         return getApplicationContext().getSystemService(name);
     }
 
-    // Parent classes Javadoc says not to override this method but we're doing it just to update
-    // our state which should be OK since we're still doing the work in onHandleIntent
     @Override
-    public int onStartCommand(Intent intent, int flags, int startId) {
-        sState.onStart(intent);
+    public int onStartCommand(final Intent intent, int flags, int startId) {
+        final long receivedNanos = System.nanoTime();
+        mLastStartId = startId;
+        if (intent != null) {
+            sState.onStart(intent);
+            notifyStateChanged();
+        }
+        final String action = intent == null ? null : intent.getAction();
+        if (ContactWriteCoalescer.ACTIONS.contains(action)) {
+            if (mPendingWrites == null) {
+                mPendingWrites = new ContactWriteCoalescer();
+                mMainHandler.postDelayed(mSubmitPendingWrites, COALESCE_WINDOW_MILLIS);
+            }
+            if (mPendingWrites.add(intent)) {
+                return START_REDELIVER_INTENT;
+            }
+        }
+        if (mPendingWrites != null) {
+            // Updates that were held back must not be overtaken by later requests
+            mMainHandler.removeCallbacks(mSubmitPendingWrites);
+            submitPendingWrites();
+        }
+        if (ACTION_MERGE_DUPLICATES.equals(action)) {
+            // A scan reads the whole book and would be a barrier in the scheduler; only the
+            // joins it finds are ordered with the other requests, see mergeDuplicates.
+            mRunningScans++;
+            mScanLane.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final long start = sMetrics.onRequestStarted(action, receivedNanos);
+                    try {
+                        onHandleIntent(intent);
+                    } finally {
+                        sMetrics.onRequestFinished(start);
+                        mMainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                mRunningScans--;
+                                stopSelfIfIdle();
+                            }
+                        });
+                    }
+                }
+            });
+            return START_REDELIVER_INTENT;
+        }
+        mScheduler.submit(new Runnable() {
+            @Override
+            public void run() {
+                final long start = sMetrics.onRequestStarted(action, receivedNanos);
+                try {
+                    onHandleIntent(intent);
+                } finally {
+                    sMetrics.onRequestFinished(start);
+                }
+            }
+        }, FAST_LANE_ACTIONS.contains(action) ? mFastLane : mHeavyLane, getOrderingKeys(intent));
+        // Requests that were not finished when the process died are delivered again.
+        return START_REDELIVER_INTENT;
+    }
+
+    /**
+     * Hands the small updates that were held back to the fast lane, to be applied as one batch.
+     */
+    private void submitPendingWrites() {
+        final ContactWriteCoalescer writes = mPendingWrites;
+        mPendingWrites = null;
+        if (writes == null || writes.isEmpty()) {
+            return;
+        }
+        HashSet<String> keys = new HashSet<>();
+        for (Intent request : writes.getRequests()) {
+            final Set<String> requestKeys = getOrderingKeys(request);
+            if (requestKeys == null) {
+                // The batch has to wait for all earlier requests
+                keys = null;
+                break;
+            }
+            keys.addAll(requestKeys);
+        }
+        final long receivedNanos = System.nanoTime();
+        mScheduler.submit(new Runnable() {
+            @Override
+            public void run() {
+                final long start = sMetrics.onRequestStarted(METRICS_COALESCED_WRITES,
+                        receivedNanos);
+                try {
+                    applyPendingWrites(writes);
+                } finally {
+                    sMetrics.onRequestFinished(start);
+                }
+            }
+        }, mFastLane, keys);
+    }
+
+    private void applyPendingWrites(ContactWriteCoalescer writes) {
+        if (!PermissionsUtil.hasPermission(this, WRITE_CONTACTS)) {
+            Log.w(TAG, "No WRITE_CONTACTS permission, unable to write to CP2");
+            showToast(R.string.contactSavedErrorToast);
+        } else {
+            final int applied = writes.apply(getContentResolver());
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Merged " + writes.getRequests().size() + " updates into "
+                        + applied + " operations");
+            }
+        }
+        for (Intent request : writes.getRequests()) {
+            sState.onFinish(request);
+        }
         notifyStateChanged();
-        return super.onStartCommand(intent, flags, startId);
     }
 
-    @Override
-    protected void onHandleIntent(final Intent intent) {
+    /**
+     * Returns the rows that the request touches, as keys for {@link ContactSaveScheduler}, or
+     * null if they are not known and the request has to be ordered after all earlier ones.
+     */
+    private static Set<String> getOrderingKeys(Intent intent) {
+        if (intent == null || intent.getAction() == null) {
+            return Collections.emptySet();
+        }
+        final HashSet<String> keys = new HashSet<>();
+        switch (intent.getAction()) {
+            case ACTION_NEW_RAW_CONTACT:
+                // Only touches the raw contact it creates
+                break;
+            case ACTION_SAVE_CONTACT: {
+                final RawContactDeltaList state = intent.getParcelableExtra(EXTRA_CONTACT_STATE);
+                if (state == null) {
+                    break;
+                }
+                for (RawContactDelta delta : state) {
+                    final Long rawContactId = delta.getRawContactId();
+                    if (rawContactId != null && rawContactId > 0) {
+                        keys.add("raw:" + rawContactId);
+                    }
+                    final Long contactId = delta.getValues().getAsLong(RawContacts.CONTACT_ID);
+                    if (contactId != null) {
+                        keys.add("contact:" + contactId);
+                    }
+                    for (ContentValues values : delta.getContentValues()) {
+                        final Long dataId = values.getAsLong(Data._ID);
+                        if (dataId != null && dataId > 0) {
+                            keys.add("data:" + dataId);
+                        }
+                    }
+                }
+                break;
+            }
+            case ACTION_CREATE_GROUP:
+                addKeys(keys, "raw:", intent.getLongArrayExtra(EXTRA_RAW_CONTACTS_TO_ADD));
+                break;
+            case ACTION_RENAME_GROUP:
+            case ACTION_DELETE_GROUP:
+                keys.add("group:" + intent.getLongExtra(EXTRA_GROUP_ID, -1));
+                break;
+            case ACTION_UPDATE_GROUP:
+                keys.add("group:" + intent.getLongExtra(EXTRA_GROUP_ID, -1));
+                addKeys(keys, "raw:", intent.getLongArrayExtra(EXTRA_RAW_CONTACTS_TO_ADD));
+                addKeys(keys, "raw:", intent.getLongArrayExtra(EXTRA_RAW_CONTACTS_TO_REMOVE));
+                break;
+            case ACTION_SET_STARRED:
+            case ACTION_DELETE_CONTACT:
+            case ACTION_SET_SEND_TO_VOICEMAIL:
+            case ACTION_SET_RINGTONE: {
+                final String key = getContactKey(
+                        (Uri) intent.getParcelableExtra(EXTRA_CONTACT_URI));
+                if (key == null) {
+                    return null;
+                }
+                keys.add(key);
+                break;
+            }
+            case ACTION_SET_SUPER_PRIMARY:
+            case ACTION_CLEAR_PRIMARY:
+                keys.add("data:" + intent.getLongExtra(EXTRA_DATA_ID, -1));
+                break;
+            case ACTION_DELETE_MULTIPLE_CONTACTS:
+            case ACTION_JOIN_SEVERAL_CONTACTS:
+                addKeys(keys, "contact:", intent.getLongArrayExtra(EXTRA_CONTACT_IDS));
+                break;
+            case ACTION_JOIN_CONTACTS:
+                keys.add("contact:" + intent.getLongExtra(EXTRA_CONTACT_ID1, -1));
+                keys.add("contact:" + intent.getLongExtra(EXTRA_CONTACT_ID2, -1));
+                break;
+            case ACTION_SPLIT_CONTACT: {
+                final long[][] rawContactIds =
+                        (long[][]) intent.getSerializableExtra(EXTRA_RAW_CONTACT_IDS);
+                if (rawContactIds == null) {
+                    break;
+                }
+                for (long[] ids : rawContactIds) {
+                    addKeys(keys, "raw:", ids);
+                }
+                break;
+            }
+            default:
+                // Undo and sleep requests, and any request added without ordering keys
+                return null;
+        }
+        return keys;
+    }
+
+    private static void addKeys(Set<String> keys, String prefix, long[] ids) {
+        if (ids == null) {
+            return;
+        }
+        for (long id : ids) {
+            keys.add(prefix + id);
+        }
+    }
+
+    /**
+     * Returns the ordering key of the contact with the given URI, or null if the URI does not
+     * name the contact by id.
+     */
+    private static String getContactKey(Uri contactUri) {
+        if (contactUri == null) {
+            return null;
+        }
+        try {
+            return "contact:" + Long.parseLong(contactUri.getLastPathSegment());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void onHandleIntent(final Intent intent) {
         if (intent == null) {
             if (Log.isLoggable(TAG, Log.DEBUG)) {
                 Log.d(TAG, "onHandleIntent: could not handle null intent");
@@ -327,7 +735,7 @@ public class ContactSaveService extends IntentService {
         if (ACTION_NEW_RAW_CONTACT.equals(action)) {
             createRawContact(intent);
         } else if (ACTION_SAVE_CONTACT.equals(action)) {
-            saveContact(intent);
+            saveContact(intent, /* resumed = */ null);
         } else if (ACTION_CREATE_GROUP.equals(action)) {
             createGroup(intent);
         } else if (ACTION_RENAME_GROUP.equals(action)) {
@@ -352,6 +760,8 @@ public class ContactSaveService extends IntentService {
             joinContacts(intent);
         } else if (ACTION_JOIN_SEVERAL_CONTACTS.equals(action)) {
             joinSeveralContacts(intent);
+        } else if (ACTION_MERGE_DUPLICATES.equals(action)) {
+            mergeDuplicates(intent);
         } else if (ACTION_SET_SEND_TO_VOICEMAIL.equals(action)) {
             setSendToVoicemail(intent);
         } else if (ACTION_SET_RINGTONE.equals(action)) {
@@ -420,7 +830,7 @@ public class ContactSaveService extends IntentService {
         ContentResolver resolver = getContentResolver();
         ContentProviderResult[] results;
         try {
-            results = resolver.applyBatch(ContactsContract.AUTHORITY, operations);
+            results = applyBatch(resolver, operations);
         } catch (Exception e) {
             throw new RuntimeException("Failed to store new contact", e);
         }
@@ -470,6 +880,8 @@ public class ContactSaveService extends IntentService {
         serviceIntent.putExtra(EXTRA_CONTACT_STATE, (Parcelable) state);
         serviceIntent.putExtra(EXTRA_SAVE_IS_PROFILE, isProfile);
         serviceIntent.putExtra(EXTRA_SAVE_MODE, saveMode);
+        serviceIntent.putExtra(EXTRA_SAVE_REQUEST_ID,
+                UUID.randomUUID().getLeastSignificantBits());
 
         if (updatedPhotos != null) {
             serviceIntent.putExtra(EXTRA_UPDATED_PHOTOS, (Parcelable) updatedPhotos);
@@ -490,7 +902,42 @@ public class ContactSaveService extends IntentService {
         return serviceIntent;
     }
 
-    private void saveContact(Intent intent) {
+    /** Returns the version code of the app, or 0 if it cannot be read. */
+    private long getAppVersionCode() {
+        try {
+            return getPackageManager().getPackageInfo(getPackageName(), 0).getLongVersionCode();
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.wtf(TAG, "Invalid package name for context", e);
+            return 0;
+        }
+    }
+
+    /**
+     * Resumes the saves that were left unfinished when an earlier process died, from the first
+     * batch that was not committed.
+     */
+    private void resumeUnfinishedSaves() {
+        final List<SaveJournal.Entry> unfinished = mJournal.open(getClassLoader());
+        mJournaledSaveIds.addAll(mJournal.getDroppedRequestIds());
+        if (unfinished.isEmpty() || !PermissionsUtil.hasPermission(this, WRITE_CONTACTS)) {
+            return;
+        }
+        for (SaveJournal.Entry entry : unfinished) {
+            Log.i(TAG, "Resuming save " + entry.requestId + " after "
+                    + entry.committedOperations + " committed operations");
+            mJournaledSaveIds.add(entry.requestId);
+            saveContact(new Intent(this, ContactSaveService.class)
+                    .setAction(ACTION_SAVE_CONTACT)
+                    .putExtras(entry.request)
+                    .putExtra(EXTRA_SAVE_REQUEST_ID, entry.requestId), entry);
+        }
+    }
+
+    /**
+     * @param resumed The journal entry of the save if it is resumed after the process died, or
+     *     null for a new request
+     */
+    private void saveContact(Intent intent, SaveJournal.Entry resumed) {
         RawContactDeltaList state = intent.getParcelableExtra(EXTRA_CONTACT_STATE);
         boolean isProfile = intent.getBooleanExtra(EXTRA_SAVE_IS_PROFILE, false);
         Bundle updatedPhotos = intent.getParcelableExtra(EXTRA_UPDATED_PHOTOS);
@@ -500,11 +947,49 @@ public class ContactSaveService extends IntentService {
             return;
         }
 
+        long requestId = intent.getLongExtra(EXTRA_SAVE_REQUEST_ID, 0);
+        if (resumed == null && mJournaledSaveIds.contains(requestId)) {
+            // The request was delivered again after the process died, and was already resumed
+            // or given up
+            Log.i(TAG, "Ignoring redelivered save " + requestId);
+            return;
+        }
+        if (requestId == 0) {
+            requestId = UUID.randomUUID().getLeastSignificantBits();
+        }
+
         int saveMode = intent.getIntExtra(EXTRA_SAVE_MODE, -1);
         // Trim any empty fields, and RawContacts, before persisting
         final AccountTypeManager accountTypes = AccountTypeManager.getInstance(this);
         RawContactModifier.trimEmpty(state, accountTypes);
 
+        int committedOperations = 0;
+        if (resumed == null) {
+            mJournal.begin(requestId, buildJournalRequest(state, isProfile, saveMode,
+                    updatedPhotos));
+        } else if (resumed.committedOperations == 0 && isSaveOutdated(state, isProfile)) {
+            // Either the save was applied just before the process died, or the raw contacts
+            // were changed since. Applying the save again would duplicate its inserts.
+            Log.i(TAG, "Dropping save " + requestId + " of outdated raw contacts");
+            mJournal.end(requestId);
+            return;
+        } else {
+            committedOperations = resumed.committedOperations;
+        }
+        try {
+            saveContact(intent, state, isProfile, saveMode, updatedPhotos, requestId,
+                    committedOperations);
+        } finally {
+            mJournal.end(requestId);
+        }
+    }
+
+    /**
+     * Applies a save in batches, starting after the {@code committedOperations} operations that
+     * were already committed, and records every committed batch in the journal.
+     */
+    private void saveContact(Intent intent, RawContactDeltaList state, boolean isProfile,
+            int saveMode, Bundle updatedPhotos, long requestId, int committedOperations) {
         Uri lookupUri = null;
 
         final ContentResolver resolver = getContentResolver();
@@ -519,7 +1004,16 @@ public class ContactSaveService extends IntentService {
         while (tries++ < PERSIST_TRIES) {
             try {
                 // Build operations and try applying
-                final ArrayList<CPOWrapper> diffWrapper = state.buildDiffWrapper();
+                final int batchSize = sBatchSizer.getBatchSize();
+                final ArrayList<CPOWrapper> diffWrapper;
+                Trace.beginSection("buildDiff");
+                try {
+                    final long buildStart = System.nanoTime();
+                    diffWrapper = state.buildDiffWrapper(batchSize);
+                    sMetrics.current().buildDiff.record(System.nanoTime() - buildStart);
+                } finally {
+                    Trace.endSection();
+                }
 
                 final ArrayList<ContentProviderOperation> diff = Lists.newArrayList();
 
@@ -534,22 +1028,29 @@ public class ContactSaveService extends IntentService {
                     }
                 }
 
-                int numberProcessed = 0;
-                boolean batchFailed = false;
-                final ContentProviderResult[] results = new ContentProviderResult[diff.size()];
-                while (numberProcessed < diff.size()) {
-                    final int subsetCount = applyDiffSubset(diff, numberProcessed, results, resolver);
-                    if (subsetCount == -1) {
-                        Log.w(TAG, "Resolver.applyBatch failed in saveContacts");
-                        batchFailed = true;
-                        break;
-                    } else {
-                        numberProcessed += subsetCount;
-                    }
+                // Back references only resolve within one batch, so a diff that has them is only
+                // split where the provider requires it.
+                final boolean hasBackReferences = hasBackReferences(diffWrapper);
+                final int subsetSize = hasBackReferences
+                        ? MAX_CONTACTS_PROVIDER_BATCH_SIZE : batchSize;
+                if (hasBackReferences && committedOperations > 0) {
+                    // The results that later batches refer to are gone
+                    Log.e(TAG, "Unable to resume save " + requestId + " of a new raw contact");
+                    break;
                 }
-
-                if (batchFailed) {
-                    // Retry save
+                // The diff only depends on the state, and the batch size only moves the yield
+                // points, so operations that were committed before keep their position.
+                final ContentProviderResult[] results = new ContentProviderResult[diff.size()];
+                final int numberProcessed = applyDiffInBatches(resolver, diff,
+                        committedOperations, subsetSize, results, mJournal, requestId);
+
+                if (numberProcessed < diff.size()) {
+                    Log.w(TAG, "Resolver.applyBatch failed in saveContacts");
+                    sBatchSizer.onBatchFailed();
+                    sMetrics.current().retries.incrementAndGet();
+                    // Retry save from the first batch that was not committed. A diff with back
+                    // references cannot be resumed, which the next attempt reports.
+                    committedOperations = numberProcessed;
                     continue;
                 }
 
@@ -605,6 +1106,7 @@ public class ContactSaveService extends IntentService {
 
             } catch (OperationApplicationException e) {
                 // Version consistency failed, re-parent change and try again
+                sMetrics.current().retries.incrementAndGet();
                 Log.w(TAG, "Version consistency failed, re-parenting: " + e.toString());
                 final StringBuilder sb = new StringBuilder(RawContacts._ID + " IN(");
                 boolean first = true;
@@ -639,6 +1141,11 @@ public class ContactSaveService extends IntentService {
                         delta.setProfileQueryUri();
                     }
                 }
+
+                // The re-parented state builds a new diff, which is journaled from the start
+                committedOperations = 0;
+                mJournal.begin(requestId, buildJournalRequest(state, isProfile, saveMode,
+                        updatedPhotos));
             }
         }
 
@@ -675,29 +1182,138 @@ public class ContactSaveService extends IntentService {
         }
     }
 
+    private static Bundle buildJournalRequest(RawContactDeltaList state, boolean isProfile,
+            int saveMode, Bundle updatedPhotos) {
+        final Bundle request = new Bundle();
+        request.putParcelable(EXTRA_CONTACT_STATE, state);
+        request.putBoolean(EXTRA_SAVE_IS_PROFILE, isProfile);
+        request.putInt(EXTRA_SAVE_MODE, saveMode);
+        if (updatedPhotos != null) {
+            request.putParcelable(EXTRA_UPDATED_PHOTOS, updatedPhotos);
+        }
+        return request;
+    }
+
     /**
-     * Splits "diff" into subsets based on "MAX_CONTACTS_PROVIDER_BATCH_SIZE", applies each of the
-     * subsets, adds the returned array to "results".
+     * Returns true if any existing raw contact of the state no longer has the version that the
+     * state was read at, or no longer exists.
+     */
+    private boolean isSaveOutdated(RawContactDeltaList state, boolean isProfile) {
+        final HashMap<Long, Long> versions = new HashMap<>();
+        for (RawContactDelta delta : state) {
+            final Long rawContactId = delta.getRawContactId();
+            final Long version = delta.getValues().getAsLong(RawContacts.VERSION);
+            if (rawContactId != null && rawContactId > 0 && version != null) {
+                versions.put(rawContactId, version);
+            }
+        }
+        if (versions.isEmpty()) {
+            return false;
+        }
+        final Cursor c = getContentResolver().query(
+                isProfile ? Profile.CONTENT_RAW_CONTACTS_URI : RawContacts.CONTENT_URI,
+                new String[] {RawContacts._ID, RawContacts.VERSION},
+                RawContacts._ID + " IN (" + TextUtils.join(",", versions.keySet()) + ")",
+                null, null);
+        if (c == null) {
+            return false;
+        }
+        int current = 0;
+        try {
+            while (c.moveToNext()) {
+                final Long version = versions.get(c.getLong(0));
+                if (version != null && version == c.getLong(1)) {
+                    current++;
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return current < versions.size();
+    }
+
+    /**
+     * Applies the operations of "diff" from "offset" on in subsets of at most "subsetSize"
+     * operations, adds the results to "results" and records every committed subset in the
+     * journal.
+     * <p>
+     * The version assertions of a save are all in its first subset, so an
+     * {@link OperationApplicationException} from that subset means the raw contacts changed and
+     * is thrown for the caller to re-parent the save. A later subset failing does not mean
+     * that, and re-parenting then would insert the rows of the committed subsets again, as
+     * they have no ids in the state. The committed operations are returned instead, so that
+     * the caller retries the rest.
+     *
+     * @return the number of operations of "diff" that are committed, which is less than its
+     * size if a subset failed.
+     */
+    @VisibleForTesting
+    static int applyDiffInBatches(ContentResolver resolver,
+            ArrayList<ContentProviderOperation> diff, int offset, int subsetSize,
+            ContentProviderResult[] results, SaveJournal journal, long requestId)
+            throws RemoteException, OperationApplicationException {
+        int numberProcessed = offset;
+        while (numberProcessed < diff.size()) {
+            final int subsetCount;
+            try {
+                subsetCount = applyDiffSubset(diff, numberProcessed, subsetSize, results,
+                        resolver);
+            } catch (OperationApplicationException e) {
+                if (numberProcessed == 0) {
+                    throw e;
+                }
+                Log.w(TAG, "Batch at " + numberProcessed + " failed after earlier batches were"
+                        + " committed: " + e.toString());
+                return numberProcessed;
+            }
+            if (subsetCount == -1) {
+                return numberProcessed;
+            }
+            numberProcessed += subsetCount;
+            journal.commit(requestId, numberProcessed);
+        }
+        return numberProcessed;
+    }
+
+    /**
+     * Splits "diff" into subsets of at most "subsetSize" operations, applies the subset that
+     * starts at "offset", adds the returned array to "results". The time the subset took is fed
+     * back into the batch size of later saves.
      *
      * @return the size of the array, if not null; -1 when the array is null.
      */
-    private int applyDiffSubset(ArrayList<ContentProviderOperation> diff, int offset,
-            ContentProviderResult[] results, ContentResolver resolver)
+    private static int applyDiffSubset(ArrayList<ContentProviderOperation> diff, int offset,
+            int subsetSize, ContentProviderResult[] results, ContentResolver resolver)
             throws RemoteException, OperationApplicationException {
-        final int subsetCount = Math.min(diff.size() - offset, MAX_CONTACTS_PROVIDER_BATCH_SIZE);
+        final int subsetCount = Math.min(diff.size() - offset, subsetSize);
         final ArrayList<ContentProviderOperation> subset = new ArrayList<>();
         subset.addAll(diff.subList(offset, offset + subsetCount));
-        final ContentProviderResult[] subsetResult = resolver.applyBatch(ContactsContract
-                .AUTHORITY, subset);
+        final long start = System.nanoTime();
+        final ContentProviderResult[] subsetResult = applyBatch(resolver, subset);
         if (subsetResult == null || (offset + subsetResult.length) > results.length) {
             return -1;
         }
+        sBatchSizer.onBatchApplied(subsetCount, System.nanoTime() - start);
         for (ContentProviderResult c : subsetResult) {
             results[offset++] = c;
         }
         return subsetResult.length;
     }
 
+    /**
+     * Returns true if the diff inserts a raw contact. The operations for its data then refer
+     * to the result of the insert, which only works within the same batch.
+     */
+    private static boolean hasBackReferences(ArrayList<CPOWrapper> diffWrapper) {
+        for (CPOWrapper cpoWrapper : diffWrapper) {
+            if (CompatUtils.isInsertCompat(cpoWrapper) && cpoWrapper.getOperation().getUri()
+                    .getEncodedPath().contains(RawContacts.CONTENT_URI.getEncodedPath())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Save updated photo for the specified raw-contact.
      * @return true for success, false for failure
@@ -797,7 +1413,7 @@ public class ContactSaveService extends IntentService {
         }
 
         // Add new group members
-        addMembersToGroup(resolver, rawContactsToAdd, ContentUris.parseId(groupUri));
+        updateGroupMembers(resolver, ContentUris.parseId(groupUri), rawContactsToAdd, null);
 
         ContentValues values = new ContentValues();
         // TODO: Move this into the contact editor where it belongs. This needs to be integrated
@@ -951,82 +1567,160 @@ public class ContactSaveService extends IntentService {
         }
 
         // Add and remove members if necessary
-        addMembersToGroup(resolver, rawContactsToAdd, groupId);
-        removeMembersFromGroup(resolver, rawContactsToRemove, groupId);
+        updateGroupMembers(resolver, groupId, rawContactsToAdd, rawContactsToRemove);
 
         Intent callbackIntent = intent.getParcelableExtra(EXTRA_CALLBACK_INTENT);
         callbackIntent.setData(groupUri);
         deliverCallback(callbackIntent);
     }
 
-    private void addMembersToGroup(ContentResolver resolver, long[] rawContactsToAdd,
-            long groupId) {
-        if (rawContactsToAdd == null) {
+    /**
+     * Adds and removes members of a group. The current members are loaded once, so that only
+     * raw contacts whose membership changes get an operation, and the changes are applied in as
+     * few batches as the provider allows. A raw contact that is both added and removed ends up
+     * removed.
+     */
+    private void updateGroupMembers(ContentResolver resolver, long groupId,
+            long[] rawContactsToAdd, long[] rawContactsToRemove) {
+        if ((rawContactsToAdd == null || rawContactsToAdd.length == 0)
+                && (rawContactsToRemove == null || rawContactsToRemove.length == 0)) {
             return;
         }
-        for (long rawContactId : rawContactsToAdd) {
-            try {
-                final ArrayList<ContentProviderOperation> rawContactOperations =
-                        new ArrayList<ContentProviderOperation>();
-
-                // Build an assert operation to ensure the contact is not already in the group
-                final ContentProviderOperation.Builder assertBuilder = ContentProviderOperation
-                        .newAssertQuery(Data.CONTENT_URI);
-                assertBuilder.withSelection(Data.RAW_CONTACT_ID + "=? AND " +
-                        Data.MIMETYPE + "=? AND " + GroupMembership.GROUP_ROW_ID + "=?",
-                        new String[] { String.valueOf(rawContactId),
-                        GroupMembership.CONTENT_ITEM_TYPE, String.valueOf(groupId)});
-                assertBuilder.withExpectedCount(0);
-                rawContactOperations.add(assertBuilder.build());
-
-                // Build an insert operation to add the contact to the group
-                final ContentProviderOperation.Builder insertBuilder = ContentProviderOperation
-                        .newInsert(Data.CONTENT_URI);
-                insertBuilder.withValue(Data.RAW_CONTACT_ID, rawContactId);
-                insertBuilder.withValue(Data.MIMETYPE, GroupMembership.CONTENT_ITEM_TYPE);
-                insertBuilder.withValue(GroupMembership.GROUP_ROW_ID, groupId);
-                rawContactOperations.add(insertBuilder.build());
-
-                if (DEBUG) {
-                    for (ContentProviderOperation operation : rawContactOperations) {
-                        Log.v(TAG, operation.toString());
-                    }
+        final long[] members = queryGroupMembers(resolver, groupId);
+        if (members == null) {
+            Log.e(TAG, "Unable to load members of group " + groupId);
+            return;
+        }
+        final long[] toAdd = toSortedSet(rawContactsToAdd);
+        final long[] toRemove = toSortedSet(rawContactsToRemove);
+
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (long rawContactId : toAdd) {
+            if (Arrays.binarySearch(members, rawContactId) < 0
+                    && Arrays.binarySearch(toRemove, rawContactId) < 0) {
+                operations.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                        .withValue(Data.RAW_CONTACT_ID, rawContactId)
+                        .withValue(Data.MIMETYPE, GroupMembership.CONTENT_ITEM_TYPE)
+                        .withValue(GroupMembership.GROUP_ROW_ID, groupId)
+                        .build());
+            }
+        }
+        // Remove the members in chunks, each with a single delete
+        final StringBuilder ids = new StringBuilder();
+        int chunkSize = 0;
+        for (int i = 0; i < toRemove.length; i++) {
+            if (Arrays.binarySearch(members, toRemove[i]) >= 0) {
+                if (chunkSize > 0) {
+                    ids.append(',');
                 }
+                ids.append(toRemove[i]);
+                chunkSize++;
+            }
+            if (chunkSize > 0 && (chunkSize == MAX_CONTACTS_PROVIDER_BATCH_SIZE
+                    || i == toRemove.length - 1)) {
+                operations.add(ContentProviderOperation.newDelete(Data.CONTENT_URI)
+                        .withSelection(Data.RAW_CONTACT_ID + " IN (" + ids + ") AND "
+                                + Data.MIMETYPE + "=? AND " + GroupMembership.GROUP_ROW_ID + "=?",
+                                new String[] { GroupMembership.CONTENT_ITEM_TYPE,
+                                        String.valueOf(groupId)})
+                        .build());
+                ids.setLength(0);
+                chunkSize = 0;
+            }
+        }
 
-                // Apply batch
-                if (!rawContactOperations.isEmpty()) {
-                    resolver.applyBatch(ContactsContract.AUTHORITY, rawContactOperations);
+        if (DEBUG) {
+            for (ContentProviderOperation operation : operations) {
+                Log.v(TAG, operation.toString());
+            }
+        }
+
+        // The maximum number of operations per batch (aka yield point) is 500. See b/22480225
+        final int batchSize = MAX_CONTACTS_PROVIDER_BATCH_SIZE;
+        for (int offset = 0; offset < operations.size(); offset += batchSize) {
+            final ArrayList<ContentProviderOperation> batch = new ArrayList<>(
+                    operations.subList(offset, Math.min(operations.size(), offset + batchSize)));
+            try {
+                applyBatch(resolver, batch);
+            } catch (OperationApplicationException e) {
+                // One of the raw contacts may have been deleted meanwhile; don't let it keep
+                // the others of the batch out of the group
+                Log.w(TAG, "Problem persisting members of group " + groupId
+                        + ", retrying one by one", e);
+                if (!applyOperationsOneByOne(resolver, batch, groupId)) {
+                    return;
                 }
             } catch (RemoteException e) {
                 // Something went wrong, bail without success
                 FeedbackHelper.sendFeedback(this, TAG,
-                        "Problem persisting user edits for raw contact ID " +
-                                String.valueOf(rawContactId), e);
+                        "Problem persisting members of group " + groupId, e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Applies each of the group membership operations in a batch of its own, skipping those
+     * that fail. Returns false if the provider could not be reached.
+     */
+    private boolean applyOperationsOneByOne(ContentResolver resolver,
+            ArrayList<ContentProviderOperation> operations, long groupId) {
+        int failed = 0;
+        for (ContentProviderOperation operation : operations) {
+            final ArrayList<ContentProviderOperation> single = new ArrayList<>(1);
+            single.add(operation);
+            try {
+                applyBatch(resolver, single);
             } catch (OperationApplicationException e) {
-                // The assert could have failed because the contact is already in the group,
-                // just continue to the next contact
+                failed++;
+                Log.w(TAG, "Skipping group membership operation " + operation, e);
+            } catch (RemoteException e) {
                 FeedbackHelper.sendFeedback(this, TAG,
-                        "Assert failed in adding raw contact ID " +
-                                String.valueOf(rawContactId) + ". Already exists in group " +
-                                String.valueOf(groupId), e);
+                        "Problem persisting members of group " + groupId, e);
+                return false;
             }
         }
+        if (failed > 0) {
+            Log.e(TAG, failed + " of " + operations.size()
+                    + " membership changes of group " + groupId + " failed");
+        }
+        return true;
     }
 
-    private static void removeMembersFromGroup(ContentResolver resolver, long[] rawContactsToRemove,
-            long groupId) {
-        if (rawContactsToRemove == null) {
-            return;
+    /** Returns the sorted ids of the raw contacts in the group, or null on failure. */
+    private static long[] queryGroupMembers(ContentResolver resolver, long groupId) {
+        final Cursor c = resolver.query(Data.CONTENT_URI, new String[] {Data.RAW_CONTACT_ID},
+                Data.MIMETYPE + "=? AND " + GroupMembership.GROUP_ROW_ID + "=?",
+                new String[] { GroupMembership.CONTENT_ITEM_TYPE, String.valueOf(groupId)},
+                null);
+        if (c == null) {
+            return null;
         }
-        for (long rawContactId : rawContactsToRemove) {
-            // Apply the delete operation on the data row for the given raw contact's
-            // membership in the given group. If no contact matches the provided selection, then
-            // nothing will be done. Just continue to the next contact.
-            resolver.delete(Data.CONTENT_URI, Data.RAW_CONTACT_ID + "=? AND " +
-                    Data.MIMETYPE + "=? AND " + GroupMembership.GROUP_ROW_ID + "=?",
-                    new String[] { String.valueOf(rawContactId),
-                    GroupMembership.CONTENT_ITEM_TYPE, String.valueOf(groupId)});
+        try {
+            final long[] members = new long[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                members[i] = c.getLong(0);
+            }
+            return toSortedSet(members);
+        } finally {
+            c.close();
+        }
+    }
+
+    /** Returns the distinct values of {@code ids} in ascending order. */
+    private static long[] toSortedSet(long[] ids) {
+        if (ids == null || ids.length == 0) {
+            return new long[0];
+        }
+        final long[] sorted = ids.clone();
+        Arrays.sort(sorted);
+        int size = 1;
+        for (int i = 1; i < sorted.length; i++) {
+            if (sorted[i] != sorted[size - 1]) {
+                sorted[size++] = sorted[i];
+            }
         }
+        return Arrays.copyOf(sorted, size);
     }
 
     /**
@@ -1187,10 +1881,24 @@ public class ContactSaveService extends IntentService {
      */
     public static Intent createDeleteMultipleContactsIntent(Context context,
             long[] contactIds, final String[] names) {
+        return createDeleteMultipleContactsIntent(context, contactIds, names,
+                /* receiver = */ null);
+    }
+
+    /**
+     * Creates an intent that can be sent to this service to delete multiple contacts.
+     * {@param receiver} is sent {@link #CONTACTS_DELETE_PROGRESS} after each batch of deletions,
+     * then {@link #CONTACTS_DELETED}, with the number of contacts deleted so far in
+     * {@link #EXTRA_RESULT_COUNT} and the number of contacts to delete in
+     * {@link #EXTRA_RESULT_TOTAL}.
+     */
+    public static Intent createDeleteMultipleContactsIntent(Context context,
+            long[] contactIds, final String[] names, ResultReceiver receiver) {
         Intent serviceIntent = new Intent(context, ContactSaveService.class);
         serviceIntent.setAction(ContactSaveService.ACTION_DELETE_MULTIPLE_CONTACTS);
         serviceIntent.putExtra(ContactSaveService.EXTRA_CONTACT_IDS, contactIds);
         serviceIntent.putExtra(ContactSaveService.EXTRA_DISPLAY_NAME_ARRAY, names);
+        serviceIntent.putExtra(ContactSaveService.EXTRA_RESULT_RECEIVER, receiver);
         return serviceIntent;
     }
 
@@ -1206,13 +1914,38 @@ public class ContactSaveService extends IntentService {
 
     private void deleteMultipleContacts(Intent intent) {
         final long[] contactIds = intent.getLongArrayExtra(EXTRA_CONTACT_IDS);
+        final ResultReceiver receiver = intent.getParcelableExtra(EXTRA_RESULT_RECEIVER);
         if (contactIds == null) {
             Log.e(TAG, "Invalid arguments for deleteMultipleContacts request");
+            if (receiver != null) {
+                receiver.send(BAD_ARGUMENTS, new Bundle());
+            }
             return;
         }
-        for (long contactId : contactIds) {
-            final Uri contactUri = ContentUris.withAppendedId(Contacts.CONTENT_URI, contactId);
-            getContentResolver().delete(contactUri, null, null);
+        // Delete the contacts in as few transactions as possible, so that the provider updates
+        // aggregation and notifies observers once per batch rather than once per contact.
+        final ContentResolver resolver = getContentResolver();
+        final int batchSize = MAX_CONTACTS_PROVIDER_BATCH_SIZE;
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>(
+                Math.min(contactIds.length, batchSize));
+        int deleted = 0;
+        for (int offset = 0; offset < contactIds.length; offset += batchSize) {
+            final int end = Math.min(contactIds.length, offset + batchSize);
+            operations.clear();
+            for (int i = offset; i < end; i++) {
+                operations.add(ContentProviderOperation.newDelete(
+                        ContentUris.withAppendedId(Contacts.CONTENT_URI, contactIds[i]))
+                        .build());
+            }
+            deleteContactsBatch(resolver, operations);
+            deleted = end;
+            if (receiver != null && deleted < contactIds.length) {
+                receiver.send(CONTACTS_DELETE_PROGRESS,
+                        createDeleteProgress(deleted, contactIds.length));
+            }
+        }
+        if (receiver != null) {
+            receiver.send(CONTACTS_DELETED, createDeleteProgress(deleted, contactIds.length));
         }
         final String[] names = intent.getStringArrayExtra(
                 ContactSaveService.EXTRA_DISPLAY_NAME_ARRAY);
@@ -1244,6 +1977,31 @@ public class ContactSaveService extends IntentService {
         });
     }
 
+    /**
+     * Applies a batch of contact deletions in one transaction. If the batch cannot be applied,
+     * falls back to deleting the contacts one at a time so that a single bad contact does not
+     * keep the others from being deleted.
+     */
+    private void deleteContactsBatch(ContentResolver resolver,
+            ArrayList<ContentProviderOperation> operations) {
+        try {
+            applyBatch(resolver, operations);
+            return;
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.w(TAG, "Failed to apply contact deletion batch, deleting one by one", e);
+        }
+        for (ContentProviderOperation operation : operations) {
+            resolver.delete(operation.getUri(), null, null);
+        }
+    }
+
+    private static Bundle createDeleteProgress(int deleted, int total) {
+        final Bundle result = new Bundle();
+        result.putInt(EXTRA_RESULT_COUNT, deleted);
+        result.putInt(EXTRA_RESULT_TOTAL, total);
+        return result;
+    }
+
     /**
      * Creates an intent that can be sent to this service to split a contact into it's constituent
      * pieces. This will set the raw contact ids to {@link AggregationExceptions#TYPE_AUTOMATIC} so
@@ -1428,36 +2186,17 @@ public class ContactSaveService extends IntentService {
             return;
         }
 
-        // For each pair of raw contacts, insert an aggregation exception
+        // Keep all raw contacts together with one of them, which joins them all
         final ContentResolver resolver = getContentResolver();
-        // The maximum number of operations per batch (aka yield point) is 500. See b/22480225
-        final int batchSize = MAX_CONTACTS_PROVIDER_BATCH_SIZE;
-        final ArrayList<ContentProviderOperation> operations = new ArrayList<>(batchSize);
-        for (int i = 0; i < rawContactIds.length; i++) {
-            for (int j = 0; j < rawContactIds.length; j++) {
-                if (i != j) {
-                    buildJoinContactDiff(operations, rawContactIds[i], rawContactIds[j]);
-                }
-                // Before we get to 500 we need to flush the operations list
-                if (operations.size() > 0 && operations.size() % batchSize == 0) {
-                    if (!applyOperations(resolver, operations)) {
-                        if (receiver != null) {
-                            receiver.send(CP2_ERROR, new Bundle());
-                        }
-                        return;
-                    }
-                    operations.clear();
-                }
-            }
-        }
-        if (operations.size() > 0 && !applyOperations(resolver, operations)) {
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        buildJoinContactsDiff(operations, rawContactIds);
+        if (!applyOperationsInBatches(resolver, operations)) {
             if (receiver != null) {
                 receiver.send(CP2_ERROR, new Bundle());
             }
             return;
         }
 
-
         final String name = queryNameOfLinkedContacts(contactIds);
         if (name != null) {
             if (receiver != null) {
@@ -1482,6 +2221,136 @@ public class ContactSaveService extends IntentService {
         }
     }
 
+    /**
+     * Creates an intent to find contacts that share at least two phone numbers, email addresses
+     * or full names and to join each group of them into one contact, see
+     * {@link DuplicateContactsScanner}. Contacts that the user kept separate are never joined.
+     * The receiver gets {@link #DUPLICATES_MERGED} with the number of joined groups in
+     * {@link #EXTRA_RESULT_COUNT}, or {@link #CP2_ERROR}. Without a receiver, the result is shown
+     * in a toast.
+     */
+    public static Intent createMergeDuplicatesIntent(Context context, ResultReceiver receiver) {
+        final Intent serviceIntent = new Intent(context, ContactSaveService.class);
+        serviceIntent.setAction(ContactSaveService.ACTION_MERGE_DUPLICATES);
+        serviceIntent.putExtra(ContactSaveService.EXTRA_RESULT_RECEIVER, receiver);
+        return serviceIntent;
+    }
+
+    /**
+     * Scans for duplicates on the scan lane, and submits their joins to the scheduler in batches
+     * that are ordered only with the requests for the same contacts.
+     */
+    private void mergeDuplicates(Intent intent) {
+        final ResultReceiver receiver = intent.getParcelableExtra(EXTRA_RESULT_RECEIVER);
+        final DuplicateContactsScanner.Result duplicates = new DuplicateContactsScanner(
+                getContentResolver(), DUPLICATE_SCAN_MEMORY_BUDGET_BYTES,
+                DuplicateContactsScanner.DEFAULT_MAX_CLUSTER_SIZE).scan();
+        if (duplicates == null) {
+            onDuplicatesMerged(receiver, /* merged */ 0, /* failed */ true);
+            return;
+        }
+        Log.i(TAG, "Found duplicates: " + duplicates);
+
+        final List<List<long[]>> batches = new ArrayList<>();
+        List<long[]> batch = null;
+        int batchContacts = 0;
+        for (long[] contactIds : duplicates.getClusters()) {
+            if (batch == null || batchContacts + contactIds.length > MAX_DUPLICATES_PER_JOIN) {
+                batch = new ArrayList<>();
+                batches.add(batch);
+                batchContacts = 0;
+            }
+            batch.add(contactIds);
+            batchContacts += contactIds.length;
+        }
+        if (batches.isEmpty()) {
+            onDuplicatesMerged(receiver, /* merged */ 0, /* failed */ false);
+            return;
+        }
+
+        final AtomicInteger remaining = new AtomicInteger(batches.size());
+        final AtomicInteger merged = new AtomicInteger();
+        final AtomicBoolean failed = new AtomicBoolean();
+        for (final List<long[]> clusters : batches) {
+            final Set<String> keys = new HashSet<>();
+            for (long[] contactIds : clusters) {
+                addKeys(keys, "contact:", contactIds);
+            }
+            final long receivedNanos = System.nanoTime();
+            mScheduler.submit(new Runnable() {
+                @Override
+                public void run() {
+                    final long start = sMetrics.onRequestStarted(ACTION_MERGE_DUPLICATES,
+                            receivedNanos);
+                    try {
+                        // Once a join failed, the rest are skipped
+                        if (!failed.get() && !joinDuplicates(clusters, merged)) {
+                            failed.set(true);
+                        }
+                        if (remaining.decrementAndGet() == 0) {
+                            onDuplicatesMerged(receiver, merged.get(), failed.get());
+                        }
+                    } finally {
+                        sMetrics.onRequestFinished(start);
+                    }
+                }
+            }, mHeavyLane, keys);
+        }
+    }
+
+    /**
+     * Joins each cluster of duplicate contacts, and adds the number of joined clusters to
+     * {@code merged}. Returns false if the provider rejected a join.
+     */
+    private boolean joinDuplicates(List<long[]> clusters, AtomicInteger merged) {
+        final ContentResolver resolver = getContentResolver();
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        int pending = 0;
+        for (long[] contactIds : clusters) {
+            final long[] rawContactIds = getRawContactIdsForAggregation(contactIds);
+            if (rawContactIds == null) {
+                // The contacts were deleted or joined since the scan
+                continue;
+            }
+            if (!buildJoinContactsDiff(operations, rawContactIds,
+                    /* overrideKeepSeparate */ false)) {
+                // The user kept some of them separate since the scan; respect that
+                continue;
+            }
+            pending++;
+        }
+        if (operations.isEmpty()) {
+            return true;
+        }
+        if (!applyOperationsInBatches(resolver, operations)) {
+            return false;
+        }
+        merged.addAndGet(pending);
+        return true;
+    }
+
+    private void onDuplicatesMerged(ResultReceiver receiver, int merged, boolean failed) {
+        if (merged > 0) {
+            LocalBroadcastManager.getInstance(this)
+                    .sendBroadcast(new Intent(BROADCAST_LINK_COMPLETE));
+        }
+        if (receiver != null) {
+            if (failed) {
+                receiver.send(CP2_ERROR, new Bundle());
+            } else {
+                final Bundle result = new Bundle();
+                result.putInt(EXTRA_RESULT_COUNT, merged);
+                receiver.send(DUPLICATES_MERGED, result);
+            }
+        } else if (failed) {
+            showToast(R.string.contactJoinErrorToast);
+        } else if (merged == 0) {
+            showToast(R.string.noDuplicateContactsFound);
+        } else {
+            showToast(R.string.contactsJoinedMessage);
+        }
+    }
+
     /** Get the display name of the top-level contact after the contacts have been linked. */
     private String queryNameOfLinkedContacts(long[] contactIds) {
         final StringBuilder whereBuilder = new StringBuilder(Contacts._ID).append(" IN (");
@@ -1521,12 +2390,28 @@ public class ContactSaveService extends IntentService {
         }
     }
 
+    /**
+     * Applies a batch, and records how long it took for the current request. All batches of
+     * the service go through here, including those of {@link ContactWriteCoalescer}.
+     */
+    static ContentProviderResult[] applyBatch(ContentResolver resolver,
+            ArrayList<ContentProviderOperation> operations)
+            throws RemoteException, OperationApplicationException {
+        Trace.beginSection("applyBatch");
+        final long start = System.nanoTime();
+        try {
+            return resolver.applyBatch(ContactsContract.AUTHORITY, operations);
+        } finally {
+            sMetrics.current().applyBatch.record(System.nanoTime() - start);
+            Trace.endSection();
+        }
+    }
+
     /** Returns true if the batch was successfully applied and false otherwise. */
     private boolean applyOperations(ContentResolver resolver,
             ArrayList<ContentProviderOperation> operations) {
         try {
-            final ContentProviderResult[] result =
-                    resolver.applyBatch(ContactsContract.AUTHORITY, operations);
+            final ContentProviderResult[] result = applyBatch(resolver, operations);
             for (int i = 0; i < result.length; ++i) {
                 // if no rows were modified in the operation then we count it as fail.
                 if (result[i].count < 0) {
@@ -1542,6 +2427,24 @@ public class ContactSaveService extends IntentService {
         }
     }
 
+    /**
+     * Applies the operations in batches that stay below the provider's limit of operations
+     * between yield points. Returns false if a batch failed.
+     */
+    private boolean applyOperationsInBatches(ContentResolver resolver,
+            ArrayList<ContentProviderOperation> operations) {
+        // The maximum number of operations per batch (aka yield point) is 500. See b/22480225
+        final int batchSize = MAX_CONTACTS_PROVIDER_BATCH_SIZE;
+        for (int offset = 0; offset < operations.size(); offset += batchSize) {
+            final ArrayList<ContentProviderOperation> batch = new ArrayList<>(operations.subList(
+                    offset, Math.min(operations.size(), offset + batchSize)));
+            if (!applyOperations(resolver, batch)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private void joinContacts(Intent intent) {
         long contactId1 = intent.getLongExtra(EXTRA_CONTACT_ID1, -1);
         long contactId2 = intent.getLongExtra(EXTRA_CONTACT_ID2, -1);
@@ -1556,14 +2459,8 @@ public class ContactSaveService extends IntentService {
 
         ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
 
-        // For each pair of raw contacts, insert an aggregation exception
-        for (int i = 0; i < rawContactIds.length; i++) {
-            for (int j = 0; j < rawContactIds.length; j++) {
-                if (i != j) {
-                    buildJoinContactDiff(operations, rawContactIds[i], rawContactIds[j]);
-                }
-            }
-        }
+        // Insert the aggregation exceptions that keep all raw contacts together
+        buildJoinContactsDiff(operations, rawContactIds);
 
         final ContentResolver resolver = getContentResolver();
 
@@ -1719,6 +2616,75 @@ public class ContactSaveService extends IntentService {
         return getRawContactIdsForAggregation(new long[] {contactId1, contactId2});
     }
 
+    /**
+     * Construct the {@link AggregationExceptions#TYPE_KEEP_TOGETHER} ContentProviderOperations
+     * that join all of {@param rawContactIds} into one contact.
+     * <p>
+     * The provider aggregates raw contacts that are kept together transitively, so it is enough
+     * to keep every raw contact together with the first one, rather than with each other raw
+     * contact. Raw contacts that were explicitly kept separate from each other would still be
+     * split apart though, so those exceptions are replaced as well.
+     */
+    private void buildJoinContactsDiff(ArrayList<ContentProviderOperation> operations,
+            long[] rawContactIds) {
+        buildJoinContactsDiff(operations, rawContactIds, true);
+    }
+
+    /**
+     * Like {@link #buildJoinContactsDiff(ArrayList, long[])}, but only if
+     * {@code overrideKeepSeparate} is true or none of the raw contacts were explicitly kept
+     * separate from each other. Only joins the user asked for may override such a choice.
+     *
+     * @return true if the operations were added.
+     */
+    private boolean buildJoinContactsDiff(ArrayList<ContentProviderOperation> operations,
+            long[] rawContactIds, boolean overrideKeepSeparate) {
+        final StringBuilder ids = new StringBuilder();
+        for (int i = 0; i < rawContactIds.length; i++) {
+            if (i > 0) {
+                ids.append(',');
+            }
+            ids.append(rawContactIds[i]);
+        }
+        final Cursor c = getContentResolver().query(AggregationExceptions.CONTENT_URI,
+                new String[] {
+                        AggregationExceptions.RAW_CONTACT_ID1,
+                        AggregationExceptions.RAW_CONTACT_ID2
+                },
+                AggregationExceptions.TYPE + "=" + AggregationExceptions.TYPE_KEEP_SEPARATE
+                        + " AND " + AggregationExceptions.RAW_CONTACT_ID1 + " IN (" + ids + ")"
+                        + " AND " + AggregationExceptions.RAW_CONTACT_ID2 + " IN (" + ids + ")",
+                null, null);
+        final ArrayList<ContentProviderOperation> separatedOperations = new ArrayList<>();
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    final long rawContactId1 = c.getLong(0);
+                    final long rawContactId2 = c.getLong(1);
+                    if (!overrideKeepSeparate) {
+                        return false;
+                    }
+                    // Pairs with the first raw contact are replaced below
+                    if (rawContactId1 != rawContactIds[0]
+                            && rawContactId2 != rawContactIds[0]) {
+                        buildJoinContactDiff(separatedOperations, rawContactId1, rawContactId2);
+                    }
+                }
+            } finally {
+                c.close();
+            }
+        } else if (!overrideKeepSeparate) {
+            Log.e(TAG, "Unable to read aggregation exceptions");
+            return false;
+        }
+
+        for (int i = 1; i < rawContactIds.length; i++) {
+            buildJoinContactDiff(operations, rawContactIds[0], rawContactIds[i]);
+        }
+        operations.addAll(separatedOperations);
+        return true;
+    }
+
     /**
      * Construct a {@link AggregationExceptions#TYPE_KEEP_TOGETHER} ContentProviderOperation.
      */
@@ -1753,9 +2719,9 @@ public class ContactSaveService extends IntentService {
     /**
      * Returns an intent that can start this service and cause it to sleep for the specified time.
      *
-     * This exists purely for debugging and manual testing. Since this service uses a single thread
-     * it is useful to have a way to test behavior when work is queued up and most of the other
-     * operations complete too quickly to simulate that under normal conditions.
+     * This exists purely for debugging and manual testing. Since all requests queued after a sleep
+     * request wait for it, it is useful to have a way to test behavior when work is queued up and
+     * most of the other operations complete too quickly to simulate that under normal conditions.
      */
     public static Intent createSleepIntent(Context context, long millis) {
         return new Intent(context, ContactSaveService.class).setAction(ACTION_SLEEP)
@@ -1807,11 +2773,19 @@ public class ContactSaveService extends IntentService {
     }
 
     private void deliverCallback(final Intent callbackIntent) {
+        final ContactSaveMetrics.ActionMetrics metrics = sMetrics.current();
+        final long postedNanos = System.nanoTime();
         mMainHandler.post(new Runnable() {
 
             @Override
             public void run() {
-                deliverCallbackOnUiThread(callbackIntent);
+                Trace.beginSection("deliverCallback");
+                try {
+                    deliverCallbackOnUiThread(callbackIntent);
+                    metrics.callback.record(System.nanoTime() - postedNanos);
+                } finally {
+                    Trace.endSection();
+                }
             }
         });
     }
@@ -1972,13 +2946,8 @@ public class ContactSaveService extends IntentService {
         }
 
         private void onFinish(Intent intent) {
-            if (mPending.isEmpty()) {
-                return;
-            }
-            final String action = mPending.get(0).getAction();
-            if (action.equals(intent.getAction())) {
-                mPending.remove(0);
-            }
+            // Requests may finish out of order, so remove this particular request
+            mPending.remove(intent);
         }
 
         private void onStart(Intent intent) {
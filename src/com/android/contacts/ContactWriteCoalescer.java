@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Intent;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.Profile;
+import android.util.Log;
+
+import com.android.contacts.compat.PinnedPositionsCompat;
+
+import com.google.common.collect.Sets;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges small updates that {@link ContactSaveService} receives in quick succession, such as
+ * toggling the star of a contact, into a single batch.
+ * <p>
+ * Updates of the same contact are merged into one update, where later values replace earlier
+ * ones. Values that already match what is stored are dropped before the batch is applied, so
+ * e.g. starring and then un-starring a contact writes nothing. Updates of the same data row
+ * are collapsed into the last one, but are otherwise applied in the order they were received,
+ * since making one data row primary changes its siblings.
+ * <p>
+ * Requests are added on the main thread; once the coalescer is handed to a worker thread to be
+ * applied, no more requests may be added.
+ */
+final class ContactWriteCoalescer {
+    private static final String TAG = "ContactWriteCoalescer";
+
+    /** The actions whose requests can be merged. */
+    static final HashSet<String> ACTIONS = Sets.newHashSet(
+        ContactSaveService.ACTION_SET_STARRED,
+        ContactSaveService.ACTION_SET_SEND_TO_VOICEMAIL,
+        ContactSaveService.ACTION_SET_RINGTONE,
+        ContactSaveService.ACTION_SET_SUPER_PRIMARY,
+        ContactSaveService.ACTION_CLEAR_PRIMARY
+    );
+
+    private static final String[] CONTACT_PROJECTION = new String[] {
+            Contacts._ID,
+            Contacts.STARRED,
+            Contacts.SEND_TO_VOICEMAIL,
+            Contacts.CUSTOM_RINGTONE,
+    };
+
+    private final ArrayList<Intent> mRequests = new ArrayList<>();
+
+    /** The merged values to write, by contact URI. */
+    private final LinkedHashMap<Uri, ContentValues> mContactValues = new LinkedHashMap<>();
+
+    /**
+     * The values to write by data id, in the order in which each data row was last updated.
+     */
+    private final LinkedHashMap<Long, ContentValues> mDataValues = new LinkedHashMap<>();
+
+    /**
+     * Adds a request to the batch. Returns false if the request cannot be merged, e.g. because
+     * it is malformed, in which case it has to be handled on its own.
+     */
+    boolean add(Intent request) {
+        final String action = request.getAction();
+        if (!ACTIONS.contains(action)) {
+            return false;
+        }
+        if (ContactSaveService.ACTION_SET_SUPER_PRIMARY.equals(action)
+                || ContactSaveService.ACTION_CLEAR_PRIMARY.equals(action)) {
+            final long dataId = request.getLongExtra(ContactSaveService.EXTRA_DATA_ID, -1);
+            if (dataId == -1) {
+                return false;
+            }
+            final int primary = ContactSaveService.ACTION_SET_SUPER_PRIMARY.equals(action) ? 1 : 0;
+            final ContentValues values = new ContentValues(2);
+            values.put(Data.IS_SUPER_PRIMARY, primary);
+            values.put(Data.IS_PRIMARY, primary);
+            // Re-insert, so that the data row moves to the position of its last update
+            mDataValues.remove(dataId);
+            mDataValues.put(dataId, values);
+        } else {
+            final Uri contactUri = request.getParcelableExtra(ContactSaveService.EXTRA_CONTACT_URI);
+            if (contactUri == null) {
+                return false;
+            }
+            ContentValues values = mContactValues.get(contactUri);
+            if (values == null) {
+                values = new ContentValues(3);
+                mContactValues.put(contactUri, values);
+            }
+            if (ContactSaveService.ACTION_SET_STARRED.equals(action)) {
+                values.put(Contacts.STARRED, request.getBooleanExtra(
+                        ContactSaveService.EXTRA_STARRED_FLAG, false) ? 1 : 0);
+            } else if (ContactSaveService.ACTION_SET_SEND_TO_VOICEMAIL.equals(action)) {
+                values.put(Contacts.SEND_TO_VOICEMAIL, request.getBooleanExtra(
+                        ContactSaveService.EXTRA_SEND_TO_VOICEMAIL_FLAG, false) ? 1 : 0);
+            } else {
+                values.put(Contacts.CUSTOM_RINGTONE,
+                        request.getStringExtra(ContactSaveService.EXTRA_CUSTOM_RINGTONE));
+            }
+        }
+        mRequests.add(request);
+        return true;
+    }
+
+    boolean isEmpty() {
+        return mRequests.isEmpty();
+    }
+
+    /** Returns the requests that were merged into this batch, in the order they were added. */
+    List<Intent> getRequests() {
+        return Collections.unmodifiableList(mRequests);
+    }
+
+    /**
+     * Drops the values that are already stored, then applies the remaining updates as one batch.
+     *
+     * @return the number of operations that were applied
+     */
+    int apply(ContentResolver resolver) {
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        final ArrayList<Long> contactIdsToUndemote = new ArrayList<>();
+        for (Map.Entry<Uri, ContentValues> entry : mContactValues.entrySet()) {
+            final ContentValues values = new ContentValues(entry.getValue());
+            final long contactId = removeStoredValues(resolver, entry.getKey(), values);
+            if (values.size() == 0) {
+                continue;
+            }
+            operations.add(ContentProviderOperation.newUpdate(entry.getKey())
+                    .withValues(values)
+                    .build());
+            // Don't bother undemoting if this contact is the user's profile.
+            if (values.containsKey(Contacts.STARRED) && contactId != -1
+                    && contactId < Profile.MIN_ID) {
+                contactIdsToUndemote.add(contactId);
+            }
+        }
+        for (Map.Entry<Long, ContentValues> entry : mDataValues.entrySet()) {
+            operations.add(ContentProviderOperation.newUpdate(
+                    ContentUris.withAppendedId(Data.CONTENT_URI, entry.getKey()))
+                    .withValues(entry.getValue())
+                    .build());
+        }
+        if (operations.isEmpty()) {
+            return 0;
+        }
+
+        try {
+            ContactSaveService.applyBatch(resolver, operations);
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(TAG, "Failed to apply " + mRequests.size() + " coalesced updates", e);
+            return 0;
+        }
+        for (long contactId : contactIdsToUndemote) {
+            PinnedPositionsCompat.undemote(resolver, contactId);
+        }
+        return operations.size();
+    }
+
+    /**
+     * Removes the values that the contact already has from {@code values}.
+     *
+     * @return the id of the contact, or -1 if it could not be read
+     */
+    private static long removeStoredValues(ContentResolver resolver, Uri contactUri,
+            ContentValues values) {
+        final Cursor cursor = resolver.query(contactUri, CONTACT_PROJECTION, null, null, null);
+        if (cursor == null) {
+            return -1;
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return -1;
+            }
+            for (String key : new ArrayList<>(values.keySet())) {
+                final int column = cursor.getColumnIndex(key);
+                final Object value = values.get(key);
+                final String stored = cursor.isNull(column) ? null : cursor.getString(column);
+                if (value == null ? stored == null : value.toString().equals(stored)) {
+                    values.remove(key);
+                }
+            }
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.util.Log;
+
+import com.google.common.collect.Lists;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the saves that {@link ContactSaveService} has started but not yet
+ * finished, so that an edit is not lost when the process dies in the middle of a save.
+ * <p>
+ * A save appends a begin record holding the parcelled request, a commit record after each
+ * batch that the provider applied, and an end record once it is done. When the journal is
+ * opened again after the process died, the saves that have no end record are returned, along
+ * with the number of operations that were already committed, so that they can be resumed from
+ * the next batch. The file is truncated whenever no save is pending.
+ * <p>
+ * Parcels are not meant for storage, so begin records also hold the platform version and the
+ * app version that wrote them and are dropped after either was updated, as the layout of the
+ * parcelled state may have changed. A save that was replayed {@link #MAX_ATTEMPTS} times
+ * without finishing, e.g. because it crashes the process, is dropped as well. The ids of
+ * dropped saves are kept, so that a redelivery of their request can be ignored.
+ * <p>
+ * Meant to be used from a single worker thread; the methods are synchronized merely to keep
+ * the file and the index consistent.
+ */
+final class SaveJournal {
+    private static final String TAG = "SaveJournal";
+
+    /** Marks the start of a record; changing the format requires a new value. */
+    private static final int MAGIC = 0x43534a01;
+
+    /** Size of a record header: magic, type, request id, value, payload length, payload crc. */
+    private static final int HEADER_BYTES = 4 + 1 + 8 + 4 + 4 + 4;
+
+    private static final byte TYPE_BEGIN = 1;
+    private static final byte TYPE_COMMIT = 2;
+    private static final byte TYPE_END = 3;
+
+    /** How often a save is started before it is given up. */
+    static final int MAX_ATTEMPTS = 3;
+
+    /** A save that has not finished yet. */
+    static final class Entry {
+        final long requestId;
+        final Bundle request;
+        int committedOperations;
+        int attempts;
+
+        Entry(long requestId, Bundle request, int attempts) {
+            this.requestId = requestId;
+            this.request = request;
+            this.attempts = attempts;
+        }
+    }
+
+    private final File mFile;
+    private final long mAppVersionCode;
+
+    /** Unfinished saves by request id, in the order they were started. */
+    private final LinkedHashMap<Long, Entry> mEntries = new LinkedHashMap<>();
+    /** Unfinished saves that {@link #open} gave up or could not read. */
+    private final HashSet<Long> mDroppedRequestIds = new HashSet<>();
+    private RandomAccessFile mRandomAccessFile;
+    private FileChannel mChannel;
+
+    /**
+     * @param appVersionCode the version code of the app, so that saves written by another
+     *     version are not replayed
+     */
+    SaveJournal(File file, long appVersionCode) {
+        mFile = file;
+        mAppVersionCode = appVersionCode;
+    }
+
+    /**
+     * Opens the journal and returns the saves that were left unfinished by an earlier process.
+     * The returned saves count as started once more.
+     */
+    synchronized List<Entry> open(ClassLoader classLoader) {
+        mEntries.clear();
+        mDroppedRequestIds.clear();
+        try {
+            mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+            mChannel = mRandomAccessFile.getChannel();
+            read(classLoader);
+            rewrite();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to open save journal", e);
+            reset();
+        }
+        return Lists.newArrayList(mEntries.values());
+    }
+
+    synchronized boolean contains(long requestId) {
+        return mEntries.containsKey(requestId);
+    }
+
+    /**
+     * Returns the unfinished saves that {@link #open} dropped, because they were started too
+     * often or written by another version.
+     */
+    synchronized Set<Long> getDroppedRequestIds() {
+        return new HashSet<>(mDroppedRequestIds);
+    }
+
+    /** Records that a save was started. */
+    synchronized void begin(long requestId, Bundle request) {
+        final Entry entry = new Entry(requestId, request, 1);
+        mEntries.put(requestId, entry);
+        append(TYPE_BEGIN, requestId, entry.attempts, marshall(request));
+    }
+
+    /** Records that the first {@code committedOperations} operations of a save were applied. */
+    synchronized void commit(long requestId, int committedOperations) {
+        final Entry entry = mEntries.get(requestId);
+        if (entry == null) {
+            return;
+        }
+        entry.committedOperations = committedOperations;
+        append(TYPE_COMMIT, requestId, committedOperations, null);
+    }
+
+    /** Records that a save is done, whether it succeeded or not. */
+    synchronized void end(long requestId) {
+        if (mEntries.remove(requestId) == null) {
+            return;
+        }
+        if (mEntries.isEmpty()) {
+            truncate();
+        } else {
+            append(TYPE_END, requestId, 0, null);
+        }
+    }
+
+    /**
+     * Reads the records of the journal file. A torn record at the end, left behind by a process
+     * that died while writing, ends the scan.
+     */
+    private void read(ClassLoader classLoader) throws IOException {
+        final long length = mChannel.size();
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        long position = 0;
+        while (position + HEADER_BYTES <= length) {
+            header.clear();
+            readFully(header, position);
+            header.flip();
+            final int magic = header.getInt();
+            final byte type = header.get();
+            final long requestId = header.getLong();
+            final int value = header.getInt();
+            final int payloadLength = header.getInt();
+            final int crc = header.getInt();
+            if (magic != MAGIC || payloadLength < 0
+                    || position + HEADER_BYTES + payloadLength > length) {
+                break;
+            }
+            final ByteBuffer payload = ByteBuffer.allocate(payloadLength);
+            readFully(payload, position + HEADER_BYTES);
+            if (crc(payload.array()) != crc) {
+                break;
+            }
+            position += HEADER_BYTES + payloadLength;
+
+            if (type == TYPE_BEGIN) {
+                final Bundle request = unmarshall(payload.array(), classLoader);
+                if (request == null) {
+                    Log.w(TAG, "Dropping save " + requestId + " written by another version");
+                    mEntries.remove(requestId);
+                    mDroppedRequestIds.add(requestId);
+                } else {
+                    mEntries.put(requestId, new Entry(requestId, request, value));
+                }
+            } else if (type == TYPE_COMMIT) {
+                final Entry entry = mEntries.get(requestId);
+                if (entry != null) {
+                    entry.committedOperations = value;
+                }
+            } else if (type == TYPE_END) {
+                mEntries.remove(requestId);
+                mDroppedRequestIds.remove(requestId);
+            }
+        }
+    }
+
+    /**
+     * Replaces the journal with one that only holds the unfinished saves, each counted as
+     * started once more. Saves that were started too often are dropped.
+     */
+    private void rewrite() throws IOException {
+        for (Entry entry : Lists.newArrayList(mEntries.values())) {
+            if (entry.attempts >= MAX_ATTEMPTS) {
+                Log.w(TAG, "Giving up save " + entry.requestId + " after " + entry.attempts
+                        + " attempts");
+                mEntries.remove(entry.requestId);
+                mDroppedRequestIds.add(entry.requestId);
+            }
+        }
+        mChannel.truncate(0);
+        for (Entry entry : mEntries.values()) {
+            entry.attempts++;
+            write(TYPE_BEGIN, entry.requestId, entry.attempts, marshall(entry.request));
+            if (entry.committedOperations > 0) {
+                write(TYPE_COMMIT, entry.requestId, entry.committedOperations, null);
+            }
+        }
+        mChannel.force(false);
+    }
+
+    private void append(byte type, long requestId, int value, byte[] payload) {
+        if (mChannel == null) {
+            return;
+        }
+        try {
+            write(type, requestId, value, payload);
+            mChannel.force(false);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write save journal", e);
+            reset();
+        }
+    }
+
+    private void write(byte type, long requestId, int value, byte[] payload) throws IOException {
+        final int payloadLength = payload == null ? 0 : payload.length;
+        final ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + payloadLength);
+        record.putInt(MAGIC);
+        record.put(type);
+        record.putLong(requestId);
+        record.putInt(value);
+        record.putInt(payloadLength);
+        record.putInt(crc(payload == null ? new byte[0] : payload));
+        if (payload != null) {
+            record.put(payload);
+        }
+        record.flip();
+        final long position = mChannel.size();
+        while (record.hasRemaining()) {
+            mChannel.write(record, position + record.position());
+        }
+    }
+
+    private void truncate() {
+        if (mChannel == null) {
+            return;
+        }
+        try {
+            mChannel.truncate(0);
+            mChannel.force(false);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to truncate save journal", e);
+            reset();
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (mChannel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of save journal");
+            }
+        }
+    }
+
+    /** Stops journaling after an I/O error; saves then work as if there was no journal. */
+    private void reset() {
+        try {
+            if (mRandomAccessFile != null) {
+                mRandomAccessFile.close();
+            }
+        } catch (IOException e) {
+            // Ignore
+        }
+        mRandomAccessFile = null;
+        mChannel = null;
+        mFile.delete();
+    }
+
+    private byte[] marshall(Bundle request) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeInt(Build.VERSION.SDK_INT);
+            parcel.writeLong(mAppVersionCode);
+            parcel.writeBundle(request);
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Returns null if the request was written by another platform or app version, or is
+     * corrupt.
+     */
+    private Bundle unmarshall(byte[] bytes, ClassLoader classLoader) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(bytes, 0, bytes.length);
+            parcel.setDataPosition(0);
+            if (parcel.readInt() != Build.VERSION.SDK_INT
+                    || parcel.readLong() != mAppVersionCode) {
+                return null;
+            }
+            final Bundle request = parcel.readBundle(classLoader);
+            // Unparcel now, so that a corrupt request does not fail later on
+            request.size();
+            return request;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Unable to read saved request", e);
+            return null;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static int crc(byte[] bytes) {
+        final CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+}
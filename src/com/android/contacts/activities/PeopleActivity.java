@@ -59,6 +59,7 @@ import android.widget.ImageButton;
 import android.widget.Toast;
 
 import com.android.contacts.AppCompatContactsActivity;
+import com.android.contacts.ContactPhotoManager;
 import com.android.contacts.ContactSaveService;
 import com.android.contacts.R;
 import com.android.contacts.compat.CompatUtils;
@@ -102,6 +103,8 @@ import com.android.contactsbind.ObjectFactory;
 
 import com.google.common.util.concurrent.Futures;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -661,6 +664,13 @@ public class PeopleActivity extends AppCompatContactsActivity implements
         super.onDestroy();
     }
 
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        // Photo loading latencies, see "adb shell dumpsys activity PeopleActivity"
+        ContactPhotoManager.getInstance(this).dump(prefix, writer);
+    }
+
     private void initializeFabVisibility() {
         mFloatingActionButtonContainer.setVisibility(shouldHideFab() ? View.GONE : View.VISIBLE);
         mFloatingActionButtonController.resetIn();
@@ -0,0 +1,634 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.database;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.provider.ContactsContract.AggregationExceptions;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds clusters of contacts that are likely duplicates of each other, because they share at
+ * least two phone numbers, email addresses or full names, e.g. a name and a phone number.
+ * <p>
+ * The data rows are read in a single pass over a cursor without being kept. Each phone number,
+ * email address and name is normalized into a key, and a hash table remembers the first contact
+ * that had each key. A contact with a key that was seen before gains evidence that it is the
+ * same as that contact. One shared key, like an office or family landline, is not enough;
+ * once a pair of contacts shares a second, different key, both are put into the same cluster,
+ * using a union-find structure. Contacts that the user explicitly kept separate, see
+ * {@link AggregationExceptions#TYPE_KEEP_SEPARATE}, never end up in the same cluster.
+ * <p>
+ * Keys are stored as 64 bit hashes and contacts as indexes into primitive arrays. The memory
+ * budget is split between the key table, the contacts and the pairs with evidence. Once one of
+ * them is full, rows that would need more room are skipped, so some duplicates may be missed,
+ * but the scan still completes.
+ * <p>
+ * Must not be called on the UI thread.
+ */
+public class DuplicateContactsScanner {
+    private static final String TAG = "DuplicateScanner";
+
+    /** Clusters with more contacts than this are most likely not duplicates and are skipped. */
+    public static final int DEFAULT_MAX_CLUSTER_SIZE = 20;
+
+    /**
+     * Phone numbers are matched on this many trailing digits, so that numbers with and without
+     * country code match.
+     */
+    private static final int PHONE_KEY_DIGITS = 9;
+
+    /** Shorter numbers, like short codes, are too ambiguous to match on. */
+    private static final int MIN_PHONE_DIGITS = 7;
+
+    /** Bytes per entry of the hash tables, which are kept at most half full. */
+    private static final int BYTES_PER_SLOT = 2 * (8 + 4 + 1);
+
+    /** Bytes per contact: its hash table entry, its id and its union-find entry. */
+    private static final int BYTES_PER_CONTACT = BYTES_PER_SLOT + 8 + 4 + 4;
+
+    /** Bytes per pair of contacts with evidence: its hash table entry and its first key. */
+    private static final int BYTES_PER_PAIR = BYTES_PER_SLOT + 8;
+
+    private static final String[] PROJECTION = new String[] {
+            Data.CONTACT_ID,
+            Data.MIMETYPE,
+            Data.DATA1,
+            Phone.NORMALIZED_NUMBER,
+    };
+    private static final int CONTACT_ID = 0;
+    private static final int MIMETYPE = 1;
+    private static final int DATA1 = 2;
+    private static final int NORMALIZED_NUMBER = 3;
+
+    private static final String SELECTION = Data.MIMETYPE + " IN ('"
+            + Phone.CONTENT_ITEM_TYPE + "','"
+            + Email.CONTENT_ITEM_TYPE + "','"
+            + StructuredName.CONTENT_ITEM_TYPE + "')";
+
+    private static final char KEY_TYPE_PHONE = 'p';
+    private static final char KEY_TYPE_EMAIL = 'e';
+    private static final char KEY_TYPE_NAME = 'n';
+
+    private static final String[] SEPARATED_PROJECTION = new String[] {
+            AggregationExceptions.RAW_CONTACT_ID1,
+            AggregationExceptions.RAW_CONTACT_ID2,
+    };
+
+    private static final String SEPARATED_SELECTION =
+            AggregationExceptions.TYPE + "=" + AggregationExceptions.TYPE_KEEP_SEPARATE;
+
+    private static final String[] RAW_CONTACT_PROJECTION = new String[] {
+            RawContacts._ID,
+            RawContacts.CONTACT_ID,
+    };
+
+    /** How many raw contact ids are looked up per query. */
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    /** The duplicates that were found, and statistics about the scan. */
+    public static class Result {
+        private final List<long[]> mClusters;
+        private final int mRowCount;
+        private final int mContactCount;
+        private final int mSkippedClusterCount;
+        private final int mDroppedRowCount;
+        private final long mElapsedNanos;
+
+        private Result(List<long[]> clusters, int rowCount, int contactCount,
+                int skippedClusterCount, int droppedRowCount, long elapsedNanos) {
+            mClusters = clusters;
+            mRowCount = rowCount;
+            mContactCount = contactCount;
+            mSkippedClusterCount = skippedClusterCount;
+            mDroppedRowCount = droppedRowCount;
+            mElapsedNanos = elapsedNanos;
+        }
+
+        /** Returns the ids of the contacts in each cluster of duplicates. */
+        public List<long[]> getClusters() {
+            return mClusters;
+        }
+
+        public int getContactCount() {
+            return mContactCount;
+        }
+
+        public long getElapsedNanos() {
+            return mElapsedNanos;
+        }
+
+        public long getClustersPerSecond() {
+            return mClusters.size() * TimeUnit.SECONDS.toNanos(1) / Math.max(1, mElapsedNanos);
+        }
+
+        @Override
+        public String toString() {
+            return "clusters=" + mClusters.size()
+                    + " skippedClusters=" + mSkippedClusterCount
+                    + " contacts=" + mContactCount
+                    + " rows=" + mRowCount
+                    + " droppedRows=" + mDroppedRowCount
+                    + " elapsed=" + TimeUnit.NANOSECONDS.toMillis(mElapsedNanos) + "ms"
+                    + " clusters/s=" + getClustersPerSecond();
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final int mMaxKeys;
+    private final int mMaxContacts;
+    private final int mMaxPairs;
+    private final int mMaxClusterSize;
+
+    /**
+     * @param memoryBudgetBytes About how much memory the scan may use, apart from the cursor.
+     *     Half of it goes to the key table, a quarter each to the contacts and the pairs.
+     * @param maxClusterSize Clusters with more contacts are not reported
+     */
+    public DuplicateContactsScanner(ContentResolver resolver, int memoryBudgetBytes,
+            int maxClusterSize) {
+        mResolver = resolver;
+        mMaxKeys = Math.max(1, memoryBudgetBytes / 2 / BYTES_PER_SLOT);
+        mMaxContacts = Math.max(2, memoryBudgetBytes / 4 / BYTES_PER_CONTACT);
+        mMaxPairs = Math.max(1, memoryBudgetBytes / 4 / BYTES_PER_PAIR);
+        mMaxClusterSize = maxClusterSize;
+    }
+
+    /** Scans all contacts. Returns null if the contacts could not be read. */
+    public Result scan() {
+        final long start = System.nanoTime();
+        final ContactTable contacts = new ContactTable(mMaxContacts);
+        if (!loadSeparatedContacts(contacts)) {
+            return null;
+        }
+        final Cursor cursor = mResolver.query(Data.CONTENT_URI, PROJECTION, SELECTION, null,
+                null);
+        if (cursor == null) {
+            Log.e(TAG, "Unable to open Contacts DB cursor");
+            return null;
+        }
+
+        final LongIntHashMap keys = new LongIntHashMap();
+        // Pairs of contacts that share a key, mapped to an index into pairKeys, which holds the
+        // first key they share, or 0 once they were put into the same cluster
+        final LongIntHashMap pairs = new LongIntHashMap();
+        long[] pairKeys = new long[256];
+        int rowCount = 0;
+        int droppedRowCount = 0;
+        try {
+            while (cursor.moveToNext()) {
+                rowCount++;
+                final long key = getKeyHash(cursor);
+                if (key == 0) {
+                    continue;
+                }
+                final int contact = contacts.add(cursor.getLong(CONTACT_ID));
+                if (contact < 0) {
+                    droppedRowCount++;
+                    continue;
+                }
+                final int first = keys.get(key);
+                if (first < 0) {
+                    if (keys.size() < mMaxKeys) {
+                        keys.put(key, contact);
+                    } else {
+                        droppedRowCount++;
+                    }
+                    continue;
+                }
+                if (first == contact) {
+                    continue;
+                }
+                final long pair = first < contact
+                        ? ((long) first << 32) | contact
+                        : ((long) contact << 32) | first;
+                final int evidence = pairs.get(pair);
+                if (evidence < 0) {
+                    if (pairs.size() < mMaxPairs) {
+                        final int index = pairs.size();
+                        pairs.put(pair, index);
+                        if (index == pairKeys.length) {
+                            pairKeys = Arrays.copyOf(pairKeys, index * 2);
+                        }
+                        pairKeys[index] = key;
+                    } else {
+                        droppedRowCount++;
+                    }
+                } else if (pairKeys[evidence] != 0 && pairKeys[evidence] != key) {
+                    // A second, different key: the pair is most likely the same person
+                    contacts.join(first, contact);
+                    pairKeys[evidence] = 0;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        final int contactCount = contacts.size();
+        final ArrayList<long[]> result = new ArrayList<>();
+        final int[] clusterOfRoot = new int[contactCount];
+        final int[] clusterFill = new int[contactCount];
+        Arrays.fill(clusterOfRoot, -1);
+        int skippedClusterCount = 0;
+        for (int contact = 0; contact < contactCount; contact++) {
+            final int root = contacts.clusters.find(contact);
+            final int size = contacts.clusters.size(root);
+            if (size < 2) {
+                continue;
+            }
+            if (size > mMaxClusterSize) {
+                if (root == contact) {
+                    skippedClusterCount++;
+                }
+                continue;
+            }
+            if (clusterOfRoot[root] < 0) {
+                clusterOfRoot[root] = result.size();
+                result.add(new long[size]);
+            }
+            final int cluster = clusterOfRoot[root];
+            result.get(cluster)[clusterFill[cluster]++] = contacts.getContactId(contact);
+        }
+        return new Result(result, rowCount, contactCount, skippedClusterCount,
+                droppedRowCount, System.nanoTime() - start);
+    }
+
+    /**
+     * Adds the contacts whose raw contacts the user kept separate from each other to the table,
+     * so that they are never put into the same cluster. Returns false if they could not be read.
+     */
+    private boolean loadSeparatedContacts(ContactTable contacts) {
+        final ArrayList<long[]> rawContactPairs = new ArrayList<>();
+        final Cursor cursor = mResolver.query(AggregationExceptions.CONTENT_URI,
+                SEPARATED_PROJECTION, SEPARATED_SELECTION, null, null);
+        if (cursor == null) {
+            Log.e(TAG, "Unable to read aggregation exceptions");
+            return false;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                rawContactPairs.add(new long[] {cursor.getLong(0), cursor.getLong(1)});
+            }
+        } finally {
+            cursor.close();
+        }
+        if (rawContactPairs.isEmpty()) {
+            return true;
+        }
+
+        final LongIntHashMap contactOfRawContact = new LongIntHashMap();
+        final long[] rawContactIds = new long[rawContactPairs.size() * 2];
+        for (int i = 0; i < rawContactPairs.size(); i++) {
+            rawContactIds[i * 2] = rawContactPairs.get(i)[0];
+            rawContactIds[i * 2 + 1] = rawContactPairs.get(i)[1];
+        }
+        for (int from = 0; from < rawContactIds.length; from += MAX_IDS_PER_QUERY) {
+            final int to = Math.min(rawContactIds.length, from + MAX_IDS_PER_QUERY);
+            final StringBuilder selection = new StringBuilder(RawContacts._ID).append(" IN (");
+            for (int i = from; i < to; i++) {
+                if (i > from) {
+                    selection.append(',');
+                }
+                selection.append(rawContactIds[i]);
+            }
+            selection.append(')');
+            final Cursor rawContacts = mResolver.query(RawContacts.CONTENT_URI,
+                    RAW_CONTACT_PROJECTION, selection.toString(), null, null);
+            if (rawContacts == null) {
+                Log.e(TAG, "Unable to read raw contacts");
+                return false;
+            }
+            try {
+                while (rawContacts.moveToNext()) {
+                    final long rawContactId = rawContacts.getLong(0);
+                    if (contactOfRawContact.get(rawContactId) < 0) {
+                        final int contact = contacts.add(rawContacts.getLong(1));
+                        if (contact >= 0) {
+                            contactOfRawContact.put(rawContactId, contact);
+                        }
+                    }
+                }
+            } finally {
+                rawContacts.close();
+            }
+        }
+        for (long[] pair : rawContactPairs) {
+            final int contact1 = contactOfRawContact.get(pair[0]);
+            final int contact2 = contactOfRawContact.get(pair[1]);
+            if (contact1 >= 0 && contact2 >= 0 && contact1 != contact2) {
+                contacts.separate(contact1, contact2);
+            }
+        }
+        return true;
+    }
+
+    /** Returns the hash of the key of the current row, or 0 if the row has no usable key. */
+    private static long getKeyHash(Cursor cursor) {
+        final String mimeType = cursor.getString(MIMETYPE);
+        final String value = cursor.getString(DATA1);
+        if (TextUtils.isEmpty(value)) {
+            return 0;
+        }
+        if (Phone.CONTENT_ITEM_TYPE.equals(mimeType)) {
+            String number = cursor.getString(NORMALIZED_NUMBER);
+            if (TextUtils.isEmpty(number)) {
+                number = PhoneNumberUtils.normalizeNumber(value);
+            }
+            return hashPhoneNumber(number);
+        } else if (Email.CONTENT_ITEM_TYPE.equals(mimeType)) {
+            final String email = value.trim().toLowerCase(Locale.ROOT);
+            return email.indexOf('@') > 0 ? hash(KEY_TYPE_EMAIL, email, 0, email.length()) : 0;
+        } else {
+            final String name = normalizeName(value);
+            // A single name, like "John", is not enough to tell that two contacts are the same
+            return name != null && name.indexOf(' ') > 0
+                    ? hash(KEY_TYPE_NAME, name, 0, name.length()) : 0;
+        }
+    }
+
+    /**
+     * Hashes the trailing digits of a normalized phone number. Returns 0 if it has too few
+     * digits.
+     */
+    static long hashPhoneNumber(String number) {
+        if (number == null) {
+            return 0;
+        }
+        int digits = 0;
+        for (int i = 0; i < number.length(); i++) {
+            if (Character.isDigit(number.charAt(i))) {
+                digits++;
+            }
+        }
+        if (digits < MIN_PHONE_DIGITS) {
+            return 0;
+        }
+        // Skip to the first of the trailing digits
+        int skip = Math.max(0, digits - PHONE_KEY_DIGITS);
+        int start = 0;
+        while (skip > 0 || !Character.isDigit(number.charAt(start))) {
+            if (Character.isDigit(number.charAt(start))) {
+                skip--;
+            }
+            start++;
+        }
+        return hash(KEY_TYPE_PHONE, number, start, number.length());
+    }
+
+    /**
+     * Lower-cases the name, removes accents and punctuation, and collapses white space.
+     * Returns null if nothing is left.
+     */
+    static String normalizeName(String name) {
+        final String decomposed = Normalizer.normalize(name, Normalizer.Form.NFD);
+        final StringBuilder sb = new StringBuilder(decomposed.length());
+        boolean space = false;
+        for (int i = 0; i < decomposed.length(); i++) {
+            final char c = decomposed.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                if (space && sb.length() > 0) {
+                    sb.append(' ');
+                }
+                space = false;
+                sb.append(Character.toLowerCase(c));
+            } else if (Character.getType(c) != Character.NON_SPACING_MARK) {
+                space = true;
+            }
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    /** 64 bit FNV-1a hash of the digits or characters of the key. Never returns 0. */
+    private static long hash(char type, String value, int start, int end) {
+        long hash = 0xcbf29ce484222325L;
+        hash = (hash ^ type) * 0x100000001b3L;
+        for (int i = start; i < end; i++) {
+            final char c = value.charAt(i);
+            if (type == KEY_TYPE_PHONE && !Character.isDigit(c)) {
+                continue;
+            }
+            hash = (hash ^ c) * 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * The contacts seen so far, as indexes in the order they were added, and the clusters they
+     * belong to.
+     */
+    private static final class ContactTable {
+        final UnionFind clusters = new UnionFind();
+        private final LongIntHashMap mIndexes = new LongIntHashMap();
+        private final int mMaxSize;
+        private long[] mContactIds = new long[256];
+        /** By the root of each cluster, the contacts that it must not be joined with. */
+        private final SparseArray<ArrayList<Integer>> mSeparated = new SparseArray<>();
+
+        ContactTable(int maxSize) {
+            mMaxSize = maxSize;
+        }
+
+        int size() {
+            return mIndexes.size();
+        }
+
+        long getContactId(int contact) {
+            return mContactIds[contact];
+        }
+
+        /** Returns the index of the contact, adding it if needed, or -1 if the table is full. */
+        int add(long contactId) {
+            int contact = mIndexes.get(contactId);
+            if (contact >= 0) {
+                return contact;
+            }
+            contact = mIndexes.size();
+            if (contact >= mMaxSize) {
+                return -1;
+            }
+            mIndexes.put(contactId, contact);
+            if (contact == mContactIds.length) {
+                mContactIds = Arrays.copyOf(mContactIds, contact * 2);
+            }
+            mContactIds[contact] = contactId;
+            clusters.add();
+            return contact;
+        }
+
+        /** Records that the two contacts, which are in clusters of their own, must stay apart. */
+        void separate(int contact1, int contact2) {
+            separatedFrom(clusters.find(contact1)).add(contact2);
+            separatedFrom(clusters.find(contact2)).add(contact1);
+        }
+
+        /** Puts the two contacts into the same cluster, unless that would join separated ones. */
+        void join(int contact1, int contact2) {
+            final int root1 = clusters.find(contact1);
+            final int root2 = clusters.find(contact2);
+            if (root1 == root2) {
+                return;
+            }
+            // Separations are recorded on both sides, so checking one cluster is enough
+            final ArrayList<Integer> separated1 = mSeparated.get(root1);
+            if (separated1 != null) {
+                for (int other : separated1) {
+                    if (clusters.find(other) == root2) {
+                        return;
+                    }
+                }
+            }
+            final int root = clusters.union(root1, root2);
+            final int merged = root == root1 ? root2 : root1;
+            final ArrayList<Integer> separatedMerged = mSeparated.get(merged);
+            if (separatedMerged != null) {
+                separatedFrom(root).addAll(separatedMerged);
+                mSeparated.remove(merged);
+            }
+        }
+
+        private ArrayList<Integer> separatedFrom(int root) {
+            ArrayList<Integer> separated = mSeparated.get(root);
+            if (separated == null) {
+                separated = new ArrayList<>();
+                mSeparated.put(root, separated);
+            }
+            return separated;
+        }
+    }
+
+    /** An open addressing hash map from long to non-negative int. */
+    private static final class LongIntHashMap {
+        private long[] mKeys = new long[1024];
+        private int[] mValues = new int[1024];
+        private boolean[] mUsed = new boolean[1024];
+        private int mSize;
+
+        int size() {
+            return mSize;
+        }
+
+        /** Returns the value for the key, or -1 if there is none. */
+        int get(long key) {
+            final int mask = mKeys.length - 1;
+            for (int slot = slot(key, mask); mUsed[slot]; slot = (slot + 1) & mask) {
+                if (mKeys[slot] == key) {
+                    return mValues[slot];
+                }
+            }
+            return -1;
+        }
+
+        /** Adds a key that is not in the map yet. */
+        void put(long key, int value) {
+            if ((mSize + 1) * 2 > mKeys.length) {
+                grow();
+            }
+            final int mask = mKeys.length - 1;
+            int slot = slot(key, mask);
+            while (mUsed[slot]) {
+                slot = (slot + 1) & mask;
+            }
+            mUsed[slot] = true;
+            mKeys[slot] = key;
+            mValues[slot] = value;
+            mSize++;
+        }
+
+        private void grow() {
+            final long[] keys = mKeys;
+            final int[] values = mValues;
+            final boolean[] used = mUsed;
+            mKeys = new long[keys.length * 2];
+            mValues = new int[keys.length * 2];
+            mUsed = new boolean[keys.length * 2];
+            mSize = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (used[i]) {
+                    put(keys[i], values[i]);
+                }
+            }
+        }
+
+        private static int slot(long key, int mask) {
+            final long mixed = key * 0x9e3779b97f4a7c15L;
+            return (int) (mixed ^ (mixed >>> 32)) & mask;
+        }
+    }
+
+    /** Disjoint sets of the integers 0 to n-1, with path halving and union by size. */
+    private static final class UnionFind {
+        private int[] mParent = new int[256];
+        private int[] mSize = new int[256];
+        private int mCount;
+
+        /** Adds the integer {@code n} as a set of its own, where n is the number of integers. */
+        void add() {
+            if (mCount == mParent.length) {
+                mParent = Arrays.copyOf(mParent, mCount * 2);
+                mSize = Arrays.copyOf(mSize, mCount * 2);
+            }
+            mParent[mCount] = mCount;
+            mSize[mCount] = 1;
+            mCount++;
+        }
+
+        int find(int i) {
+            while (mParent[i] != i) {
+                mParent[i] = mParent[mParent[i]];
+                i = mParent[i];
+            }
+            return i;
+        }
+
+        /** Returns the size of the set that {@code root} is the root of. */
+        int size(int root) {
+            return mSize[root];
+        }
+
+        /** Joins the sets of a and b and returns the root of the joined set. */
+        int union(int a, int b) {
+            int rootA = find(a);
+            int rootB = find(b);
+            if (rootA == rootB) {
+                return rootA;
+            }
+            if (mSize[rootA] < mSize[rootB]) {
+                final int swap = rootA;
+                rootA = rootB;
+                rootB = swap;
+            }
+            mParent[rootB] = rootA;
+            mSize[rootA] += mSize[rootB];
+            return rootA;
+        }
+    }
+}
@@ -28,7 +28,10 @@ import android.content.DialogInterface.OnDismissListener;
 import android.content.Loader;
 import android.database.Cursor;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.ContactsContract.RawContacts;
+import android.support.v4.os.ResultReceiver;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -53,7 +56,14 @@ public class ContactMultiDeletionInteraction extends Fragment
         implements LoaderCallbacks<Cursor> {
 
     public interface MultiContactDeleteListener {
+        /** Called once the user confirmed the deletion and it was handed to the service. */
+        void onDeletionStarted();
+
+        /** Called once all the contacts were deleted. */
         void onDeletionFinished();
+
+        /** Called if the service rejected the deletion. */
+        void onDeletionFailed();
     }
 
     private static final String FRAGMENT_TAG = "deleteMultipleContacts";
@@ -311,9 +321,31 @@ public class ContactMultiDeletionInteraction extends Fragment
     }
 
     protected void doDeleteContact(long[] contactIds, final String[] names) {
+        final MultiContactDeleteListener listener = mListener;
+        final ResultReceiver receiver = new ResultReceiver(new Handler(Looper.getMainLooper())) {
+            @Override
+            protected void onReceiveResult(int resultCode, Bundle resultData) {
+                if (listener == null) {
+                    return;
+                }
+                switch (resultCode) {
+                    case ContactSaveService.CONTACTS_DELETED:
+                        listener.onDeletionFinished();
+                        break;
+                    case ContactSaveService.BAD_ARGUMENTS:
+                        listener.onDeletionFailed();
+                        break;
+                    default:
+                        // Progress of a long deletion; the list reloads as contacts go
+                        break;
+                }
+            }
+        };
         mContext.startService(ContactSaveService.createDeleteMultipleContactsIntent(mContext,
-                contactIds, names));
-        mListener.onDeletionFinished();
+                contactIds, names, receiver));
+        if (listener != null) {
+            listener.onDeletionStarted();
+        }
     }
 
     public void setListener(MultiContactDeleteListener listener) {
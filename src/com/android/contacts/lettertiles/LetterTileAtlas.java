@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.lettertiles;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Letter tiles of one size, each rendered once into a cell of a few wide bitmaps ("strips"),
+ * so that drawing a tile is a single blit. Cells are allocated as tiles are first drawn; once
+ * all cells are taken, the tile that was drawn least recently gives up its cell.
+ * <p>
+ * Only accessed on the UI thread, see {@link LetterTileDrawable}.
+ */
+final class LetterTileAtlas {
+    /** Maximum width of a strip in pixels. */
+    private static final int MAX_STRIP_WIDTH = 2048;
+
+    private final int mExtent;
+    private final int mCellsPerStrip;
+    private final int mMaxCells;
+    private final Bitmap[] mStrips;
+
+    /** Cell index of each rendered tile, least recently drawn first. */
+    private final LinkedHashMap<Object, Integer> mCells =
+            new LinkedHashMap<Object, Integer>(16, 0.75f, true /* accessOrder */);
+
+    private final Rect mSrcRect = new Rect();
+
+    /**
+     * @param extent Width and height of the tiles in pixels
+     * @param maxBytes Maximum size of all strips together
+     */
+    LetterTileAtlas(int extent, int maxBytes) {
+        mExtent = extent;
+        mCellsPerStrip = Math.max(1, MAX_STRIP_WIDTH / extent);
+        mMaxCells = Math.max(1, maxBytes / (extent * extent * 4));
+        mStrips = new Bitmap[(mMaxCells + mCellsPerStrip - 1) / mCellsPerStrip];
+    }
+
+    int getExtent() {
+        return mExtent;
+    }
+
+    /**
+     * Draws the tile with the given key into {@code bounds}, which must be {@link #getExtent()}
+     * pixels square. If the tile is not in the atlas yet, it is first rendered into a cell
+     * by {@code drawable}.
+     *
+     * @param key Identifies the look of the tile. Must not be modified after it was passed in.
+     * @return false if there was no memory for the tile
+     */
+    boolean draw(Canvas canvas, Rect bounds, Object key, LetterTileDrawable drawable) {
+        Integer cell = mCells.get(key);
+        if (cell == null) {
+            cell = allocateCell();
+            if (cell < 0) {
+                return false;
+            }
+            render(cell, bounds, drawable);
+            mCells.put(key, cell);
+        }
+        final int left = (cell % mCellsPerStrip) * mExtent;
+        mSrcRect.set(left, 0, left + mExtent, mExtent);
+        canvas.drawBitmap(mStrips[cell / mCellsPerStrip], mSrcRect, bounds, null);
+        return true;
+    }
+
+    boolean contains(Object key) {
+        return mCells.containsKey(key);
+    }
+
+    /**
+     * Returns a free cell, or the cell of the least recently drawn tile if all cells are in
+     * use. Returns -1 if the strip of the cell could not be allocated.
+     */
+    private int allocateCell() {
+        final int cell;
+        if (mCells.size() < mMaxCells) {
+            // Cells are only given up once all of them are in use, so the next one is free
+            cell = mCells.size();
+        } else {
+            final Iterator<Map.Entry<Object, Integer>> eldest = mCells.entrySet().iterator();
+            cell = eldest.next().getValue();
+            eldest.remove();
+        }
+
+        final int strip = cell / mCellsPerStrip;
+        if (mStrips[strip] == null) {
+            final int cells = Math.min(mCellsPerStrip, mMaxCells - strip * mCellsPerStrip);
+            try {
+                mStrips[strip] = Bitmap.createBitmap(cells * mExtent, mExtent,
+                        Bitmap.Config.ARGB_8888);
+            } catch (OutOfMemoryError e) {
+                return -1;
+            }
+        }
+        return cell;
+    }
+
+    private void render(int cell, Rect bounds, LetterTileDrawable drawable) {
+        final int left = (cell % mCellsPerStrip) * mExtent;
+        final Canvas canvas = new Canvas(mStrips[cell / mCellsPerStrip]);
+        canvas.clipRect(left, 0, left + mExtent, mExtent);
+        // The cell may still hold the tile that had it before
+        canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        canvas.translate(left - bounds.left, -bounds.top);
+        drawable.drawLetterTile(canvas);
+    }
+}
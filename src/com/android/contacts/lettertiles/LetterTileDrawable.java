@@ -28,10 +28,13 @@ import android.graphics.Rect;
 import android.graphics.Typeface;
 import android.graphics.drawable.AdaptiveIconDrawable;
 import android.graphics.drawable.Drawable;
+import android.os.Looper;
 import android.text.TextUtils;
+import android.util.LruCache;
 
 import com.android.contacts.R;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 
 /**
@@ -67,6 +70,28 @@ public class LetterTileDrawable extends Drawable {
     /** 54% opacity */
     private static final int ALPHA = 138;
 
+    /** Maximum size of one {@link LetterTileAtlas}. */
+    private static final int ATLAS_SIZE = 2 * 1024 * 1024;
+
+    /** Number of tile sizes for which an atlas is kept. */
+    private static final int MAX_ATLASES = 3;
+
+    /** Tiles bigger than this are drawn directly rather than from an atlas. */
+    private static final int MAX_ATLAS_TILE_BYTES = ATLAS_SIZE / 8;
+
+    /**
+     * Rendered tiles by size, so that drawing a tile that was drawn before is a single bitmap
+     * blit instead of a shape and a glyph. Only accessed on the UI thread; tiles drawn on other
+     * threads, e.g. for shortcuts, are drawn directly.
+     */
+    private static final LruCache<Integer, LetterTileAtlas> sAtlases =
+            new LruCache<Integer, LetterTileAtlas>(MAX_ATLASES);
+
+    private static boolean sAtlasEnabled = true;
+
+    /** Reusable key for lookups in {@link #sAtlases} */
+    private static final TileKey sLookupKey = new TileKey();
+
     private int mContactType = TYPE_DEFAULT;
     private float mScale = 1.0f;
     private float mOffset = 0.0f;
@@ -104,10 +129,44 @@ public class LetterTileDrawable extends Drawable {
         if (!isVisible() || bounds.isEmpty()) {
             return;
         }
+        if (drawFromAtlas(canvas, bounds)) {
+            return;
+        }
         // Draw letter tile.
         drawLetterTile(canvas);
     }
 
+    /**
+     * Draws the tile for the current state from the atlas for its size, rendering it into the
+     * atlas if necessary. Returns false if the tile has to be drawn directly, e.g. because it
+     * is not square, too big or drawn off the UI thread.
+     */
+    private boolean drawFromAtlas(Canvas canvas, Rect bounds) {
+        final int extent = bounds.width();
+        if (!sAtlasEnabled || extent != bounds.height()
+                || extent * extent * 4 > MAX_ATLAS_TILE_BYTES
+                || Looper.myLooper() != Looper.getMainLooper()) {
+            return false;
+        }
+        LetterTileAtlas atlas = sAtlases.get(extent);
+        if (atlas == null) {
+            atlas = new LetterTileAtlas(extent, ATLAS_SIZE);
+            sAtlases.put(extent, atlas);
+        }
+        sLookupKey.set(this);
+        final TileKey key = atlas.contains(sLookupKey) ? sLookupKey : new TileKey().set(this);
+        return atlas.draw(canvas, bounds, key, this);
+    }
+
+    /**
+     * Turns drawing from the tile atlases on or off, for comparing the two.
+     */
+    @VisibleForTesting
+    static void setAtlasEnabled(boolean enabled) {
+        sAtlasEnabled = enabled;
+        sAtlases.evictAll();
+    }
+
     /**
      * Draw the bitmap onto the canvas at the current bounds taking into account the current scale.
      */
@@ -135,7 +194,10 @@ public class LetterTileDrawable extends Drawable {
         canvas.drawBitmap(bitmap, sRect, destRect, sPaint);
     }
 
-    private void drawLetterTile(final Canvas canvas) {
+    /**
+     * Draws the tile into the current bounds. Also used to render tiles into an atlas.
+     */
+    void drawLetterTile(final Canvas canvas) {
         // Draw background color.
         sPaint.setColor(mColor);
 
@@ -286,6 +348,55 @@ public class LetterTileDrawable extends Drawable {
         return this;
     }
 
+    /**
+     * Everything other than its size that affects how a tile looks. Identifies a tile in a
+     * {@link LetterTileAtlas}.
+     */
+    private static final class TileKey {
+        private int mColor;
+        private char mLetter;
+        private int mContactType;
+        private boolean mIsCircle;
+        private float mScale;
+        private float mOffset;
+        private int mAlpha;
+
+        TileKey set(LetterTileDrawable drawable) {
+            mColor = drawable.mColor;
+            mLetter = drawable.mLetter == null ? 0 : drawable.mLetter;
+            // The contact type is only drawn when there is no letter
+            mContactType = drawable.mLetter == null ? drawable.mContactType : 0;
+            mIsCircle = drawable.mIsCircle;
+            mScale = drawable.mScale;
+            mOffset = drawable.mOffset;
+            mAlpha = drawable.mPaint.getAlpha();
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof TileKey)) return false;
+            final TileKey that = (TileKey) obj;
+            return mColor == that.mColor && mLetter == that.mLetter
+                    && mContactType == that.mContactType && mIsCircle == that.mIsCircle
+                    && mScale == that.mScale && mOffset == that.mOffset
+                    && mAlpha == that.mAlpha;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mColor;
+            result = 31 * result + mLetter;
+            result = 31 * result + mContactType;
+            result = 31 * result + (mIsCircle ? 1 : 0);
+            result = 31 * result + Float.floatToIntBits(mScale);
+            result = 31 * result + Float.floatToIntBits(mOffset);
+            result = 31 * result + mAlpha;
+            return result;
+        }
+    }
+
     /**
      * Returns the scale percentage as a float for LetterTileDrawables used in AdaptiveIcons.
      */
@@ -674,6 +674,51 @@ public abstract class ContactEntryListAdapter extends IndexerListAdapter {
         }
     }
 
+    /**
+     * Returns the index of the photo id column in the cursors of this adapter, or -1 if the
+     * rows are not bound with thumbnails by photo id.
+     */
+    protected int getPhotoIdColumn() {
+        return -1;
+    }
+
+    /**
+     * Collects the photo ids of up to {@code maxCount} rows, starting at {@code position} and
+     * moving in {@code direction} (1 or -1). Rows without a photo id are skipped. Used to
+     * prefetch the thumbnails of rows that are about to be scrolled into view.
+     *
+     * @return the number of photo ids written to {@code photoIds}
+     */
+    public int getPhotoIdsForPrefetch(int position, int direction, int maxCount,
+            long[] photoIds) {
+        final int photoIdColumn = getPhotoIdColumn();
+        if (photoIdColumn == -1) {
+            return 0;
+        }
+        final int itemCount = getCount();
+        final int end = position + direction * maxCount;
+        int count = 0;
+        for (int i = position; i != end && i >= 0 && i < itemCount
+                && count < photoIds.length; i += direction) {
+            final int partitionIndex = getPartitionForPosition(i);
+            if (partitionIndex == -1 || !isPhotoSupported(partitionIndex)) {
+                continue;
+            }
+            final Object item = getItem(i);
+            if (!(item instanceof Cursor)) {
+                continue;
+            }
+            final Cursor cursor = (Cursor) item;
+            if (!cursor.isNull(photoIdColumn)) {
+                final long photoId = cursor.getLong(photoIdColumn);
+                if (photoId != 0) {
+                    photoIds[count++] = photoId;
+                }
+            }
+        }
+        return count;
+    }
+
     public boolean isPhotoSupported(int partitionIndex) {
         Partition partition = getPartition(partitionIndex);
         if (partition instanceof DirectoryPartition) {
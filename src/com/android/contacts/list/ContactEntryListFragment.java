@@ -29,6 +29,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.provider.ContactsContract.Directory;
 import android.text.TextUtils;
 import android.util.Log;
@@ -96,6 +97,15 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
 
     private static final int DEFAULT_DIRECTORY_RESULT_LIMIT = 20;
 
+    /**
+     * Thumbnails are prefetched for the rows that will scroll into view within this time at
+     * the current scroll speed.
+     */
+    private static final int PHOTO_PREFETCH_LOOKAHEAD_MILLIS = 500;
+
+    /** Maximum number of rows whose thumbnails are prefetched at a time. */
+    private static final int PHOTO_PREFETCH_MAX_ROWS = 60;
+
     private boolean mSectionHeaderDisplayEnabled;
     private boolean mPhotoLoaderEnabled;
     private boolean mQuickContactEnabled = true;
@@ -145,6 +155,16 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
     private ContactPhotoManager mPhotoManager;
     private ContactsPreferences mContactsPrefs;
 
+    /**
+     * Used for measuring the scroll speed and direction, to prefetch thumbnails of the rows
+     * that are about to be scrolled into view.
+     */
+    private int mLastFirstVisibleItem = -1;
+    private long mLastScrollTime;
+    private int mPhotoPrefetchDirection;
+    private int mPhotoPrefetchLimit;
+    private final long[] mPhotoPrefetchIds = new long[PHOTO_PREFETCH_MAX_ROWS];
+
     private boolean mForceLoad;
 
     private boolean mDarkTheme;
@@ -851,10 +871,58 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
     @Override
     public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
             int totalItemCount) {
+        if (!isPhotoLoaderEnabled() || mPhotoManager == null || mAdapter == null) {
+            return;
+        }
+        final long now = SystemClock.uptimeMillis();
+        final int delta = firstVisibleItem - mLastFirstVisibleItem;
+        final long elapsed = now - mLastScrollTime;
+        final boolean firstEvent = mLastFirstVisibleItem == -1;
+        mLastFirstVisibleItem = firstVisibleItem;
+        mLastScrollTime = now;
+        if (firstEvent || delta == 0 || elapsed <= 0) {
+            return;
+        }
+        prefetchPhotos(firstVisibleItem, visibleItemCount, delta, elapsed);
+    }
+
+    /**
+     * Asks the photo manager to fetch the thumbnails of the rows that will come into view
+     * next, given that the first visible row moved by {@code delta} rows in {@code elapsed}
+     * milliseconds. The faster the list scrolls, the further ahead thumbnails are fetched.
+     */
+    private void prefetchPhotos(int firstVisibleItem, int visibleItemCount, int delta,
+            long elapsed) {
+        final int direction = delta > 0 ? 1 : -1;
+        final float rowsPerSecond = Math.abs(delta) * 1000f / elapsed;
+        final int rows = Math.min(PHOTO_PREFETCH_MAX_ROWS, Math.max(visibleItemCount,
+                (int) (rowsPerSecond * PHOTO_PREFETCH_LOOKAHEAD_MILLIS / 1000)));
+        final int start = (direction > 0 ? firstVisibleItem + visibleItemCount
+                : firstVisibleItem - 1) - mListView.getHeaderViewsCount();
+        final int limit = start + direction * rows;
+
+        // Nothing to do if these rows were covered by the previous request.
+        if (direction == mPhotoPrefetchDirection && (direction > 0
+                ? limit <= mPhotoPrefetchLimit : limit >= mPhotoPrefetchLimit)) {
+            return;
+        }
+        mPhotoPrefetchDirection = direction;
+        mPhotoPrefetchLimit = limit;
+
+        final int count = mAdapter.getPhotoIdsForPrefetch(start, direction, rows,
+                mPhotoPrefetchIds);
+        if (count > 0) {
+            mPhotoManager.prefetchThumbnails(mPhotoPrefetchIds, count);
+        }
     }
 
     @Override
     public void onScrollStateChanged(AbsListView view, int scrollState) {
+        if (scrollState == OnScrollListener.SCROLL_STATE_IDLE) {
+            // The next scroll starts from rest
+            mLastFirstVisibleItem = -1;
+            mPhotoPrefetchDirection = 0;
+        }
         if (scrollState == OnScrollListener.SCROLL_STATE_FLING) {
             mPhotoManager.pause();
         } else if (isPhotoLoaderEnabled()) {
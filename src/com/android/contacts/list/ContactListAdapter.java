@@ -241,6 +241,11 @@ public abstract class ContactListAdapter extends MultiSelectEntryContactListAdap
         }
     }
 
+    @Override
+    protected int getPhotoIdColumn() {
+        return ContactQuery.CONTACT_PHOTO_ID;
+    }
+
     protected void bindPhoto(final ContactListItemView view, int partitionIndex, Cursor cursor) {
         if (!isPhotoSupported(partitionIndex)) {
             view.removePhotoView();
@@ -1021,6 +1021,7 @@ public class DefaultContactBrowseListFragment extends ContactBrowseListFragment
         final boolean showLinkContactsOptions = mActionBarAdapter.isSelectionMode()
                 && getSelectedContactIds().size() > 1;
         makeMenuItemVisible(menu, R.id.menu_join, showLinkContactsOptions);
+        makeMenuItemVisible(menu, R.id.menu_link_duplicates, !isSearchOrSelectionMode);
 
         // Debug options need to be visible even in search mode.
         makeMenuItemVisible(menu, R.id.export_database, mEnableDebugMenuOptions &&
@@ -1083,6 +1084,11 @@ public class DefaultContactBrowseListFragment extends ContactBrowseListFragment
         } else if (id == R.id.menu_delete) {
             deleteSelectedContacts();
             return true;
+        } else if (id == R.id.menu_link_duplicates) {
+            ContactSaveService.startService(getContext(),
+                    ContactSaveService.createMergeDuplicatesIntent(getContext(),
+                            /* receiver */ null));
+            return true;
         } else if (id == R.id.export_database) {
             final Intent intent = new Intent("com.android.providers.contacts.DUMP_DATABASE");
             intent.setFlags(Intent.FLAG_ACTIVITY_CLEAR_WHEN_TASK_RESET);
@@ -1156,7 +1162,7 @@ public class DefaultContactBrowseListFragment extends ContactBrowseListFragment
 
     private final class MultiDeleteListener implements MultiContactDeleteListener {
         @Override
-        public void onDeletionFinished() {
+        public void onDeletionStarted() {
             // The parameters count and numSelected are both the number of contacts before deletion.
             Logger.logListEvent(ListEvent.ActionType.DELETE,
                 /* listType */ getListTypeIncludingSearch(),
@@ -1165,6 +1171,16 @@ public class DefaultContactBrowseListFragment extends ContactBrowseListFragment
             mActionBarAdapter.setSelectionMode(false);
             mIsDeletionInProgress = false;
         }
+
+        @Override
+        public void onDeletionFinished() {
+            // The list reloads on its own and ContactSaveService shows the toast
+        }
+
+        @Override
+        public void onDeletionFailed() {
+            Log.e(TAG, "Failed to delete the selected contacts");
+        }
     }
 
     private int getListTypeIncludingSearch() {
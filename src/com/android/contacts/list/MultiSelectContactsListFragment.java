@@ -298,6 +298,7 @@ public abstract class MultiSelectContactsListFragment<T extends MultiSelectEntry
     @Override
     public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
             int totalItemCount) {
+        super.onScroll(view, firstVisibleItem, visibleItemCount, totalItemCount);
         final View accountFilterContainer = getView().findViewById(
                 R.id.account_filter_header_container);
         if (accountFilterContainer == null) {
@@ -530,6 +530,11 @@ public class PhoneNumberListAdapter extends ContactEntryListAdapter {
                 !isExtendedDirectory(directoryId) && userType == ContactsUtils.USER_TYPE_WORK);
     }
 
+    @Override
+    protected int getPhotoIdColumn() {
+        return PhoneQuery.PHOTO_ID;
+    }
+
     protected void bindPhoto(final ContactListItemView view, int partitionIndex, Cursor cursor) {
         if (!isPhotoSupported(partitionIndex)) {
             view.removePhotoView();
@@ -527,6 +527,15 @@ public class RawContactDelta implements Parcelable {
      * ArrayList of CPOWrapper as parameter.
      */
     public void buildDiffWrapper(ArrayList<CPOWrapper> buildInto) {
+        buildDiffWrapper(buildInto, /* yieldAllowed = */ false);
+    }
+
+    /**
+     * Same as {@link #buildDiffWrapper(ArrayList)}, but if {@param yieldAllowed} is true, the
+     * first operation for this raw contact allows the provider to yield its transaction, see
+     * {@link ContentProviderOperation.Builder#withYieldAllowed}.
+     */
+    public void buildDiffWrapper(ArrayList<CPOWrapper> buildInto, boolean yieldAllowed) {
         final int firstIndex = buildInto.size();
 
         final boolean isContactInsert = mValues.isInsert();
@@ -544,6 +553,10 @@ public class RawContactDelta implements Parcelable {
 
         // Build possible operation at Contact level
         BuilderWrapper bw = mValues.buildDiffWrapper(mContactsQueryUri);
+        if (yieldAllowed && !isContactUpdate && bw != null && bw.getBuilder() != null) {
+            // Updates start with the operation that suspends aggregation, see below
+            bw.getBuilder().withYieldAllowed(true);
+        }
         possibleAddWrapper(buildInto, bw);
 
         // Build operations for all children
@@ -581,6 +594,7 @@ public class RawContactDelta implements Parcelable {
             // Suspend aggregation while persisting updates
             Builder builder =
                     buildSetAggregationMode(beforeId, RawContacts.AGGREGATION_MODE_SUSPENDED);
+            builder.withYieldAllowed(yieldAllowed);
             buildInto.add(firstIndex, new CPOWrapper(builder.build(), CompatUtils.TYPE_UPDATE));
 
             // Restore aggregation mode as last operation
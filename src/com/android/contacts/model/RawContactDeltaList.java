@@ -126,6 +126,17 @@ public class RawContactDeltaList extends ArrayList<RawContactDelta> implements P
      * any {@link AggregationExceptions} rules needed to groups edits together.
      */
     public ArrayList<CPOWrapper> buildDiffWrapper() {
+        return buildDiffWrapper(/* yieldInterval = */ 0);
+    }
+
+    /**
+     * Same as {@link #buildDiffWrapper()}, but lets the provider yield its transaction before
+     * the operations of a raw contact once at least {@param yieldInterval} operations have
+     * been added since the last yield point, so that saving many raw contacts does not hold the
+     * database lock for too long. Yield points are only placed between raw contacts, and
+     * {@param yieldInterval} 0 adds none.
+     */
+    public ArrayList<CPOWrapper> buildDiffWrapper(int yieldInterval) {
         if (VERBOSE_LOGGING) {
             Log.v(TAG, "buildDiffWrapper: list=" + toString());
         }
@@ -143,6 +154,7 @@ public class RawContactDeltaList extends ArrayList<RawContactDelta> implements P
         int backRefs[] = new int[size()];
 
         int rawContactIndex = 0;
+        int lastYieldPoint = 0;
 
         // Second pass builds actual operations
         for (RawContactDelta delta : this) {
@@ -150,7 +162,12 @@ public class RawContactDeltaList extends ArrayList<RawContactDelta> implements P
             final boolean isInsert = delta.isContactInsert();
             backRefs[rawContactIndex++] = isInsert ? firstBatch : -1;
 
-            delta.buildDiffWrapper(diffWrapper);
+            final boolean yieldAllowed =
+                    yieldInterval > 0 && firstBatch - lastYieldPoint >= yieldInterval;
+            delta.buildDiffWrapper(diffWrapper, yieldAllowed);
+            if (yieldAllowed && diffWrapper.size() > firstBatch) {
+                lastYieldPoint = firstBatch;
+            }
 
             // If the user chose to join with some other existing raw contact(s) at save time,
             // add aggregation exceptions for all those raw contacts.
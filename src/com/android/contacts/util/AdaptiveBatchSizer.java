@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.util;
+
+/**
+ * Picks the number of operations to send to a content provider in one batch, so that a batch
+ * takes about a target time. Batches that take longer than the target hold the provider's
+ * database lock long enough to stall other writers such as sync adapters, while much shorter
+ * batches waste time on transaction overhead.
+ * <p>
+ * The size is moved halfway towards the size that the latest batch suggests, and is halved
+ * when a batch fails. Safe to use from several threads.
+ */
+public final class AdaptiveBatchSizer {
+    private final int mMinSize;
+    private final int mMaxSize;
+    private final long mTargetNanos;
+
+    private int mSize;
+
+    /**
+     * @param minSize The smallest batch size to use
+     * @param maxSize The largest batch size to use, which is also the initial size
+     * @param targetNanos How long a batch should take
+     */
+    public AdaptiveBatchSizer(int minSize, int maxSize, long targetNanos) {
+        mMinSize = minSize;
+        mMaxSize = maxSize;
+        mTargetNanos = targetNanos;
+        mSize = maxSize;
+    }
+
+    public synchronized int getBatchSize() {
+        return mSize;
+    }
+
+    /**
+     * Records that a batch of {@code operations} operations took {@code nanos} to apply.
+     */
+    public synchronized void onBatchApplied(int operations, long nanos) {
+        if (operations <= 0) {
+            return;
+        }
+        final long nanosPerOperation = Math.max(1, nanos / operations);
+        final long idealSize = mTargetNanos / nanosPerOperation;
+        mSize = clamp((mSize + idealSize) / 2);
+    }
+
+    /** Records that a batch failed to apply. */
+    public synchronized void onBatchFailed() {
+        mSize = clamp(mSize / 2);
+    }
+
+    private int clamp(long size) {
+        return (int) Math.max(mMinSize, Math.min(mMaxSize, size));
+    }
+}
@@ -27,6 +27,9 @@ import android.graphics.RectF;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
 /**
  * Provides static functions to decode bitmaps at the optimal size
  */
@@ -89,6 +92,142 @@ public class BitmapUtil {
         return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
     }
 
+    /**
+     * Decodes the bitmap with the given sample size into a mutable bitmap, reusing the pixel
+     * buffer of {@code inBitmap} if possible. If {@code inBitmap} cannot be reused, a new
+     * bitmap is allocated.
+     */
+    public static Bitmap decodeBitmapFromBytes(byte[] bytes, int sampleSize, Bitmap inBitmap) {
+        final BitmapFactory.Options options = createReusingOptions(sampleSize, inBitmap);
+        try {
+            return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        } catch (IllegalArgumentException e) {
+            // inBitmap does not fit
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        }
+    }
+
+    /**
+     * Decodes the bitmap in the remaining bytes of the given buffer like
+     * {@link #decodeBitmapFromBytes(byte[], int, Bitmap)}. The buffer is streamed to the
+     * decoder, so a direct or memory-mapped buffer is never copied onto the Java heap as a
+     * whole. The position of the buffer is not changed.
+     */
+    public static Bitmap decodeBitmapFromBuffer(ByteBuffer buffer, int sampleSize,
+            Bitmap inBitmap) {
+        final BitmapFactory.Options options = createReusingOptions(sampleSize, inBitmap);
+        try {
+            return BitmapFactory.decodeStream(
+                    new ByteBufferInputStream(buffer.duplicate()), null, options);
+        } catch (IllegalArgumentException e) {
+            // inBitmap does not fit
+            options.inBitmap = null;
+            return BitmapFactory.decodeStream(
+                    new ByteBufferInputStream(buffer.duplicate()), null, options);
+        }
+    }
+
+    /**
+     * Returns the number of bytes needed for the pixels of the picture when it is decoded with
+     * the given sample size, or 0 if the picture cannot be decoded. Doesn't actually decode the
+     * picture.
+     */
+    public static int getDecodedByteCount(byte[] bytes, int sampleSize) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        return getDecodedByteCount(options, sampleSize);
+    }
+
+    /**
+     * Same as {@link #getDecodedByteCount(byte[], int)} for the remaining bytes of a buffer.
+     */
+    public static int getDecodedByteCount(ByteBuffer buffer, int sampleSize) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeStream(new ByteBufferInputStream(buffer.duplicate()), null, options);
+        return getDecodedByteCount(options, sampleSize);
+    }
+
+    private static int getDecodedByteCount(BitmapFactory.Options bounds, int sampleSize) {
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            return 0;
+        }
+        final int sample = Math.max(1, sampleSize);
+        final int width = (bounds.outWidth + sample - 1) / sample;
+        final int height = (bounds.outHeight + sample - 1) / sample;
+        // Photos are decoded as ARGB_8888
+        return width * height * 4;
+    }
+
+    private static BitmapFactory.Options createReusingOptions(int sampleSize, Bitmap inBitmap) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = Math.max(1, sampleSize);
+        options.inMutable = true;
+        options.inBitmap = inBitmap;
+        return options;
+    }
+
+    /**
+     * An {@link InputStream} that reads the remaining bytes of a {@link ByteBuffer}.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+        private int mMark = -1;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? mBuffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+            final int count = Math.min(len, mBuffer.remaining());
+            mBuffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            final int count = (int) Math.max(0, Math.min(n, mBuffer.remaining()));
+            mBuffer.position(mBuffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            mMark = mBuffer.position();
+        }
+
+        @Override
+        public synchronized void reset() {
+            if (mMark >= 0) {
+                mBuffer.position(mMark);
+            }
+        }
+    }
+
     /**
      * Retrieves a copy of the specified drawable resource, rotated by a specified angle.
      *
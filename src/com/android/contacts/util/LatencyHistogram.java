@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.util;
+
+/**
+ * Counts durations in buckets that double in width, so that percentiles can be estimated at
+ * a fixed memory cost. The first bucket holds durations below 64us, the last one durations
+ * of about 17s and more. Safe to use from several threads.
+ */
+public final class LatencyHistogram {
+    private static final int FIRST_BUCKET_BITS = 6;
+    private static final int BUCKET_COUNT = 20;
+
+    private final int[] mBuckets = new int[BUCKET_COUNT];
+    private int mCount;
+    private long mTotalMicros;
+    private long mMaxMicros;
+
+    /**
+     * Records a duration given in nanoseconds, e.g. the difference of two
+     * {@link System#nanoTime()} values.
+     */
+    public synchronized void record(long nanos) {
+        final long micros = Math.max(0, nanos / 1000);
+        mBuckets[getBucket(micros)]++;
+        mCount++;
+        mTotalMicros += micros;
+        mMaxMicros = Math.max(mMaxMicros, micros);
+    }
+
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    public synchronized long getMaxMicros() {
+        return mMaxMicros;
+    }
+
+    /**
+     * Returns an upper bound of the given percentile (0-100) of the recorded durations in
+     * microseconds: the upper end of the bucket that holds it, or the longest duration if that
+     * is shorter. Returns 0 if nothing was recorded.
+     */
+    public synchronized long getPercentileMicros(int percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        // The rank of the duration at the percentile, counting from 1
+        final long rank = Math.max(1, ((long) mCount * percentile + 99) / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets[i];
+            if (seen >= rank) {
+                return Math.min(getBucketLimitMicros(i), mMaxMicros);
+            }
+        }
+        return mMaxMicros;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets[i] = 0;
+        }
+        mCount = 0;
+        mTotalMicros = 0;
+        mMaxMicros = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (mCount == 0) {
+            return "count=0";
+        }
+        return "count=" + mCount
+                + " avg=" + formatMicros(mTotalMicros / mCount)
+                + " p50=" + formatMicros(getPercentileMicros(50))
+                + " p90=" + formatMicros(getPercentileMicros(90))
+                + " p99=" + formatMicros(getPercentileMicros(99))
+                + " max=" + formatMicros(mMaxMicros);
+    }
+
+    private static int getBucket(long micros) {
+        final int bits = 64 - Long.numberOfLeadingZeros(micros);
+        return Math.max(0, Math.min(BUCKET_COUNT - 1, bits - FIRST_BUCKET_BITS));
+    }
+
+    /** Returns the smallest duration that does not fit into the given bucket. */
+    private static long getBucketLimitMicros(int bucket) {
+        return bucket == BUCKET_COUNT - 1 ? Long.MAX_VALUE : 1L << (bucket + FIRST_BUCKET_BITS);
+    }
+
+    private static String formatMicros(long micros) {
+        return micros < 1000 ? micros + "us" : (micros / 1000) + "." + (micros % 1000) / 100 + "ms";
+    }
+}
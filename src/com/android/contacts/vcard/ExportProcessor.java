@@ -21,11 +21,12 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.res.Resources;
+import android.database.Cursor;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Message;
 import android.provider.ContactsContract.Contacts;
-import android.provider.ContactsContract.RawContactsEntity;
+import android.provider.ContactsContract.DeletedContacts;
 import android.text.TextUtils;
 import android.util.Log;
 import android.widget.Toast;
@@ -35,12 +36,15 @@ import com.android.contactsbind.FeedbackHelper;
 import com.android.vcard.VCardComposer;
 import com.android.vcard.VCardConfig;
 
-import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Class for processing one export request from a user. Dropped after exporting requested Uri(s).
@@ -110,8 +114,7 @@ public class ExportProcessor extends ProcessorBase {
     private void runInternal() {
         if (DEBUG) Log.d(LOG_TAG, String.format("vCard export (id: %d) has started.", mJobId));
         final ExportRequest request = mExportRequest;
-        VCardComposer composer = null;
-        Writer writer = null;
+        OutputStream outputStream = null;
         boolean successful = false;
         try {
             if (isCancelled()) {
@@ -119,7 +122,6 @@ public class ExportProcessor extends ProcessorBase {
                 return;
             }
             final Uri uri = request.destUri;
-            final OutputStream outputStream;
             try {
                 outputStream = mResolver.openOutputStream(uri);
             } catch (FileNotFoundException e) {
@@ -142,20 +144,25 @@ public class ExportProcessor extends ProcessorBase {
                 vcardType = VCardConfig.getVCardTypeFromString(exportType);
             }
 
-            composer = new VCardComposer(mService, vcardType, true);
-
-            // for test
-            // int vcardType = (VCardConfig.VCARD_TYPE_V21_GENERIC |
-            //     VCardConfig.FLAG_USE_QP_TO_PRIMARY_PROPERTIES);
-            // composer = new VCardComposer(ExportVCardActivity.this, vcardType, true);
-
-            writer = new BufferedWriter(new OutputStreamWriter(outputStream));
-            final Uri contentUriForRawContactsEntity = RawContactsEntity.CONTENT_URI;
-            // TODO: should provide better selection.
-            if (!composer.init(Contacts.CONTENT_URI, new String[] {Contacts._ID},
-                    null, null,
-                    null, contentUriForRawContactsEntity)) {
-                final String errorReason = composer.getErrorReason();
+            // An incremental export only writes the contacts that changed since the last one,
+            // unless there is none yet or it is too old to know about all deleted contacts.
+            // The time is read before the queries and becomes the watermark, so a contact that
+            // changes while they run, even in the same millisecond, is in the next export.
+            final long exportedAt = System.currentTimeMillis();
+            final VCardExportManifest manifest = request.incremental
+                    ? VCardExportManifest.load(
+                            new File(mService.getFilesDir(), VCardExportManifest.FILE_NAME))
+                    : null;
+            final boolean delta = manifest != null && manifest.canExportDelta(exportedAt);
+            final long[] contactIds = queryContactIds(Contacts.CONTENT_URI, Contacts._ID,
+                    Contacts.CONTACT_LAST_UPDATED_TIMESTAMP,
+                    delta ? manifest.getLastUpdatedWatermark() : 0);
+            final long[] deletedContactIds = manifest == null ? null
+                    : queryContactIds(DeletedContacts.CONTENT_URI, DeletedContacts.CONTACT_ID,
+                            DeletedContacts.CONTACT_DELETED_TIMESTAMP,
+                            delta ? manifest.getDeletedWatermark() : 0);
+            if (contactIds == null || (manifest != null && deletedContactIds == null)) {
+                final String errorReason = VCardComposer.FAILURE_REASON_FAILED_TO_GET_DATABASE_INFO;
                 Log.e(LOG_TAG, "initialization of vCard composer failed: " + errorReason);
                 final String translatedErrorReason =
                         translateComposerError(errorReason);
@@ -166,43 +173,68 @@ public class ExportProcessor extends ProcessorBase {
                 return;
             }
 
-            final int total = composer.getCount();
-            if (total == 0) {
+            if (contactIds.length == 0 && !delta) {
                 final String title =
                         mService.getString(R.string.fail_reason_no_exportable_contact);
                 doFinishNotification(title, null);
                 return;
             }
 
-            int current = 1;  // 1-origin
-            while (!composer.isAfterLast()) {
-                if (isCancelled()) {
-                    Log.i(LOG_TAG, "Export request is cancelled during composing vCard");
-                    return;
-                }
-                try {
-                    writer.write(composer.createOneEntry());
-                } catch (IOException e) {
-                    final String errorReason = composer.getErrorReason();
-                    Log.e(LOG_TAG, "Failed to read a contact: " + errorReason);
-                    final String translatedErrorReason =
-                            translateComposerError(errorReason);
-                    final String title =
-                            mService.getString(R.string.fail_reason_error_occurred_during_export,
-                                    translatedErrorReason);
-                    doFinishNotification(title, null);
-                    return;
-                }
-
-                // vCard export is quite fast (compared to import), and frequent notifications
-                // bother notification bar too much.
-                if (current % 100 == 1) {
-                    doProgressNotification(uri, total, current);
-                }
-                current++;
+            final WritableByteChannel channel = outputStream instanceof FileOutputStream
+                    ? ((FileOutputStream) outputStream).getChannel()
+                    : Channels.newChannel(outputStream);
+            final long start = System.nanoTime();
+            final long[] exportedIds;
+            try {
+                exportedIds = new ParallelVCardComposer(mService, vcardType).compose(contactIds,
+                        channel, new ParallelVCardComposer.Listener() {
+                            @Override
+                            public boolean isCancelled() {
+                                return ExportProcessor.this.isCancelled();
+                            }
+
+                            @Override
+                            public void onProgress(int exportedCount, int totalCount) {
+                                doProgressNotification(uri, totalCount, exportedCount);
+                            }
+                        });
+            } catch (IOException | ParallelVCardComposer.ComposeException e) {
+                final String errorReason = e instanceof ParallelVCardComposer.ComposeException
+                        ? ((ParallelVCardComposer.ComposeException) e).errorReason
+                        : e.getMessage();
+                Log.e(LOG_TAG, "Failed to read a contact: " + errorReason);
+                final String translatedErrorReason =
+                        translateComposerError(errorReason);
+                final String title =
+                        mService.getString(R.string.fail_reason_error_occurred_during_export,
+                                translatedErrorReason);
+                doFinishNotification(title, null);
+                return;
+            } catch (InterruptedException e) {
+                Log.i(LOG_TAG, "Export request is interrupted during composing vCard");
+                Thread.currentThread().interrupt();
+                return;
             }
+            if (isCancelled()) {
+                Log.i(LOG_TAG, "Export request is cancelled during composing vCard");
+                return;
+            }
+            final long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            Log.i(LOG_TAG, String.format("Exported %d contacts (%s) in %d ms",
+                    exportedIds.length, delta ? "delta" : "full", millis));
             Log.i(LOG_TAG, "Successfully finished exporting vCard " + request.destUri);
 
+            if (delta) {
+                manifest.addDelta(uri.toString(), exportedAt, exportedAt, exportedAt, exportedIds,
+                        deletedContactIds);
+            } else if (manifest != null) {
+                manifest.addBase(uri.toString(), exportedAt, exportedAt, exportedAt, exportedIds);
+            }
+            if (manifest != null && !manifest.save()) {
+                // The next incremental export starts from the previous watermarks again
+                Log.w(LOG_TAG, "Failed to record the export in the manifest");
+            }
+
             if (DEBUG) {
                 Log.d(LOG_TAG, "Ask MediaScanner to scan the file: " + request.destUri.getPath());
             }
@@ -227,12 +259,9 @@ public class ExportProcessor extends ProcessorBase {
                 doFinishNotification(title, null);
             }
         } finally {
-            if (composer != null) {
-                composer.terminate();
-            }
-            if (writer != null) {
+            if (outputStream != null) {
                 try {
-                    writer.close();
+                    outputStream.close();
                 } catch (IOException e) {
                     Log.w(LOG_TAG, "IOException is thrown during close(). Ignored. " + e);
                 }
@@ -241,6 +270,32 @@ public class ExportProcessor extends ProcessorBase {
         }
     }
 
+    /**
+     * Returns the ids of the rows whose timestamp is at or after {@code since} in ascending
+     * order, or null if the provider could not be queried. All rows are returned if
+     * {@code since} is 0. A row at exactly {@code since} may have been in the last export
+     * already; it is written again rather than risk missing a row written in that millisecond.
+     */
+    private long[] queryContactIds(Uri uri, String idColumn, String timestampColumn,
+            long since) {
+        final Cursor cursor = mResolver.query(uri, new String[] {idColumn},
+                since > 0 ? timestampColumn + ">=?" : null,
+                since > 0 ? new String[] {String.valueOf(since)} : null, idColumn);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            final long[] ids = new long[cursor.getCount()];
+            int i = 0;
+            while (cursor.moveToNext() && i < ids.length) {
+                ids[i++] = cursor.getLong(0);
+            }
+            return i == ids.length ? ids : Arrays.copyOf(ids, i);
+        } finally {
+            cursor.close();
+        }
+    }
+
     private boolean isLocalFile(Uri uri) {
         final String authority = uri.getAuthority();
         return mService.getString(R.string.contacts_file_provider_authority).equals(authority);
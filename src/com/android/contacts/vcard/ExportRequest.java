@@ -26,6 +26,12 @@ public class ExportRequest {
 
     public final String displayName;
 
+    /**
+     * Whether to export only the contacts that changed since the last incremental export.
+     * See {@link VCardExportManifest}.
+     */
+    public final boolean incremental;
+
     public ExportRequest(Uri destUri) {
         this(destUri, null);
     }
@@ -35,8 +41,14 @@ public class ExportRequest {
     }
 
     public ExportRequest(Uri destUri, String exportType, String displayName) {
+        this(destUri, exportType, displayName, false);
+    }
+
+    public ExportRequest(Uri destUri, String exportType, String displayName,
+            boolean incremental) {
         this.destUri = destUri;
         this.exportType = exportType;
         this.displayName = displayName;
+        this.incremental = incremental;
     }
 }
@@ -137,7 +137,10 @@ public class ExportVCardActivity extends Activity implements ServiceConnection,
                 final Uri targetFileName = data.getData();
                 if (DEBUG) Log.d(LOG_TAG, "exporting to " + targetFileName);
                 final String displayName = getOpenableUriDisplayName(this, targetFileName);
-                final ExportRequest request = new ExportRequest(targetFileName, null, displayName);
+                final boolean incremental = getIntent().getBooleanExtra(
+                        VCardCommonArguments.ARG_INCREMENTAL_EXPORT, false);
+                final ExportRequest request =
+                        new ExportRequest(targetFileName, null, displayName, incremental);
                 // The connection object will call finish().
                 mService.handleExportRequest(request, new NotificationImportExportListener(
                         ExportVCardActivity.this));
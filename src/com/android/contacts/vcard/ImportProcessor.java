@@ -23,7 +23,6 @@ import android.util.Log;
 
 import com.android.contactsbind.FeedbackHelper;
 import com.android.vcard.VCardEntry;
-import com.android.vcard.VCardEntryCommitter;
 import com.android.vcard.VCardEntryConstructor;
 import com.android.vcard.VCardEntryHandler;
 import com.android.vcard.VCardInterpreter;
@@ -36,6 +35,7 @@ import com.android.vcard.exception.VCardNotSupportedException;
 import com.android.vcard.exception.VCardVersionException;
 
 import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -59,6 +59,7 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
     private final List<Uri> mFailedUris = new ArrayList<Uri>();
 
     private VCardParser mVCardParser;
+    private PipelinedVCardEntryCommitter mCommitter;
 
     private volatile boolean mCanceled;
     private volatile boolean mDone;
@@ -66,6 +67,9 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
     private int mCurrentCount = 0;
     private int mTotalCount = 0;
 
+    /** Counts the bytes read, to estimate the progress when the entries were not counted. */
+    private CountingInputStream mCountingStream;
+
     public ImportProcessor(final VCardService service, final VCardImportExportListener listener,
             final ImportRequest request, final int jobId) {
         mService = service;
@@ -90,14 +94,29 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
     public void onEntryCreated(VCardEntry entry) {
         mCurrentCount++;
         if (mListener != null) {
+            final int totalCount = mImportRequest.entryCount >= 0
+                    ? mTotalCount : estimateTotalCount();
             final Notification notification = mListener.onImportParsed(mImportRequest, mJobId,
-                    entry, mCurrentCount, mTotalCount);
+                    entry, mCurrentCount, totalCount);
             if (notification != null) {
                 mService.startForeground(mJobId, notification);
             }
         }
     }
 
+    /**
+     * Estimates the number of entries from the share of the file that has been read, or returns
+     * -1 if the size of the file is not known.
+     */
+    private int estimateTotalCount() {
+        final long bytesRead = mCountingStream != null ? mCountingStream.getCount() : 0;
+        if (mImportRequest.byteCount <= 0 || bytesRead <= 0) {
+            return -1;
+        }
+        final long estimate = mCurrentCount * mImportRequest.byteCount / bytesRead;
+        return (int) Math.max(mCurrentCount, Math.min(Integer.MAX_VALUE, estimate));
+    }
+
     @Override
     public final int getType() {
         return VCardService.TYPE_IMPORT;
@@ -140,9 +159,8 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
                     ImportVCardActivity.VCARD_VERSION_V40
             };
         } else {
-            possibleVCardVersions = new int[] {
-                    request.vcardVersion
-            };
+            // The version was detected from the first entry only; keep the others to fall back to
+            possibleVCardVersions = withFallbackVersions(request.vcardVersion);
         }
 
         final Uri uri = request.uri;
@@ -150,40 +168,40 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
         final int estimatedVCardType = request.estimatedVCardType;
         final String estimatedCharset = request.estimatedCharset;
         final int entryCount = request.entryCount;
-        mTotalCount += entryCount;
+        if (entryCount >= 0) {
+            mTotalCount += entryCount;
+        }
 
         final VCardEntryConstructor constructor =
                 new VCardEntryConstructor(estimatedVCardType, account, estimatedCharset);
-        final VCardEntryCommitter committer = new VCardEntryCommitter(mResolver);
+        final PipelinedVCardEntryCommitter committer =
+                new PipelinedVCardEntryCommitter(mResolver);
+        synchronized (this) {
+            mCommitter = committer;
+            if (isCancelled()) {
+                committer.cancel();
+            }
+        }
         constructor.addEntryHandler(committer);
         constructor.addEntryHandler(this);
 
-        InputStream is = null;
         boolean successful = false;
         try {
             if (uri != null) {
                 Log.i(LOG_TAG, "start importing one vCard (Uri: " + uri + ")");
-                is = mResolver.openInputStream(uri);
             } else if (request.data != null){
                 Log.i(LOG_TAG, "start importing one vCard (byte[])");
-                is = new ByteArrayInputStream(request.data);
-            }
-
-            if (is != null) {
-                successful = readOneVCard(is, estimatedVCardType, estimatedCharset, constructor,
-                        possibleVCardVersions);
             }
-        } catch (IOException e) {
-            successful = false;
+            successful = readOneVCard(request, estimatedVCardType, estimatedCharset, constructor,
+                    possibleVCardVersions);
         } finally {
-            if (is != null) {
-                try {
-                    is.close();
-                } catch (Exception e) {
-                    // ignore
-                }
+            if (!committer.finish()) {
+                Log.w(LOG_TAG, "Some vCard entries could not be inserted (uri: " + uri + ")");
+                successful = false;
             }
         }
+        Log.i(LOG_TAG, String.format("vCard import (id: %d) committed %.1f entries/s", mJobId,
+                committer.getEntriesPerSecond()));
 
         mService.handleFinishImportNotification(mJobId, successful);
 
@@ -215,19 +233,57 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
         }
     }
 
-    private boolean readOneVCard(InputStream is, int vcardType, String charset,
+    /**
+     * Returns {@code vcardVersion} followed by the other versions, so that a file whose first
+     * entry does not match the rest is still read.
+     */
+    private static int[] withFallbackVersions(int vcardVersion) {
+        final int[] versions = new int[] {
+                ImportVCardActivity.VCARD_VERSION_V21,
+                ImportVCardActivity.VCARD_VERSION_V30,
+                ImportVCardActivity.VCARD_VERSION_V40
+        };
+        for (int i = versions.length - 1; i > 0; i--) {
+            if (versions[i] == vcardVersion) {
+                versions[i] = versions[i - 1];
+                versions[i - 1] = vcardVersion;
+            }
+        }
+        return versions;
+    }
+
+    /** Opens the file or data of the request, or returns null if it has neither. */
+    private InputStream openInputStream(ImportRequest request) throws IOException {
+        if (request.uri != null) {
+            return mResolver.openInputStream(request.uri);
+        } else if (request.data != null) {
+            return new ByteArrayInputStream(request.data);
+        }
+        return null;
+    }
+
+    private boolean readOneVCard(ImportRequest request, int vcardType, String charset,
             final VCardInterpreter interpreter,
             final int[] possibleVCardVersions) {
         boolean successful = false;
         final int length = possibleVCardVersions.length;
         for (int i = 0; i < length; i++) {
             final int vcardVersion = possibleVCardVersions[i];
+            InputStream is = null;
             try {
                 if (i > 0 && (interpreter instanceof VCardEntryConstructor)) {
                     // Let the object clean up internal temporary objects,
                     ((VCardEntryConstructor) interpreter).clear();
                 }
 
+                // Each version reads the input from the start
+                is = openInputStream(request);
+                if (is == null) {
+                    break;
+                }
+                mCountingStream = new CountingInputStream(is);
+                is = mCountingStream;
+
                 // We need synchronized block here,
                 // since we need to handle mCanceled and mVCardParser at once.
                 // In the worst case, a user may call cancel() just before creating
@@ -281,6 +337,44 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
         return successful;
     }
 
+    /** Counts the bytes that are read from the wrapped stream. */
+    private static class CountingInputStream extends FilterInputStream {
+        private volatile long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            final int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long skipped = super.skip(n);
+            mCount += skipped;
+            return skipped;
+        }
+    }
+
     @Override
     public synchronized boolean cancel(boolean mayInterruptIfRunning) {
         if (DEBUG) Log.d(LOG_TAG, "ImportProcessor received cancel request");
@@ -292,6 +386,9 @@ public class ImportProcessor extends ProcessorBase implements VCardEntryHandler
             if (mVCardParser != null) {
                 mVCardParser.cancel();
             }
+            if (mCommitter != null) {
+                mCommitter.cancel();
+            }
         }
         return true;
     }
@@ -96,9 +96,23 @@ public class ImportRequest {
      */
     public final int entryCount;
 
+    /**
+     * The size of the vCard in bytes, or -1 if it is not known. Used to estimate the progress
+     * of the import when {@link #entryCount} is -1, i.e. when the file was not scanned before
+     * the import to count its entries.
+     */
+    public final long byteCount;
+
     public ImportRequest(AccountWithDataSet account,
             byte[] data, Uri uri, String displayName, int estimatedType, String estimatedCharset,
             int vcardVersion, int entryCount) {
+        this(account, data, uri, displayName, estimatedType, estimatedCharset, vcardVersion,
+                entryCount, data != null ? data.length : -1);
+    }
+
+    public ImportRequest(AccountWithDataSet account,
+            byte[] data, Uri uri, String displayName, int estimatedType, String estimatedCharset,
+            int vcardVersion, int entryCount, long byteCount) {
         this.account = account != null ? account.getAccountOrNull() : null;
         this.data = data;
         this.uri = uri;
@@ -107,5 +121,6 @@ public class ImportRequest {
         this.estimatedCharset = estimatedCharset;
         this.vcardVersion = vcardVersion;
         this.entryCount = entryCount;
+        this.byteCount = byteCount;
     }
 }
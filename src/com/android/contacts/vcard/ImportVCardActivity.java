@@ -29,6 +29,7 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
@@ -45,15 +46,7 @@ import com.android.contacts.activities.RequestImportVCardPermissionsActivity;
 import com.android.contacts.model.AccountTypeManager;
 import com.android.contacts.model.account.AccountWithDataSet;
 import com.android.contactsbind.FeedbackHelper;
-import com.android.vcard.VCardEntryCounter;
-import com.android.vcard.VCardParser;
-import com.android.vcard.VCardParser_V21;
-import com.android.vcard.VCardParser_V30;
-import com.android.vcard.VCardParser_V40;
-import com.android.vcard.VCardSourceDetector;
 import com.android.vcard.exception.VCardException;
-import com.android.vcard.exception.VCardNestedException;
-import com.android.vcard.exception.VCardVersionException;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
@@ -180,7 +173,6 @@ public class ImportVCardActivity extends Activity implements ImportVCardDialogFr
             implements DialogInterface.OnCancelListener {
         private boolean mCanceled;
         private PowerManager.WakeLock mWakeLock;
-        private VCardParser mVCardParser;
         private final Uri[] mSourceUris;  // Given from a caller.
         private final String[] mSourceDisplayNames; // Display names for each Uri in mSourceUris.
         private final byte[] mSource;
@@ -305,8 +297,10 @@ public class ImportVCardActivity extends Activity implements ImportVCardDialogFr
         }
 
         /**
-         * Reads localDataUri (possibly multiple times) and constructs {@link ImportRequest} from
-         * its content.
+         * Constructs {@link ImportRequest} from the content of localDataUri or data. Only the
+         * first entry is read, to detect the version, type and charset of the vCard, so that
+         * the file is parsed just once, by the import itself. The number of entries is not
+         * known up front; the import estimates its progress from the bytes it has read.
          *
          * @arg localDataUri Uri actually used for the import. Should be stored in
          * app local storage, as we cannot guarantee other types of Uris can be read
@@ -318,94 +312,49 @@ public class ImportVCardActivity extends Activity implements ImportVCardDialogFr
                 final Uri localDataUri, final String displayName)
                 throws IOException, VCardException {
             final ContentResolver resolver = ImportVCardActivity.this.getContentResolver();
-            VCardEntryCounter counter = null;
-            VCardSourceDetector detector = null;
-            int vcardVersion = VCARD_VERSION_V21;
+            final InputStream is;
+            if (data != null) {
+                is = new ByteArrayInputStream(data);
+            } else {
+                is = resolver.openInputStream(localDataUri);
+            }
+            if (is == null) {
+                throw new IOException("Unable to open " + localDataUri);
+            }
+            final VCardHeaderDetector header;
             try {
-                boolean shouldUseV30 = false;
-                boolean shouldUseV40 = false;
-                InputStream is;
-                if (data != null) {
-                    is = new ByteArrayInputStream(data);
-                } else {
-                    is = resolver.openInputStream(localDataUri);
-                }
-                mVCardParser = new VCardParser_V21();
+                header = VCardHeaderDetector.detect(is);
+            } finally {
                 try {
-                    counter = new VCardEntryCounter();
-                    detector = new VCardSourceDetector();
-                    mVCardParser.addInterpreter(counter);
-                    mVCardParser.addInterpreter(detector);
-                    mVCardParser.parse(is);
-                } catch (VCardVersionException e1) {
-                    try {
-                        is.close();
-                    } catch (IOException e) {
-                    }
+                    is.close();
+                } catch (IOException e) {
+                }
+            }
+            final long byteCount = data != null
+                    ? data.length : getByteCount(resolver, localDataUri);
+            return new ImportRequest(mAccount,
+                    data, localDataUri, displayName,
+                    header.getEstimatedType(),
+                    header.getEstimatedCharset(),
+                    header.getVersion(), /* entryCount = */ -1, byteCount);
+        }
 
-                    shouldUseV30 = true;
-                    if (data != null) {
-                        is = new ByteArrayInputStream(data);
-                    } else {
-                        is = resolver.openInputStream(localDataUri);
-                    }
-                    mVCardParser = new VCardParser_V30();
+        /** Returns the size of the content of the uri, or -1 if it is not known. */
+        private long getByteCount(ContentResolver resolver, Uri uri) {
+            AssetFileDescriptor fd = null;
+            try {
+                fd = resolver.openAssetFileDescriptor(uri, "r");
+                return fd != null ? fd.getLength() : -1;
+            } catch (IOException | SecurityException e) {
+                return -1;
+            } finally {
+                if (fd != null) {
                     try {
-                        counter = new VCardEntryCounter();
-                        detector = new VCardSourceDetector();
-                        mVCardParser.addInterpreter(counter);
-                        mVCardParser.addInterpreter(detector);
-                        mVCardParser.parse(is);
-                    } catch (VCardVersionException e2) {
-                        try {
-                            is.close();
-                        } catch (IOException e) {
-                        }
-
-                        shouldUseV30 = false;
-                        shouldUseV40 = true;
-                        if (data != null) {
-                            is = new ByteArrayInputStream(data);
-                        } else {
-                            is = resolver.openInputStream(localDataUri);
-                        }
-                        mVCardParser = new VCardParser_V40();
-                        try {
-                            counter = new VCardEntryCounter();
-                            detector = new VCardSourceDetector();
-                            mVCardParser.addInterpreter(counter);
-                            mVCardParser.addInterpreter(detector);
-                            mVCardParser.parse(is);
-                        } catch (VCardVersionException e3) {
-                            throw new VCardException("vCard with unspported version.");
-                        }
-                    }
-                } finally {
-                    if (is != null) {
-                        try {
-                            is.close();
-                        } catch (IOException e) {
-                        }
+                        fd.close();
+                    } catch (IOException e) {
                     }
                 }
-
-                if (shouldUseV30) {
-                    vcardVersion = VCARD_VERSION_V30;
-                } else if (shouldUseV40) {
-                    vcardVersion = VCARD_VERSION_V40;
-                } else {
-                    vcardVersion = VCARD_VERSION_V21;
-                }
-            } catch (VCardNestedException e) {
-                Log.w(LOG_TAG, "Nested Exception is found (it may be false-positive).");
-                // Go through without throwing the Exception, as we may be able to detect the
-                // version before it
             }
-            return new ImportRequest(mAccount,
-                    data, localDataUri, displayName,
-                    detector.getEstimatedType(),
-                    detector.getEstimatedCharset(),
-                    vcardVersion, counter.getCount());
         }
 
         public Uri[] getSourceUris() {
@@ -414,9 +363,6 @@ public class ImportVCardActivity extends Activity implements ImportVCardDialogFr
 
         public void cancel() {
             mCanceled = true;
-            if (mVCardParser != null) {
-                mVCardParser.cancel();
-            }
         }
 
         @Override
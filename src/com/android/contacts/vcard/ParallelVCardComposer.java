@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.vcard;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.RawContactsEntity;
+
+import com.android.vcard.VCardComposer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Composes the vCards of a list of contacts on several threads and writes them to a channel in
+ * the order of the list.
+ * <p>
+ * The contacts are split into chunks of {@link #CHUNK_SIZE}, and each chunk is composed by a
+ * {@link VCardComposer} of its own, which queries the entities of its contacts and encodes the
+ * result. The chunks are collected in the order they were submitted, which acts as the reorder
+ * buffer: a chunk that is done early waits for the ones before it. At most two chunks per
+ * thread are in flight, to bound the memory used for large address books.
+ * <p>
+ * The ids of the contacts that were written are returned in the order of their vCards, so
+ * that the n-th vCard of the output can be told apart by its contact id.
+ */
+/* package */ class ParallelVCardComposer {
+
+    /** Receives progress and is asked for cancellation. Called on the exporting thread. */
+    interface Listener {
+        boolean isCancelled();
+
+        void onProgress(int exportedCount, int totalCount);
+    }
+
+    /** Thrown when a chunk could not be composed. */
+    static class ComposeException extends Exception {
+        /** One of the FAILURE_REASON_* constants of {@link VCardComposer}, or another message. */
+        final String errorReason;
+
+        ComposeException(String errorReason) {
+            super(errorReason);
+            this.errorReason = errorReason;
+        }
+    }
+
+    /** How many contacts are composed at once; progress is reported once per chunk. */
+    /* package */ static final int CHUNK_SIZE = 100;
+
+    private static final int MAX_THREADS = 4;
+
+    /** How often a chunk is set up again when its contacts change while it is set up. */
+    private static final int MAX_INIT_ATTEMPTS = 3;
+
+    /** A composed chunk. */
+    private static class Chunk {
+        final ByteBuffer bytes;
+        /** The contacts whose vCards are in {@link #bytes}, in the same order. */
+        final long[] contactIds;
+
+        Chunk(ByteBuffer bytes, long[] contactIds) {
+            this.bytes = bytes;
+            this.contactIds = contactIds;
+        }
+    }
+
+    private final Context mContext;
+    private final int mVCardType;
+    private final int mThreads;
+
+    public ParallelVCardComposer(Context context, int vcardType) {
+        mContext = context;
+        mVCardType = vcardType;
+        mThreads = Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Composes the vCards of the given contacts and writes them to {@code channel}.
+     *
+     * @return the ids of the contacts that were written, in the order of their vCards. These
+     * may be fewer than were given when contacts were deleted meanwhile or the export was
+     * cancelled.
+     */
+    public long[] compose(long[] contactIds, WritableByteChannel channel, Listener listener)
+            throws IOException, ComposeException, InterruptedException {
+        final int chunkCount = (contactIds.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        final ExecutorService executor = Executors.newFixedThreadPool(mThreads);
+        final ArrayDeque<Future<Chunk>> pending = new ArrayDeque<Future<Chunk>>();
+        final long[] exportedIds = new long[contactIds.length];
+        int next = 0;
+        int exported = 0;
+        try {
+            while (next < chunkCount || !pending.isEmpty()) {
+                while (next < chunkCount && pending.size() < mThreads * 2) {
+                    final int from = next * CHUNK_SIZE;
+                    final int to = Math.min(contactIds.length, from + CHUNK_SIZE);
+                    pending.add(executor.submit(newChunkTask(contactIds, from, to, listener)));
+                    next++;
+                }
+                if (listener.isCancelled()) {
+                    break;
+                }
+                final Chunk chunk = await(pending.poll());
+                while (chunk.bytes.hasRemaining()) {
+                    channel.write(chunk.bytes);
+                }
+                System.arraycopy(chunk.contactIds, 0, exportedIds, exported,
+                        chunk.contactIds.length);
+                exported += chunk.contactIds.length;
+                listener.onProgress(exported, contactIds.length);
+            }
+            return Arrays.copyOf(exportedIds, exported);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Callable<Chunk> newChunkTask(final long[] contactIds, final int from, final int to,
+            final Listener listener) {
+        return new Callable<Chunk>() {
+            @Override
+            public Chunk call() throws ComposeException {
+                return composeChunk(contactIds, from, to, listener);
+            }
+        };
+    }
+
+    private Chunk composeChunk(long[] contactIds, int from, int to, Listener listener)
+            throws ComposeException {
+        final StringBuilder selectionBuilder = new StringBuilder(Contacts._ID).append(" IN (");
+        for (int i = from; i < to; i++) {
+            if (i > from) {
+                selectionBuilder.append(',');
+            }
+            selectionBuilder.append(contactIds[i]);
+        }
+        final String selection = selectionBuilder.append(')').toString();
+
+        // The composer walks the contacts of the chunk in the order of their ids. Unless some
+        // were deleted, those are the ids of the chunk; otherwise look up which are left.
+        long[] chunkIds = Arrays.copyOfRange(contactIds, from, to);
+        VCardComposer composer = null;
+        for (int attempt = 1; composer == null; attempt++) {
+            composer = new VCardComposer(mContext, mVCardType, true);
+            if (!composer.init(Contacts.CONTENT_URI, new String[] {Contacts._ID},
+                    selection, null, Contacts._ID, RawContactsEntity.CONTENT_URI)) {
+                final String errorReason = composer.getErrorReason();
+                composer.terminate();
+                if (VCardComposer.FAILURE_REASON_NO_ENTRY.equals(errorReason)) {
+                    // The contacts of this chunk were deleted meanwhile
+                    return new Chunk(ByteBuffer.allocate(0), new long[0]);
+                }
+                throw new ComposeException(errorReason);
+            }
+            if (composer.getCount() != chunkIds.length) {
+                chunkIds = queryContactIds(selection);
+            }
+            if (composer.getCount() != chunkIds.length) {
+                composer.terminate();
+                composer = null;
+                if (attempt == MAX_INIT_ATTEMPTS) {
+                    throw new ComposeException(
+                            VCardComposer.FAILURE_REASON_FAILED_TO_GET_DATABASE_INFO);
+                }
+            }
+        }
+
+        try {
+            final StringBuilder vcards = new StringBuilder();
+            final long[] writtenIds = new long[chunkIds.length];
+            int written = 0;
+            for (int i = 0; i < chunkIds.length && !composer.isAfterLast(); i++) {
+                if (listener.isCancelled()) {
+                    break;
+                }
+                final String vcard = composer.createOneEntry();
+                // The composer returns an empty entry for a contact deleted while composing
+                if (vcard != null && !vcard.isEmpty()) {
+                    vcards.append(vcard);
+                    writtenIds[written++] = chunkIds[i];
+                }
+            }
+            return new Chunk(StandardCharsets.UTF_8.encode(CharBuffer.wrap(vcards)),
+                    Arrays.copyOf(writtenIds, written));
+        } finally {
+            composer.terminate();
+        }
+    }
+
+    private long[] queryContactIds(String selection) throws ComposeException {
+        final Cursor cursor = mContext.getContentResolver().query(Contacts.CONTENT_URI,
+                new String[] {Contacts._ID}, selection, null, Contacts._ID);
+        if (cursor == null) {
+            throw new ComposeException(VCardComposer.FAILURE_REASON_FAILED_TO_GET_DATABASE_INFO);
+        }
+        try {
+            final long[] contactIds = new long[cursor.getCount()];
+            for (int i = 0; i < contactIds.length && cursor.moveToNext(); i++) {
+                contactIds[i] = cursor.getLong(0);
+            }
+            return contactIds;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static Chunk await(Future<Chunk> future)
+            throws ComposeException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof ComposeException) {
+                throw (ComposeException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.vcard;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.provider.ContactsContract;
+import android.util.Log;
+
+import com.android.contacts.util.AdaptiveBatchSizer;
+import com.android.vcard.VCardEntry;
+import com.android.vcard.VCardEntryHandler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inserts the entries of a vCard file into the contacts provider on a thread of its own, so
+ * that parsing the file overlaps with writing to the provider.
+ * <p>
+ * The parser hands entries over through a bounded queue and blocks when the committer falls
+ * behind, which keeps memory use flat for large files. The committer groups the entries into
+ * batches whose size is tuned by how long batches take, like the batches of
+ * {@link com.android.contacts.ContactSaveService}. Each batch is a transaction of its own, so
+ * other writers get to the database between batches.
+ * <p>
+ * {@link VCardService} runs several imports at once. Their parsers run in parallel, but only
+ * one committer at a time applies a batch, since the provider serializes writes anyway and
+ * competing batches would only make each other slower.
+ * <p>
+ * When a batch fails, its entries are inserted again one at a time, so that a single bad
+ * entry only loses itself. {@link #finish()} reports whether any entry was lost.
+ * <p>
+ * Call {@link #finish()} once parsing is done, whether it succeeded or not, to wait for the
+ * remaining entries to be inserted.
+ */
+/* package */ class PipelinedVCardEntryCommitter implements VCardEntryHandler {
+    private static final String LOG_TAG = "VCardImport";
+
+    /** How many parsed entries may wait for the committer. */
+    private static final int QUEUE_CAPACITY = 64;
+
+    /** How long the committer waits for more entries before it applies a partial batch. */
+    private static final long BATCH_WAIT_MILLIS = 50;
+
+    /** How long the parser waits for room in the queue before it checks for cancellation. */
+    private static final long OFFER_WAIT_MILLIS = 100;
+
+    /** The provider allows at most 500 operations between yield points. */
+    private static final int MAX_BATCH_SIZE = 499;
+    private static final int MIN_BATCH_SIZE = 50;
+    private static final long TARGET_BATCH_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /** Shared by all imports, as they all write to the same provider. */
+    private static final AdaptiveBatchSizer sBatchSizer = new AdaptiveBatchSizer(
+            MIN_BATCH_SIZE, MAX_BATCH_SIZE, TARGET_BATCH_NANOS);
+
+    /** Lets one import at a time write to the provider. */
+    private static final Semaphore sCommitPermit = new Semaphore(1, /* fair */ true);
+
+    /** Queued after the last entry. */
+    private static final VCardEntry END = new VCardEntry();
+
+    private final ContentResolver mResolver;
+    private final BlockingQueue<VCardEntry> mQueue =
+            new ArrayBlockingQueue<VCardEntry>(QUEUE_CAPACITY);
+    private final ArrayList<Uri> mCreatedUris = new ArrayList<Uri>();
+
+    private Thread mThread;
+    private volatile boolean mStopped;
+    private volatile boolean mFailed;
+
+    // Used on the parser thread only
+    private int mHandedOverCount;
+    private int mAttemptEntryCount;
+
+    private long mStartNanos;
+    private long mEndNanos;
+    private int mCommittedCount;
+
+    public PipelinedVCardEntryCommitter(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    @Override
+    public synchronized void onStart() {
+        // The parser may start over with another vCard version; keep the running committer
+        mAttemptEntryCount = 0;
+        if (mThread != null) {
+            return;
+        }
+        mStartNanos = System.nanoTime();
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                commitLoop();
+            }
+        }, "VCardEntryCommitter");
+        mThread.start();
+    }
+
+    @Override
+    public void onEntryCreated(VCardEntry entry) {
+        if (mThread == null) {
+            onStart();
+        }
+        if (mAttemptEntryCount++ < mHandedOverCount) {
+            // Handed over before the parser started over with another version
+            return;
+        }
+        try {
+            while (!mStopped) {
+                if (mQueue.offer(entry, OFFER_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    mHandedOverCount++;
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel();
+        }
+    }
+
+    @Override
+    public void onEnd() {
+        // Parsing may be retried with another version, so the committer runs until finish()
+    }
+
+    /**
+     * Waits until the committer has inserted the entries that were handed over so far, then
+     * stops it.
+     *
+     * @return false if some of the entries could not be inserted.
+     */
+    public boolean finish() {
+        final Thread thread;
+        synchronized (this) {
+            thread = mThread;
+        }
+        if (thread == null) {
+            return !mFailed;
+        }
+        try {
+            while (!mStopped && !mQueue.offer(END, OFFER_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                // The committer is still busy; try again
+            }
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel();
+            return false;
+        }
+        return !mFailed;
+    }
+
+    /** Stops the committer, dropping the entries that have not been inserted yet. */
+    public void cancel() {
+        mStopped = true;
+        mQueue.clear();
+        synchronized (this) {
+            if (mThread != null) {
+                // Wakes the committer up if it waits for entries
+                mThread.interrupt();
+            }
+        }
+    }
+
+    /** Returns the Uris of the raw contacts that were created. Call after {@link #finish()}. */
+    public synchronized List<Uri> getCreatedUris() {
+        return mCreatedUris;
+    }
+
+    /** Returns how many entries were inserted per second, from the first entry to the last. */
+    public synchronized float getEntriesPerSecond() {
+        final long nanos = mEndNanos - mStartNanos;
+        return nanos > 0 ? mCommittedCount * (float) TimeUnit.SECONDS.toNanos(1) / nanos : 0f;
+    }
+
+    private void commitLoop() {
+        final ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        // The entries in the batch, and the index of the raw contact insert of each
+        final ArrayList<VCardEntry> entries = new ArrayList<VCardEntry>();
+        final ArrayList<Integer> entryStarts = new ArrayList<Integer>();
+        try {
+            while (!mStopped) {
+                final VCardEntry entry = operations.isEmpty()
+                        ? mQueue.take()
+                        : mQueue.poll(BATCH_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+                if (entry == null) {
+                    // The parser is slower than the provider; don't hold back what we have
+                    applyBatch(operations, entries, entryStarts);
+                    continue;
+                }
+                if (entry == END) {
+                    break;
+                }
+
+                final int start = operations.size();
+                entry.constructInsertOperations(mResolver, operations);
+                if (operations.size() > sBatchSizer.getBatchSize() && start > 0) {
+                    // The entry does not fit. Its operations refer back to their position in
+                    // the batch, so build them again for the next one.
+                    operations.subList(start, operations.size()).clear();
+                    applyBatch(operations, entries, entryStarts);
+                    entry.constructInsertOperations(mResolver, operations);
+                    entryStarts.add(0);
+                } else {
+                    entryStarts.add(start);
+                }
+                entries.add(entry);
+                if (operations.size() >= sBatchSizer.getBatchSize()) {
+                    applyBatch(operations, entries, entryStarts);
+                }
+            }
+            if (!mStopped) {
+                applyBatch(operations, entries, entryStarts);
+            }
+        } catch (InterruptedException e) {
+            Log.i(LOG_TAG, "vCard committer was interrupted");
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "vCard committer failed", e);
+            mFailed = true;
+        } finally {
+            synchronized (this) {
+                mEndNanos = System.nanoTime();
+            }
+            mStopped = true;
+            mQueue.clear();
+        }
+    }
+
+    /**
+     * Applies the operations of the batch, then clears it. If the batch fails, its entries are
+     * inserted one at a time instead.
+     */
+    private void applyBatch(ArrayList<ContentProviderOperation> operations,
+            ArrayList<VCardEntry> entries, ArrayList<Integer> entryStarts)
+            throws InterruptedException {
+        if (operations.isEmpty()) {
+            return;
+        }
+        try {
+            commit(operations, entryStarts);
+        } catch (OperationApplicationException e) {
+            Log.w(LOG_TAG, "Failed to insert " + entries.size()
+                    + " vCard entries at once, retrying one by one", e);
+            sBatchSizer.onBatchFailed();
+            if (entries.size() > 1) {
+                commitOneByOne(entries);
+            } else {
+                mFailed = true;
+            }
+        } catch (RemoteException e) {
+            // The provider is gone, so the entries after these would fail as well
+            Log.e(LOG_TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            mFailed = true;
+            mStopped = true;
+        } finally {
+            operations.clear();
+            entries.clear();
+            entryStarts.clear();
+        }
+    }
+
+    private void commitOneByOne(List<VCardEntry> entries) throws InterruptedException {
+        final ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        final ArrayList<Integer> entryStarts = new ArrayList<Integer>(1);
+        entryStarts.add(0);
+        for (VCardEntry entry : entries) {
+            if (mStopped) {
+                return;
+            }
+            operations.clear();
+            entry.constructInsertOperations(mResolver, operations);
+            try {
+                commit(operations, entryStarts);
+            } catch (OperationApplicationException e) {
+                Log.e(LOG_TAG, "Failed to insert vCard entry: " + e.getMessage());
+                mFailed = true;
+            } catch (RemoteException e) {
+                Log.e(LOG_TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+                mFailed = true;
+                mStopped = true;
+            }
+        }
+    }
+
+    /** Applies the operations and records the raw contacts that the entries created. */
+    private void commit(ArrayList<ContentProviderOperation> operations,
+            List<Integer> entryStarts)
+            throws InterruptedException, RemoteException, OperationApplicationException {
+        sCommitPermit.acquire();
+        final long start = System.nanoTime();
+        try {
+            final ContentProviderResult[] results =
+                    mResolver.applyBatch(ContactsContract.AUTHORITY, operations);
+            sBatchSizer.onBatchApplied(operations.size(), System.nanoTime() - start);
+            synchronized (this) {
+                for (int entryStart : entryStarts) {
+                    // Do null checking for badly behaving ContentResolvers
+                    if (results != null && entryStart < results.length
+                            && results[entryStart] != null) {
+                        mCreatedUris.add(results[entryStart].uri);
+                    }
+                }
+                mCommittedCount += entryStarts.size();
+            }
+        } finally {
+            sCommitPermit.release();
+        }
+    }
+}
@@ -24,4 +24,8 @@ public class VCardCommonArguments {
     // Argument used to pass calling activities to the target activity or service.
     // The value should be a string class name (e.g. com.android.contacts.vcard.VCardCommonArgs)
     public static final String ARG_CALLING_ACTIVITY = "CALLING_ACTIVITY";
+
+    // Boolean argument asking ExportVCardActivity to only export the contacts that changed since
+    // the last incremental export.
+    public static final String ARG_INCREMENTAL_EXPORT = "INCREMENTAL_EXPORT";
 }
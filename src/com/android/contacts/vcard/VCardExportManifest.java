@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.vcard;
+
+import android.provider.ContactsContract.DeletedContacts;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Keeps track of incremental vCard exports: a base file holding every contact, followed by
+ * delta files holding the contacts that changed since the export before.
+ * <p>
+ * Each export is recorded with the ids of the contacts in the order of their vCards, and for a
+ * delta also the ids of the contacts that were deleted. {@link #replay()} uses these to find
+ * the latest vCard of every contact that still exists. The watermarks are the times, read
+ * before the last export queried the provider, from which the next delta picks up rows by
+ * {@link android.provider.ContactsContract.Contacts#CONTACT_LAST_UPDATED_TIMESTAMP} and
+ * {@link DeletedContacts#CONTACT_DELETED_TIMESTAMP}.
+ * <p>
+ * The provider only keeps deleted contacts for {@link DeletedContacts#DAYS_KEPT_MILLISECONDS},
+ * so a delta cannot be exported after a longer break; a new base is exported instead.
+ */
+/* package */ final class VCardExportManifest {
+    private static final String TAG = "VCardExportManifest";
+
+    /* package */ static final String FILE_NAME = "vcard_export_manifest.json";
+
+    private static final int VERSION = 1;
+
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_LAST_UPDATED_WATERMARK = "lastUpdatedWatermark";
+    private static final String KEY_DELETED_WATERMARK = "deletedWatermark";
+    private static final String KEY_EXPORTS = "exports";
+    private static final String KEY_URI = "uri";
+    private static final String KEY_BASE = "base";
+    private static final String KEY_EXPORTED_AT = "exportedAt";
+    private static final String KEY_CONTACT_IDS = "contactIds";
+    private static final String KEY_DELETED_CONTACT_IDS = "deletedContactIds";
+
+    /** One exported file. */
+    static final class Export {
+        final String uri;
+        final boolean base;
+        final long exportedAt;
+        /** The contacts in the order of their vCards in the file. */
+        final long[] contactIds;
+        /** The contacts that were deleted since the export before; empty for a base. */
+        final long[] deletedContactIds;
+
+        Export(String uri, boolean base, long exportedAt, long[] contactIds,
+                long[] deletedContactIds) {
+            this.uri = uri;
+            this.base = base;
+            this.exportedAt = exportedAt;
+            this.contactIds = contactIds;
+            this.deletedContactIds = deletedContactIds;
+        }
+    }
+
+    /** Where the latest vCard of a contact is. */
+    static final class Location {
+        final String uri;
+        /** The position of the vCard in the file, starting at 0. */
+        final int index;
+
+        Location(String uri, int index) {
+            this.uri = uri;
+            this.index = index;
+        }
+    }
+
+    private final AtomicFile mFile;
+    private final ArrayList<Export> mExports = new ArrayList<>();
+    private long mLastUpdatedWatermark;
+    private long mDeletedWatermark;
+
+    private VCardExportManifest(File file) {
+        mFile = new AtomicFile(file);
+    }
+
+    /** Reads the manifest, or returns an empty one if there is none or it cannot be read. */
+    static VCardExportManifest load(File file) {
+        final VCardExportManifest manifest = new VCardExportManifest(file);
+        try {
+            manifest.read(new String(manifest.mFile.readFully(), StandardCharsets.UTF_8));
+        } catch (FileNotFoundException e) {
+            // No export yet
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Unable to read export manifest, starting over", e);
+            manifest.mExports.clear();
+            manifest.mLastUpdatedWatermark = 0;
+            manifest.mDeletedWatermark = 0;
+        }
+        return manifest;
+    }
+
+    /**
+     * Returns true if only the contacts that changed since the last export need to be exported
+     * at {@code nowMillis}.
+     */
+    boolean canExportDelta(long nowMillis) {
+        if (mExports.isEmpty()) {
+            return false;
+        }
+        final long lastExportedAt = mExports.get(mExports.size() - 1).exportedAt;
+        return nowMillis - lastExportedAt < DeletedContacts.DAYS_KEPT_MILLISECONDS;
+    }
+
+    long getLastUpdatedWatermark() {
+        return mLastUpdatedWatermark;
+    }
+
+    long getDeletedWatermark() {
+        return mDeletedWatermark;
+    }
+
+    List<Export> getExports() {
+        return mExports;
+    }
+
+    /** Records an export of every contact, which replaces the earlier exports. */
+    void addBase(String uri, long exportedAt, long lastUpdatedWatermark, long deletedWatermark,
+            long[] contactIds) {
+        mExports.clear();
+        mExports.add(new Export(uri, true, exportedAt, contactIds, new long[0]));
+        mLastUpdatedWatermark = lastUpdatedWatermark;
+        mDeletedWatermark = deletedWatermark;
+    }
+
+    /** Records an export of the contacts that changed or were deleted since the last one. */
+    void addDelta(String uri, long exportedAt, long lastUpdatedWatermark, long deletedWatermark,
+            long[] contactIds, long[] deletedContactIds) {
+        mExports.add(new Export(uri, false, exportedAt, contactIds, deletedContactIds));
+        mLastUpdatedWatermark = Math.max(mLastUpdatedWatermark, lastUpdatedWatermark);
+        mDeletedWatermark = Math.max(mDeletedWatermark, deletedWatermark);
+    }
+
+    /**
+     * Replays the exports in order and returns where the latest vCard of each contact that still
+     * exists is. Contacts keep the position of their first export; new ones come last.
+     */
+    LinkedHashMap<Long, Location> replay() {
+        final LinkedHashMap<Long, Location> locations = new LinkedHashMap<>();
+        for (Export export : mExports) {
+            if (export.base) {
+                locations.clear();
+            }
+            for (long contactId : export.deletedContactIds) {
+                locations.remove(contactId);
+            }
+            for (int i = 0; i < export.contactIds.length; i++) {
+                locations.put(export.contactIds[i], new Location(export.uri, i));
+            }
+        }
+        return locations;
+    }
+
+    /** Returns true if the manifest was written. */
+    boolean save() {
+        FileOutputStream out = null;
+        try {
+            final byte[] bytes = toJson().toString().getBytes(StandardCharsets.UTF_8);
+            out = mFile.startWrite();
+            out.write(bytes);
+            mFile.finishWrite(out);
+            return true;
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Unable to write export manifest", e);
+            if (out != null) {
+                mFile.failWrite(out);
+            }
+            return false;
+        }
+    }
+
+    private void read(String json) throws JSONException {
+        final JSONObject root = new JSONObject(json);
+        if (root.getInt(KEY_VERSION) != VERSION) {
+            throw new JSONException("Unknown version " + root.getInt(KEY_VERSION));
+        }
+        mLastUpdatedWatermark = root.getLong(KEY_LAST_UPDATED_WATERMARK);
+        mDeletedWatermark = root.getLong(KEY_DELETED_WATERMARK);
+        final JSONArray exports = root.getJSONArray(KEY_EXPORTS);
+        for (int i = 0; i < exports.length(); i++) {
+            final JSONObject export = exports.getJSONObject(i);
+            mExports.add(new Export(export.getString(KEY_URI), export.getBoolean(KEY_BASE),
+                    export.getLong(KEY_EXPORTED_AT),
+                    toLongArray(export.getJSONArray(KEY_CONTACT_IDS)),
+                    toLongArray(export.getJSONArray(KEY_DELETED_CONTACT_IDS))));
+        }
+    }
+
+    private JSONObject toJson() throws JSONException {
+        final JSONArray exports = new JSONArray();
+        for (Export export : mExports) {
+            exports.put(new JSONObject()
+                    .put(KEY_URI, export.uri)
+                    .put(KEY_BASE, export.base)
+                    .put(KEY_EXPORTED_AT, export.exportedAt)
+                    .put(KEY_CONTACT_IDS, toJsonArray(export.contactIds))
+                    .put(KEY_DELETED_CONTACT_IDS, toJsonArray(export.deletedContactIds)));
+        }
+        return new JSONObject()
+                .put(KEY_VERSION, VERSION)
+                .put(KEY_LAST_UPDATED_WATERMARK, mLastUpdatedWatermark)
+                .put(KEY_DELETED_WATERMARK, mDeletedWatermark)
+                .put(KEY_EXPORTS, exports);
+    }
+
+    private static JSONArray toJsonArray(long[] values) {
+        final JSONArray array = new JSONArray();
+        for (long value : values) {
+            array.put(value);
+        }
+        return array;
+    }
+
+    private static long[] toLongArray(JSONArray array) throws JSONException {
+        final long[] values = new long[array.length()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = array.getLong(i);
+        }
+        return values;
+    }
+}
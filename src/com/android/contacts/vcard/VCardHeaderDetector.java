@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.vcard;
+
+import android.util.Log;
+
+import com.android.vcard.VCardParser;
+import com.android.vcard.VCardParser_V21;
+import com.android.vcard.VCardParser_V30;
+import com.android.vcard.VCardParser_V40;
+import com.android.vcard.VCardSourceDetector;
+import com.android.vcard.exception.VCardException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Detects the version, the type and the charset of a vCard file from its first entry, so that
+ * the file does not have to be parsed as a whole before it is imported.
+ * <p>
+ * The version is read from the VERSION property of the first entry, and the type and charset
+ * are estimated by {@link VCardSourceDetector} from that entry alone. A file that mixes
+ * versions, or whose vendor only shows in later entries, may therefore be detected less
+ * accurately than by a full pre-scan.
+ */
+/* package */ class VCardHeaderDetector {
+    private static final String LOG_TAG = "VCardHeaderDetector";
+
+    /** How much of the file is read to find the first entry. */
+    private static final int MAX_HEADER_BYTES = 64 * 1024;
+
+    private static final Pattern VERSION_PATTERN =
+            Pattern.compile("^VERSION\\s*:\\s*([0-9.]+)", Pattern.CASE_INSENSITIVE
+                    | Pattern.MULTILINE);
+    private static final String END_VCARD = "END:VCARD";
+
+    private final int mVersion;
+    private final int mEstimatedType;
+    private final String mEstimatedCharset;
+
+    private VCardHeaderDetector(int version, int estimatedType, String estimatedCharset) {
+        mVersion = version;
+        mEstimatedType = estimatedType;
+        mEstimatedCharset = estimatedCharset;
+    }
+
+    /** One of the VCARD_VERSION_* constants of {@link ImportVCardActivity}. */
+    public int getVersion() {
+        return mVersion;
+    }
+
+    public int getEstimatedType() {
+        return mEstimatedType;
+    }
+
+    public String getEstimatedCharset() {
+        return mEstimatedCharset;
+    }
+
+    /**
+     * Reads the first entry of the vCard file. Does not close the stream.
+     *
+     * @throws VCardException if the stream does not start with a vCard entry
+     */
+    public static VCardHeaderDetector detect(InputStream is) throws IOException, VCardException {
+        final byte[] buffer = new byte[MAX_HEADER_BYTES];
+        int length = 0;
+        int read;
+        while (length < buffer.length
+                && (read = is.read(buffer, length, buffer.length - length)) != -1) {
+            length += read;
+        }
+        // ISO-8859-1 maps every byte to one char, so offsets in the string are byte offsets
+        final String header = new String(buffer, 0, length, StandardCharsets.ISO_8859_1);
+        if (!header.toUpperCase(Locale.US).contains("BEGIN:VCARD")) {
+            throw new VCardException("Not a vCard");
+        }
+
+        final int version = parseVersion(header);
+        int entryLength = length;
+        final int end = header.toUpperCase(Locale.US).indexOf(END_VCARD);
+        if (end >= 0) {
+            final int lineEnd = header.indexOf('\n', end);
+            entryLength = lineEnd >= 0 ? lineEnd + 1 : length;
+        }
+
+        final VCardSourceDetector detector = new VCardSourceDetector();
+        final VCardParser parser;
+        if (version == ImportVCardActivity.VCARD_VERSION_V30) {
+            parser = new VCardParser_V30();
+        } else if (version == ImportVCardActivity.VCARD_VERSION_V40) {
+            parser = new VCardParser_V40();
+        } else {
+            parser = new VCardParser_V21();
+        }
+        parser.addInterpreter(detector);
+        try {
+            parser.parse(new ByteArrayInputStream(buffer, 0, entryLength));
+        } catch (VCardException | IOException e) {
+            // The first entry may be cut off, e.g. by a large photo. What the detector has seen
+            // so far is still the best estimate.
+            Log.w(LOG_TAG, "Unable to parse the first vCard entry: " + e);
+        }
+        return new VCardHeaderDetector(version, detector.getEstimatedType(),
+                detector.getEstimatedCharset());
+    }
+
+    /** Returns the version of the first entry. vCard 2.1 is assumed if it has none. */
+    /* package */ static int parseVersion(String header) {
+        final Matcher matcher = VERSION_PATTERN.matcher(header);
+        if (matcher.find()) {
+            final String version = matcher.group(1);
+            if (version.startsWith("3")) {
+                return ImportVCardActivity.VCARD_VERSION_V30;
+            } else if (version.startsWith("4")) {
+                return ImportVCardActivity.VCARD_VERSION_V40;
+            }
+        }
+        return ImportVCardActivity.VCARD_VERSION_V21;
+    }
+}
@@ -33,13 +33,15 @@ import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * The class responsible for handling vCard import/export requests.
  *
  * This Service creates one ImportRequest/ExportRequest object (as Runnable) per request and push
- * it to {@link ExecutorService} with single thread executor. The executor handles each request
- * one by one, and notifies users when needed.
+ * it to {@link ExecutorService} with a small pool of threads. Imports of several files run side
+ * by side, while an export runs on its own, and users are notified when needed.
  */
 // TODO: Using IntentService looks simpler than using Service + ServiceConnection though this
 // works fine enough. Investigate the feasibility.
@@ -86,9 +88,19 @@ public class VCardService extends Service {
         }
     }
 
-    // Should be single thread, as we don't want to simultaneously handle import and export
-    // requests.
-    private final ExecutorService mExecutorService = Executors.newSingleThreadExecutor();
+    /**
+     * How many files are imported at the same time. Parsing is CPU bound, while writing to the
+     * provider is serialized by {@link PipelinedVCardEntryCommitter}, so a few threads suffice.
+     */
+    private static final int MAX_PARALLEL_JOBS =
+            Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+
+    private final ExecutorService mExecutorService =
+            Executors.newFixedThreadPool(MAX_PARALLEL_JOBS);
+
+    // We don't want to simultaneously handle import and export requests, so imports share the
+    // read lock and exports take the write lock. The lock is fair to keep requests in order.
+    private final ReentrantReadWriteLock mJobLock = new ReentrantReadWriteLock(/* fair */ true);
 
     private int mCurrentJobId = 1;
 
@@ -216,13 +228,25 @@ public class VCardService extends Service {
      * Tries to call {@link ExecutorService#execute(Runnable)} toward a given processor.
      * @return true when successful.
      */
-    private synchronized boolean tryExecute(ProcessorBase processor) {
+    private synchronized boolean tryExecute(final ProcessorBase processor) {
         try {
             if (DEBUG) {
                 Log.d(LOG_TAG, "Executor service status: shutdown: " + mExecutorService.isShutdown()
                         + ", terminated: " + mExecutorService.isTerminated());
             }
-            mExecutorService.execute(processor);
+            final Lock lock = processor.getType() == TYPE_EXPORT
+                    ? mJobLock.writeLock() : mJobLock.readLock();
+            mExecutorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    lock.lock();
+                    try {
+                        processor.run();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            });
             mRunningJobMap.put(mCurrentJobId, processor);
             return true;
         } catch (RejectedExecutionException e) {
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.contacts;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import android.graphics.Bitmap;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ContactPhotoBitmapPoolTest {
+
+    @Test
+    public void returnsSmallestBitmapThatFits() {
+        final ContactPhotoBitmapPool pool = new ContactPhotoBitmapPool(1024 * 1024);
+        final Bitmap small = createBitmap(48);
+        final Bitmap large = createBitmap(64);
+        pool.put(large);
+        pool.put(small);
+
+        assertSame(small, pool.get(46 * 46 * 4));
+        assertSame(large, pool.get(46 * 46 * 4));
+        assertNull(pool.get(46 * 46 * 4));
+        assertEquals(2, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+        assertEquals(0, pool.getSizeBytes());
+    }
+
+    @Test
+    public void doesNotWasteMemory() {
+        final ContactPhotoBitmapPool pool = new ContactPhotoBitmapPool(1024 * 1024);
+        pool.put(createBitmap(96));
+
+        assertNull(pool.get(10 * 10 * 4));
+    }
+
+    @Test
+    public void ignoresImmutableBitmaps() {
+        final ContactPhotoBitmapPool pool = new ContactPhotoBitmapPool(1024 * 1024);
+        pool.put(createBitmap(48).copy(Bitmap.Config.ARGB_8888, false));
+
+        assertEquals(0, pool.getSizeBytes());
+    }
+
+    @Test
+    public void dropsEldestWhenFull() {
+        final int size = 48 * 48 * 4;
+        final ContactPhotoBitmapPool pool = new ContactPhotoBitmapPool(2 * size);
+        final Bitmap first = createBitmap(48);
+        final Bitmap second = createBitmap(48);
+        final Bitmap third = createBitmap(48);
+        pool.put(first);
+        pool.put(second);
+        pool.put(third);
+
+        assertEquals(2 * size, pool.getSizeBytes());
+        assertSame(third, pool.get(size));
+        assertSame(second, pool.get(size));
+        assertNull(pool.get(size));
+    }
+
+    private static Bitmap createBitmap(int extent) {
+        return Bitmap.createBitmap(extent, extent, Bitmap.Config.ARGB_8888);
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.contacts;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ContactPhotoDiskCacheTest {
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() {
+        mDirectory = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "ContactPhotoDiskCacheTest");
+        deleteDirectory();
+    }
+
+    @After
+    public void tearDown() {
+        deleteDirectory();
+    }
+
+    @Test
+    public void getReturnsWhatWasPut() {
+        final ContactPhotoDiskCache cache = new ContactPhotoDiskCache(mDirectory, 1024 * 1024);
+        final byte[] bytes = new byte[] { 1, 2, 3, 4 };
+        cache.put(10, 3, 7, 96, bytes);
+
+        final ContactPhotoDiskCache.Entry entry = cache.get(10);
+        assertNotNull(entry);
+        assertEquals(10, entry.photoId);
+        assertEquals(96, entry.originalSmallerExtent);
+        assertArrayEquals(bytes, toArray(entry.buffer));
+        assertTrue(ContactPhotoDiskCache.isCurrent(entry, 3, 7));
+        assertFalse(ContactPhotoDiskCache.isCurrent(entry, 4, 7));
+        assertFalse(ContactPhotoDiskCache.isCurrent(entry, 3, 8));
+        assertNull(cache.get(11));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void entriesSurviveANewInstance() {
+        new ContactPhotoDiskCache(mDirectory, 1024 * 1024).put(10, 1, 0, 96, new byte[] { 5 });
+
+        final ContactPhotoDiskCache cache = new ContactPhotoDiskCache(mDirectory, 1024 * 1024);
+        final ContactPhotoDiskCache.Entry entry = cache.get(10);
+        assertNotNull(entry);
+        assertArrayEquals(new byte[] { 5 }, toArray(entry.buffer));
+    }
+
+    @Test
+    public void removeDropsEntry() {
+        final ContactPhotoDiskCache cache = new ContactPhotoDiskCache(mDirectory, 1024 * 1024);
+        cache.put(10, 1, 0, 96, new byte[] { 5 });
+        cache.remove(10);
+        assertNull(cache.get(10));
+        assertEquals(0, cache.getSizeBytes());
+    }
+
+    @Test
+    public void removalSurvivesANewInstance() {
+        final ContactPhotoDiskCache cache = new ContactPhotoDiskCache(mDirectory, 1024 * 1024);
+        cache.put(10, 1, 0, 96, new byte[] { 5 });
+        cache.put(11, 1, 0, 96, new byte[] { 6 });
+        cache.remove(10);
+
+        final ContactPhotoDiskCache reopened =
+                new ContactPhotoDiskCache(mDirectory, 1024 * 1024);
+        assertNull(reopened.get(10));
+        assertArrayEquals(new byte[] { 6 }, toArray(reopened.get(11).buffer));
+    }
+
+    @Test
+    public void latestRecordWins() {
+        final ContactPhotoDiskCache cache = new ContactPhotoDiskCache(mDirectory, 1024 * 1024);
+        cache.put(10, 1, 0, 96, new byte[] { 5 });
+        cache.put(10, 2, 0, 96, new byte[] { 6 });
+
+        final ContactPhotoDiskCache.Entry entry =
+                new ContactPhotoDiskCache(mDirectory, 1024 * 1024).get(10);
+        assertTrue(ContactPhotoDiskCache.isCurrent(entry, 2, 0));
+        assertArrayEquals(new byte[] { 6 }, toArray(entry.buffer));
+    }
+
+    @Test
+    public void leastRecentlyUsedEntriesAreEvicted() {
+        final ContactPhotoDiskCache cache = new ContactPhotoDiskCache(mDirectory, 4000);
+        cache.put(1, 1, 0, 96, new byte[1000]);
+        cache.put(2, 1, 0, 96, new byte[1000]);
+        // Touch the first entry so that the second one is the eldest.
+        assertNotNull(cache.get(1));
+        cache.put(3, 1, 0, 96, new byte[1000]);
+        final ContactPhotoDiskCache.Entry mapped = cache.get(3);
+        cache.put(4, 1, 0, 96, new byte[1000]);
+
+        assertNull(cache.get(2));
+        assertNotNull(cache.get(4));
+        assertTrue(cache.getFileLength() <= 4000);
+        // Slices handed out before the compaction are still readable.
+        assertEquals(1000, toArray(mapped.buffer).length);
+    }
+
+    @Test
+    public void appendsReuseTheMapping() {
+        final ContactPhotoDiskCache cache =
+                new ContactPhotoDiskCache(mDirectory, 4 * 1024 * 1024);
+        for (int i = 0; i < 200; i++) {
+            assertNotNull(cache.put(i, 1, 0, 96, new byte[1000]));
+        }
+        // 200KB of records fit the first mapping
+        assertEquals(1, cache.getMappingCount());
+        assertEquals(1000, toArray(cache.get(0).buffer).length);
+
+        final ContactPhotoDiskCache reopened =
+                new ContactPhotoDiskCache(mDirectory, 4 * 1024 * 1024);
+        assertEquals(cache.getFileLength(), reopened.getFileLength());
+        assertNotNull(reopened.get(199));
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        final byte[] result = new byte[buffer.remaining()];
+        buffer.duplicate().get(result);
+        return result;
+    }
+
+    private void deleteDirectory() {
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.contacts;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.Data;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.contacts.util.AdaptiveBatchSizer;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how the number of operations per applyBatch call affects the throughput of saves,
+ * against a stand-in provider that keeps data rows in an in-memory database and, like the
+ * contacts provider, commits a transaction per batch and at every yield point.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class ContactSaveBatchBenchmark {
+    private static final String TAG = "ContactSaveBatchBench";
+
+    private static final int OPERATIONS = 4000;
+    private static final int[] BATCH_SIZES = {10, 25, 50, 100, 200, 499};
+    private static final long TARGET_BATCH_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+    /**
+     * A provider that stores data rows in an in-memory database. It is a mock provider, so
+     * that it can be registered with a {@link MockContentResolver} without being attached.
+     */
+    private static class StandInProvider extends android.test.mock.MockContentProvider {
+        private final SQLiteDatabase mDb = SQLiteDatabase.create(null);
+
+        private StandInProvider() {
+            mDb.execSQL("CREATE TABLE data (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+                    + " raw_contact_id INTEGER, mimetype TEXT, data1 TEXT, is_primary INTEGER)");
+            mDb.execSQL("CREATE INDEX data_raw_contact_id ON data (raw_contact_id)");
+        }
+
+        @Override
+        public boolean onCreate() {
+            return true;
+        }
+
+        @Override
+        public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+                throws OperationApplicationException {
+            final ContentProviderResult[] results =
+                    new ContentProviderResult[operations.size()];
+            mDb.beginTransaction();
+            try {
+                for (int i = 0; i < operations.size(); i++) {
+                    final ContentProviderOperation operation = operations.get(i);
+                    if (i > 0 && operation.isYieldAllowed()) {
+                        // Commit so far, as the contacts provider does when it yields
+                        mDb.setTransactionSuccessful();
+                        mDb.endTransaction();
+                        mDb.beginTransaction();
+                    }
+                    results[i] = operation.apply(this, results, i);
+                }
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+            }
+            return results;
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            return ContentUris.withAppendedId(Data.CONTENT_URI, mDb.insert("data", null, values));
+        }
+
+        @Override
+        public int update(Uri uri, ContentValues values, String selection,
+                String[] selectionArgs) {
+            return mDb.update("data", values, "_id=?",
+                    new String[] {String.valueOf(ContentUris.parseId(uri))});
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            return mDb.query("data", projection, selection, selectionArgs, null, null, sortOrder);
+        }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            return mDb.delete("data", selection, selectionArgs);
+        }
+
+        @Override
+        public String getType(Uri uri) {
+            return null;
+        }
+    }
+
+    private StandInProvider mProvider;
+    private MockContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        mProvider = new StandInProvider();
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(ContactsContract.AUTHORITY, mProvider);
+    }
+
+    @Test
+    public void throughputByBatchSize() throws Exception {
+        for (int batchSize : BATCH_SIZES) {
+            // Warm up, then measure
+            applyInBatches(buildInserts(OPERATIONS / 4), batchSize, null);
+            final long nanos = applyInBatches(buildInserts(OPERATIONS), batchSize, null);
+            Log.i(TAG, "batchSize=" + batchSize + " operations/s="
+                    + OPERATIONS * TimeUnit.SECONDS.toNanos(1) / Math.max(1, nanos));
+        }
+    }
+
+    @Test
+    public void adaptiveBatchSize() throws Exception {
+        final AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(BATCH_SIZES[0],
+                BATCH_SIZES[BATCH_SIZES.length - 1], TARGET_BATCH_NANOS);
+        final long nanos = applyInBatches(buildInserts(OPERATIONS), -1, sizer);
+        Log.i(TAG, "adaptive: batchSize=" + sizer.getBatchSize() + " operations/s="
+                + OPERATIONS * TimeUnit.SECONDS.toNanos(1) / Math.max(1, nanos));
+
+        assertTrue(sizer.getBatchSize() >= BATCH_SIZES[0]);
+        assertEquals(OPERATIONS, count());
+    }
+
+    /**
+     * Applies the operations in batches of {@code batchSize}, or of the size that {@code sizer}
+     * picks if it is not null, and returns how long that took.
+     */
+    private long applyInBatches(ArrayList<ContentProviderOperation> operations, int batchSize,
+            AdaptiveBatchSizer sizer) throws Exception {
+        final long start = System.nanoTime();
+        int offset = 0;
+        while (offset < operations.size()) {
+            final int size = sizer != null ? sizer.getBatchSize() : batchSize;
+            final int end = Math.min(operations.size(), offset + size);
+            final long batchStart = System.nanoTime();
+            mResolver.applyBatch(ContactsContract.AUTHORITY,
+                    new ArrayList<>(operations.subList(offset, end)));
+            if (sizer != null) {
+                sizer.onBatchApplied(end - offset, System.nanoTime() - batchStart);
+            }
+            offset = end;
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static ArrayList<ContentProviderOperation> buildInserts(int count) {
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            operations.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                    .withValue(Data.RAW_CONTACT_ID, i / 10)
+                    .withValue(Data.MIMETYPE, "vnd.android.cursor.item/phone_v2")
+                    .withValue(Data.DATA1, "+1 555 01" + (i % 100))
+                    .withValue(Data.IS_PRIMARY, 0)
+                    .build());
+        }
+        return operations;
+    }
+
+    private int count() {
+        final Cursor cursor = mProvider.query(Data.CONTENT_URI, new String[] {"_id"},
+                null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.contacts;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.google.common.collect.Sets;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ContactSaveSchedulerTest {
+
+    /** A lane that only runs its operations when the test asks it to. */
+    private static class ManualLane implements Executor {
+        private final ArrayDeque<Runnable> mQueue = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable runnable) {
+            mQueue.add(runnable);
+        }
+
+        int size() {
+            return mQueue.size();
+        }
+
+        void runNext() {
+            mQueue.remove().run();
+        }
+    }
+
+    private final List<String> mLog = new ArrayList<>();
+    private ManualLane mFastLane;
+    private ManualLane mHeavyLane;
+    private int mIdleCount;
+    private ContactSaveScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mFastLane = new ManualLane();
+        mHeavyLane = new ManualLane();
+        mScheduler = new ContactSaveScheduler(new ContactSaveScheduler.Callback() {
+            @Override
+            public void onIdle() {
+                mIdleCount++;
+            }
+        });
+    }
+
+    @Test
+    public void fastLaneDoesNotWaitForOtherContacts() {
+        mScheduler.submit(log("save"), mHeavyLane, Sets.newHashSet("raw:1", "contact:1"));
+        mScheduler.submit(log("star"), mFastLane, Sets.newHashSet("contact:2"));
+
+        assertEquals(1, mHeavyLane.size());
+        assertEquals(1, mFastLane.size());
+        mFastLane.runNext();
+        mHeavyLane.runNext();
+
+        assertEquals(Sets.newHashSet("star", "save"), Sets.newHashSet(mLog));
+        assertTrue(mScheduler.isIdle());
+        assertEquals(1, mIdleCount);
+    }
+
+    @Test
+    public void sameContactKeepsOrder() {
+        mScheduler.submit(log("save"), mHeavyLane, Sets.newHashSet("raw:1", "contact:1"));
+        mScheduler.submit(log("star"), mFastLane, Sets.newHashSet("contact:1"));
+
+        assertEquals(0, mFastLane.size());
+        mHeavyLane.runNext();
+        assertEquals(1, mFastLane.size());
+        mFastLane.runNext();
+
+        assertEquals(Arrays.asList("save", "star"), mLog);
+    }
+
+    @Test
+    public void laterOperationWaitsForBlockedOne() {
+        mScheduler.submit(log("save1"), mHeavyLane, Sets.newHashSet("contact:1"));
+        mScheduler.submit(log("join"), mHeavyLane, Sets.newHashSet("contact:1", "contact:2"));
+        mScheduler.submit(log("star2"), mFastLane, Sets.newHashSet("contact:2"));
+
+        // The join waits for the first save, and starring contact 2 waits for the join
+        assertEquals(1, mHeavyLane.size());
+        assertEquals(0, mFastLane.size());
+        mHeavyLane.runNext();
+        mHeavyLane.runNext();
+        mFastLane.runNext();
+
+        assertEquals(Arrays.asList("save1", "join", "star2"), mLog);
+    }
+
+    @Test
+    public void barrierWaitsForAllAndBlocksAll() {
+        mScheduler.submit(log("star1"), mFastLane, Sets.newHashSet("contact:1"));
+        mScheduler.submit(log("undo"), mHeavyLane, null);
+        mScheduler.submit(log("star2"), mFastLane, Sets.newHashSet("contact:2"));
+
+        assertEquals(1, mFastLane.size());
+        assertEquals(0, mHeavyLane.size());
+        mFastLane.runNext();
+        assertEquals(1, mHeavyLane.size());
+        assertEquals(0, mFastLane.size());
+        mHeavyLane.runNext();
+        mFastLane.runNext();
+
+        assertEquals(Arrays.asList("star1", "undo", "star2"), mLog);
+        assertEquals(1, mIdleCount);
+    }
+
+    private Runnable log(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                mLog.add(name);
+            }
+        };
+    }
+}
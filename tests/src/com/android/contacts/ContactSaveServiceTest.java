@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.contacts;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.OperationApplicationException;
+import android.os.Bundle;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Data;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ContactSaveServiceTest {
+
+    private static final long REQUEST_ID = 1;
+    private static final long APP_VERSION_CODE = 1;
+
+    /** Inserts every operation of a batch, except that it fails the given batch once. */
+    private static class FailingProvider extends MockContentProvider {
+        private final int mFailingBatch;
+        private int mBatchCount;
+        int mInsertedRows;
+
+        FailingProvider(int failingBatch) {
+            mFailingBatch = failingBatch;
+        }
+
+        @Override
+        public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+                throws OperationApplicationException {
+            if (++mBatchCount == mFailingBatch) {
+                throw new OperationApplicationException("Batch " + mBatchCount + " failed");
+            }
+            final ContentProviderResult[] results =
+                    new ContentProviderResult[operations.size()];
+            for (int i = 0; i < results.length; i++) {
+                results[i] = new ContentProviderResult(
+                        ContentUris.withAppendedId(Data.CONTENT_URI, ++mInsertedRows));
+            }
+            return results;
+        }
+    }
+
+    private File mFile;
+    private SaveJournal mJournal;
+
+    @Before
+    public void setUp() {
+        mFile = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "ContactSaveServiceTest");
+        mFile.delete();
+        mJournal = new SaveJournal(mFile, APP_VERSION_CODE);
+        mJournal.open(getClass().getClassLoader());
+        mJournal.begin(REQUEST_ID, new Bundle());
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void retryAfterFailedSecondBatchDoesNotInsertRowsTwice() throws Exception {
+        final FailingProvider provider = new FailingProvider(/* failingBatch */ 2);
+        final MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(ContactsContract.AUTHORITY, provider);
+        final ArrayList<ContentProviderOperation> diff = newPhoneInserts(120);
+        final ContentProviderResult[] results = new ContentProviderResult[diff.size()];
+
+        final int committed = ContactSaveService.applyDiffInBatches(resolver, diff, 0, 50,
+                results, mJournal, REQUEST_ID);
+        assertEquals(50, committed);
+        assertEquals(50, provider.mInsertedRows);
+
+        // The retry picks up where the committed batches ended
+        assertEquals(diff.size(), ContactSaveService.applyDiffInBatches(resolver, diff,
+                committed, 50, results, mJournal, REQUEST_ID));
+        assertEquals(diff.size(), provider.mInsertedRows);
+    }
+
+    @Test(expected = OperationApplicationException.class)
+    public void failedFirstBatchIsThrownForReparenting() throws Exception {
+        final MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(ContactsContract.AUTHORITY,
+                new FailingProvider(/* failingBatch */ 1));
+        final ArrayList<ContentProviderOperation> diff = newPhoneInserts(120);
+
+        ContactSaveService.applyDiffInBatches(resolver, diff, 0, 50,
+                new ContentProviderResult[diff.size()], mJournal, REQUEST_ID);
+    }
+
+    private static ArrayList<ContentProviderOperation> newPhoneInserts(int count) {
+        final ArrayList<ContentProviderOperation> diff = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            diff.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                    .withValue(Data.RAW_CONTACT_ID, 1)
+                    .withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE)
+                    .withValue(Phone.NUMBER, "555-01" + i)
+                    .build());
+        }
+        return diff;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.contacts;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Intent;
+import android.net.Uri;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.Data;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.contacts.test.mocks.ContactsMockContext;
+import com.android.contacts.test.mocks.MockContentProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ContactWriteCoalescerTest {
+    private static final Uri CONTACT_URI = ContentUris.withAppendedId(Contacts.CONTENT_URI, 1);
+
+    private ContactsMockContext mContext;
+    private MockContentProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mContext = new ContactsMockContext(InstrumentationRegistry.getTargetContext());
+        mProvider = mContext.getContactsProvider();
+    }
+
+    @Test
+    public void starThenUnstarWritesNothing() {
+        expectContactQuery(0, null);
+        final ContactWriteCoalescer coalescer = new ContactWriteCoalescer();
+        coalescer.add(ContactSaveService.createSetStarredIntent(mContext, CONTACT_URI, true));
+        coalescer.add(ContactSaveService.createSetStarredIntent(mContext, CONTACT_URI, false));
+
+        // The mock provider fails on any update that was not expected
+        assertEquals(0, coalescer.apply(mContext.getContentResolver()));
+        assertEquals(2, coalescer.getRequests().size());
+        mProvider.verify();
+    }
+
+    @Test
+    public void mergesUpdatesOfTheSameContact() {
+        expectContactQuery(0, null);
+        final ContentValues values = new ContentValues();
+        values.put(Contacts.STARRED, 1);
+        values.put(Contacts.CUSTOM_RINGTONE, "ringtone2");
+        mProvider.expectUpdate(CONTACT_URI, values, null, null);
+
+        final ContactWriteCoalescer coalescer = new ContactWriteCoalescer();
+        coalescer.add(ContactSaveService.createSetStarredIntent(mContext, CONTACT_URI, true));
+        coalescer.add(ContactSaveService.createSetRingtone(mContext, CONTACT_URI, "ringtone1"));
+        coalescer.add(ContactSaveService.createSetRingtone(mContext, CONTACT_URI, "ringtone2"));
+
+        assertEquals(1, coalescer.apply(mContext.getContentResolver()));
+        mProvider.verify();
+    }
+
+    @Test
+    public void collapsesUpdatesOfTheSameDataRow() {
+        final ContentValues values = new ContentValues();
+        values.put(Data.IS_SUPER_PRIMARY, 1);
+        values.put(Data.IS_PRIMARY, 1);
+        mProvider.expectUpdate(ContentUris.withAppendedId(Data.CONTENT_URI, 5), values,
+                null, null);
+
+        final ContactWriteCoalescer coalescer = new ContactWriteCoalescer();
+        coalescer.add(ContactSaveService.createSetSuperPrimaryIntent(mContext, 5));
+        coalescer.add(ContactSaveService.createSetSuperPrimaryIntent(mContext, 5));
+
+        assertEquals(1, coalescer.apply(mContext.getContentResolver()));
+    }
+
+    @Test
+    public void rejectsMalformedRequests() {
+        final ContactWriteCoalescer coalescer = new ContactWriteCoalescer();
+
+        assertFalse(coalescer.add(ContactSaveService.createSetSuperPrimaryIntent(mContext, -1)));
+        assertFalse(coalescer.add(
+                ContactSaveService.createSetStarredIntent(mContext, null, true)));
+        assertFalse(coalescer.add(new Intent(ContactSaveService.ACTION_SAVE_CONTACT)));
+    }
+
+    private void expectContactQuery(int starred, String ringtone) {
+        final ContentValues row = new ContentValues();
+        row.put(Contacts._ID, 1);
+        row.put(Contacts.STARRED, starred);
+        row.put(Contacts.SEND_TO_VOICEMAIL, 0);
+        row.put(Contacts.CUSTOM_RINGTONE, ringtone);
+        mProvider.expectQuery(CONTACT_URI).withAnyProjection().returnRow(row);
+    }
+}
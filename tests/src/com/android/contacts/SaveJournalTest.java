@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.contacts;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Bundle;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.List;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class SaveJournalTest {
+
+    private static final long APP_VERSION_CODE = 10;
+
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mFile = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "SaveJournalTest");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void returnsUnfinishedSavesWithTheirCommittedOperations() {
+        final SaveJournal journal = new SaveJournal(mFile, APP_VERSION_CODE);
+        assertEquals(0, journal.open(getClass().getClassLoader()).size());
+        journal.begin(1, newRequest("first"));
+        journal.begin(2, newRequest("second"));
+        journal.commit(1, 100);
+        journal.commit(1, 200);
+        journal.end(2);
+
+        final List<SaveJournal.Entry> entries = reopen();
+        assertEquals(1, entries.size());
+        assertEquals(1, entries.get(0).requestId);
+        assertEquals(200, entries.get(0).committedOperations);
+        assertEquals("first", entries.get(0).request.getString("name"));
+    }
+
+    @Test
+    public void truncatesOnceNoSaveIsPending() {
+        final SaveJournal journal = new SaveJournal(mFile, APP_VERSION_CODE);
+        journal.open(getClass().getClassLoader());
+        journal.begin(1, newRequest("first"));
+        journal.end(1);
+
+        assertEquals(0, mFile.length());
+        assertEquals(0, reopen().size());
+    }
+
+    @Test
+    public void ignoresTornRecord() throws Exception {
+        final SaveJournal journal = new SaveJournal(mFile, APP_VERSION_CODE);
+        journal.open(getClass().getClassLoader());
+        journal.begin(1, newRequest("first"));
+        final long length = mFile.length();
+        journal.commit(1, 100);
+
+        // Cut the commit record short, as if the process died while writing it
+        final RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.setLength(length + 5);
+        file.close();
+
+        final List<SaveJournal.Entry> entries = reopen();
+        assertEquals(1, entries.size());
+        assertEquals(0, entries.get(0).committedOperations);
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() {
+        final SaveJournal journal = new SaveJournal(mFile, APP_VERSION_CODE);
+        journal.open(getClass().getClassLoader());
+        journal.begin(1, newRequest("first"));
+
+        for (int i = 1; i < SaveJournal.MAX_ATTEMPTS; i++) {
+            assertEquals(1, reopen().size());
+        }
+        final SaveJournal reopened = new SaveJournal(mFile, APP_VERSION_CODE);
+        assertTrue(reopened.open(getClass().getClassLoader()).isEmpty());
+        assertEquals(Collections.singleton(1L), reopened.getDroppedRequestIds());
+    }
+
+    @Test
+    public void dropsSavesWrittenByAnotherAppVersion() {
+        final SaveJournal journal = new SaveJournal(mFile, APP_VERSION_CODE);
+        journal.open(getClass().getClassLoader());
+        journal.begin(1, newRequest("first"));
+
+        final SaveJournal updated = new SaveJournal(mFile, APP_VERSION_CODE + 1);
+        assertTrue(updated.open(getClass().getClassLoader()).isEmpty());
+        assertEquals(Collections.singleton(1L), updated.getDroppedRequestIds());
+    }
+
+    private List<SaveJournal.Entry> reopen() {
+        return new SaveJournal(mFile, APP_VERSION_CODE).open(getClass().getClassLoader());
+    }
+
+    private static Bundle newRequest(String name) {
+        final Bundle request = new Bundle();
+        request.putString("name", name);
+        return request;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.contacts.database;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import android.content.ContentValues;
+import android.provider.ContactsContract.AggregationExceptions;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.contacts.test.mocks.ContactsMockContext;
+import com.android.contacts.test.mocks.MockContentProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.List;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class DuplicateContactsScannerTest {
+    private static final int MEMORY_BUDGET = 64 * 1024;
+
+    private ContactsMockContext mContext;
+    private MockContentProvider.Query mQuery;
+    private MockContentProvider.Query mSeparatedQuery;
+
+    @Before
+    public void setUp() {
+        mContext = new ContactsMockContext(InstrumentationRegistry.getTargetContext());
+        mSeparatedQuery = mContext.getContactsProvider()
+                .expectQuery(AggregationExceptions.CONTENT_URI)
+                .withAnyProjection().withAnySelection().withAnySortOrder();
+        mQuery = mContext.getContactsProvider().expectQuery(Data.CONTENT_URI)
+                .withAnyProjection().withAnySelection().withAnySortOrder();
+    }
+
+    @Test
+    public void clustersContactsThatShareTwoKeys() {
+        // A name and a phone number
+        addRow(1, StructuredName.CONTENT_ITEM_TYPE, "Zoë  Doe");
+        addRow(1, Phone.CONTENT_ITEM_TYPE, "+1 650-555-0100");
+        addRow(2, StructuredName.CONTENT_ITEM_TYPE, "zoe doe");
+        addRow(2, Phone.CONTENT_ITEM_TYPE, "(650) 555 0100");
+        // A phone number and an email address
+        addRow(3, Phone.CONTENT_ITEM_TYPE, "650 555 0199");
+        addRow(3, Email.CONTENT_ITEM_TYPE, "Jane@Example.com ");
+        addRow(4, Email.CONTENT_ITEM_TYPE, "jane@example.com");
+        addRow(4, Phone.CONTENT_ITEM_TYPE, "6505550199");
+
+        final List<long[]> clusters = scan(10).getClusters();
+
+        assertEquals(2, clusters.size());
+        assertCluster(clusters.get(0), 1, 2);
+        assertCluster(clusters.get(1), 3, 4);
+    }
+
+    @Test
+    public void doesNotClusterOnASingleSharedKey() {
+        // A shared landline
+        addRow(1, StructuredName.CONTENT_ITEM_TYPE, "Jane Doe");
+        addRow(1, Phone.CONTENT_ITEM_TYPE, "650 555 0100");
+        addRow(2, StructuredName.CONTENT_ITEM_TYPE, "John Doe");
+        addRow(2, Phone.CONTENT_ITEM_TYPE, "650 555 0100");
+        // The same number twice is still one key
+        addRow(3, Phone.CONTENT_ITEM_TYPE, "650 555 0100");
+        addRow(3, Phone.CONTENT_ITEM_TYPE, "+1 650 555 0100");
+
+        assertEquals(0, scan(10).getClusters().size());
+    }
+
+    @Test
+    public void doesNotClusterContactsThatWereKeptSeparate() {
+        mSeparatedQuery.returnRow(11L, 12L);
+        mContext.getContactsProvider().expectQuery(RawContacts.CONTENT_URI)
+                .withAnyProjection().withAnySelection().withAnySortOrder()
+                .returnRow(11L, 1L)
+                .returnRow(12L, 2L);
+        for (int i = 1; i <= 3; i++) {
+            addRow(i, StructuredName.CONTENT_ITEM_TYPE, "Jane Doe");
+            addRow(i, Email.CONTENT_ITEM_TYPE, "jane@example.com");
+        }
+
+        // 3 may join either 1 or 2, but 1 and 2 stay apart
+        final List<long[]> clusters = scan(10).getClusters();
+        assertEquals(1, clusters.size());
+        assertEquals(2, clusters.get(0).length);
+    }
+
+    @Test
+    public void skipsClustersThatAreTooLarge() {
+        for (int i = 1; i <= 3; i++) {
+            addRow(i, StructuredName.CONTENT_ITEM_TYPE, "Jane Doe");
+            addRow(i, Email.CONTENT_ITEM_TYPE, "info@example.com");
+        }
+
+        assertEquals(0, scan(2).getClusters().size());
+    }
+
+    @Test
+    public void ignoresShortPhoneNumbers() {
+        addRow(1, Phone.CONTENT_ITEM_TYPE, "911");
+        addRow(2, Phone.CONTENT_ITEM_TYPE, "911");
+
+        assertEquals(0, scan(10).getClusters().size());
+    }
+
+    @Test
+    public void normalizeName() {
+        assertEquals("jose maria", DuplicateContactsScanner.normalizeName(" José-María "));
+        assertNull(DuplicateContactsScanner.normalizeName(" .. "));
+    }
+
+    private DuplicateContactsScanner.Result scan(int maxClusterSize) {
+        return new DuplicateContactsScanner(mContext.getContentResolver(), MEMORY_BUDGET,
+                maxClusterSize).scan();
+    }
+
+    private void addRow(long contactId, String mimeType, String data1) {
+        final ContentValues row = new ContentValues();
+        row.put(Data.CONTACT_ID, contactId);
+        row.put(Data.MIMETYPE, mimeType);
+        row.put(Data.DATA1, data1);
+        mQuery.returnRow(row);
+    }
+
+    private static void assertCluster(long[] cluster, long... contactIds) {
+        final long[] sorted = cluster.clone();
+        Arrays.sort(sorted);
+        assertArrayEquals(contactIds, sorted);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.contacts.lettertiles;
+
+import static org.junit.Assert.assertTrue;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.annotation.UiThreadTest;
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Compares drawing letter tiles directly with drawing them from a {@link LetterTileAtlas}.
+ * The atlases are only used on the UI thread, so the tests run there.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class LetterTileDrawableBenchmark {
+    private static final String TAG = "LetterTileBenchmark";
+
+    private static final int EXTENT = 120;
+    private static final int TILES = 20;
+    private static final int WARMUP_FRAMES = 10;
+    private static final int FRAMES = 200;
+
+    private Resources mResources;
+    private Bitmap mTarget;
+    private Canvas mCanvas;
+
+    @Before
+    public void setUp() {
+        mResources = InstrumentationRegistry.getTargetContext().getResources();
+        mTarget = Bitmap.createBitmap(EXTENT, EXTENT, Bitmap.Config.ARGB_8888);
+        mCanvas = new Canvas(mTarget);
+    }
+
+    @After
+    public void tearDown() {
+        LetterTileDrawable.setAtlasEnabled(true);
+    }
+
+    @Test
+    @UiThreadTest
+    public void atlasDrawsTheSameTile() {
+        final LetterTileDrawable drawable = createTile(3, true);
+
+        LetterTileDrawable.setAtlasEnabled(false);
+        final Bitmap direct = draw(drawable);
+        LetterTileDrawable.setAtlasEnabled(true);
+        // The first draw renders the tile into the atlas, the second one blits it
+        draw(drawable);
+        final Bitmap fromAtlas = draw(drawable);
+
+        assertTrue(direct.sameAs(fromAtlas));
+    }
+
+    @Test
+    @UiThreadTest
+    public void drawTime() {
+        final LetterTileDrawable[] drawables = new LetterTileDrawable[TILES];
+        for (int i = 0; i < TILES; i++) {
+            drawables[i] = createTile(i, i % 2 == 0);
+        }
+
+        LetterTileDrawable.setAtlasEnabled(false);
+        final long directNanos = timeFrames(drawables);
+        LetterTileDrawable.setAtlasEnabled(true);
+        final long atlasNanos = timeFrames(drawables);
+
+        Log.i(TAG, "Average draw(): direct=" + directNanos / (FRAMES * TILES) + "ns"
+                + ", atlas=" + atlasNanos / (FRAMES * TILES) + "ns");
+    }
+
+    private long timeFrames(LetterTileDrawable[] drawables) {
+        for (int frame = 0; frame < WARMUP_FRAMES; frame++) {
+            drawFrame(drawables);
+        }
+        final long start = System.nanoTime();
+        for (int frame = 0; frame < FRAMES; frame++) {
+            drawFrame(drawables);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private void drawFrame(LetterTileDrawable[] drawables) {
+        for (LetterTileDrawable drawable : drawables) {
+            drawable.draw(mCanvas);
+        }
+    }
+
+    private Bitmap draw(LetterTileDrawable drawable) {
+        mTarget.eraseColor(0);
+        drawable.draw(mCanvas);
+        return mTarget.copy(Bitmap.Config.ARGB_8888, false);
+    }
+
+    private LetterTileDrawable createTile(int index, boolean circular) {
+        final LetterTileDrawable drawable = new LetterTileDrawable(mResources);
+        drawable.setLetterAndColorFromContactDetails(
+                String.valueOf((char) ('A' + index % 26)), "contact" + index);
+        drawable.setIsCircular(circular);
+        drawable.setBounds(0, 0, EXTENT, EXTENT);
+        return drawable;
+    }
+}
@@ -23,6 +23,8 @@ import android.widget.ImageView;
 
 import com.android.contacts.ContactPhotoManager;
 
+import java.io.PrintWriter;
+
 /**
  * A photo preloader that always uses the "no contact" picture and never executes any real
  * db queries
@@ -69,4 +71,12 @@ public class MockContactPhotoManager extends ContactPhotoManager {
     @Override
     public void preloadPhotosInBackground() {
     }
+
+    @Override
+    public void prefetchThumbnails(long[] photoIds, int count) {
+    }
+
+    @Override
+    public void dump(String prefix, PrintWriter writer) {
+    }
 }
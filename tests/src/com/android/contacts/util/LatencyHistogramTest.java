@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.util;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link LatencyHistogram}.
+ */
+@SmallTest
+public class LatencyHistogramTest extends TestCase {
+
+    public void testEmpty() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentileMicros(50));
+        assertEquals("count=0", histogram.toString());
+    }
+
+    public void testPercentilesAreBucketLimits() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        // 90 durations of 100us and 10 of 5ms
+        for (int i = 0; i < 90; i++) {
+            histogram.record(100 * 1000);
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(5 * 1000 * 1000);
+        }
+
+        assertEquals(100, histogram.getCount());
+        // 100us falls into [64us, 128us)
+        assertEquals(128, histogram.getPercentileMicros(50));
+        assertEquals(128, histogram.getPercentileMicros(90));
+        // 5ms falls into [4096us, 8192us), but no duration was longer than 5ms
+        assertEquals(5000, histogram.getPercentileMicros(99));
+        assertEquals(5000, histogram.getMaxMicros());
+    }
+
+    public void testVeryLongDurations() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(60L * 1000 * 1000 * 1000);
+        assertEquals(60L * 1000 * 1000, histogram.getPercentileMicros(100));
+    }
+
+    public void testReset() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxMicros());
+    }
+}
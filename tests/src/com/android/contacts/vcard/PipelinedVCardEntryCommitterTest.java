@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.contacts.vcard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.RawContacts;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.vcard.VCardConfig;
+import com.android.vcard.VCardEntry;
+import com.android.vcard.VCardEntryConstructor;
+import com.android.vcard.VCardParser_V21;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class PipelinedVCardEntryCommitterTest {
+
+    /** Records the size of each batch and returns a raw contact Uri for every operation. */
+    private static class BatchRecordingProvider extends MockContentProvider {
+        final List<Integer> mBatchSizes = new ArrayList<>();
+        private final int mMaxBatchSize;
+        private long mNextId = 1;
+
+        BatchRecordingProvider() {
+            this(Integer.MAX_VALUE);
+        }
+
+        /** Fails the batches that have more than {@code maxBatchSize} operations. */
+        BatchRecordingProvider(int maxBatchSize) {
+            mMaxBatchSize = maxBatchSize;
+        }
+
+        @Override
+        public synchronized ContentProviderResult[] applyBatch(
+                ArrayList<ContentProviderOperation> operations)
+                throws OperationApplicationException {
+            if (operations.size() > mMaxBatchSize) {
+                throw new OperationApplicationException("Batch too large");
+            }
+            mBatchSizes.add(operations.size());
+            final ContentProviderResult[] results =
+                    new ContentProviderResult[operations.size()];
+            for (int i = 0; i < results.length; i++) {
+                results[i] = new ContentProviderResult(
+                        ContentUris.withAppendedId(RawContacts.CONTENT_URI, mNextId++));
+            }
+            return results;
+        }
+    }
+
+    @Test
+    public void insertsEveryEntryInBoundedBatches() throws Exception {
+        final int entries = 300;
+        final BatchRecordingProvider provider = new BatchRecordingProvider();
+        final PipelinedVCardEntryCommitter committer = importEntries(provider, entries);
+        final List<Uri> uris = committer.getCreatedUris();
+
+        assertEquals(entries, uris.size());
+        int operations = 0;
+        for (int size : provider.mBatchSizes) {
+            assertTrue(size <= 499);
+            operations += size;
+        }
+        // Every entry is a raw contact insert plus at least a name and a phone number
+        assertTrue(operations >= entries * 3);
+    }
+
+    @Test
+    public void retriesFailedBatchEntryByEntry() throws Exception {
+        final int entries = 100;
+        // Every entry fits on its own, but no two entries together
+        final BatchRecordingProvider provider = new BatchRecordingProvider(5);
+        final PipelinedVCardEntryCommitter committer = importEntries(provider, entries);
+
+        assertTrue(committer.finish());
+        assertEquals(entries, committer.getCreatedUris().size());
+        assertEquals(entries, provider.mBatchSizes.size());
+    }
+
+    @Test
+    public void reportsEntriesThatCouldNotBeInserted() throws Exception {
+        final BatchRecordingProvider provider = new BatchRecordingProvider(0);
+        final PipelinedVCardEntryCommitter committer = importEntries(provider, 10);
+
+        assertFalse(committer.finish());
+        assertTrue(committer.getCreatedUris().isEmpty());
+    }
+
+    @Test
+    public void doesNotInsertEntriesAgainWhenParsingStartsOver() throws Exception {
+        final BatchRecordingProvider provider = new BatchRecordingProvider();
+        final MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(ContactsContract.AUTHORITY, provider);
+        final PipelinedVCardEntryCommitter committer =
+                new PipelinedVCardEntryCommitter(resolver);
+        committer.onStart();
+        committer.onEntryCreated(new VCardEntry());
+        // The parser starts over with another version and reads one entry more
+        committer.onStart();
+        committer.onEntryCreated(new VCardEntry());
+        committer.onEntryCreated(new VCardEntry());
+
+        assertTrue(committer.finish());
+        assertEquals(2, committer.getCreatedUris().size());
+    }
+
+    @Test
+    public void cancelDropsQueuedEntries() throws Exception {
+        final BatchRecordingProvider provider = new BatchRecordingProvider();
+        final MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(ContactsContract.AUTHORITY, provider);
+        final PipelinedVCardEntryCommitter committer =
+                new PipelinedVCardEntryCommitter(resolver);
+        committer.onStart();
+        committer.cancel();
+        committer.onEntryCreated(new VCardEntry());
+        committer.finish();
+
+        assertTrue(committer.getCreatedUris().isEmpty());
+        assertTrue(provider.mBatchSizes.isEmpty());
+    }
+
+    private static PipelinedVCardEntryCommitter importEntries(MockContentProvider provider,
+            int entries)
+            throws Exception {
+        final MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(ContactsContract.AUTHORITY, provider);
+        final PipelinedVCardEntryCommitter committer =
+                new PipelinedVCardEntryCommitter(resolver);
+        final VCardEntryConstructor constructor =
+                new VCardEntryConstructor(VCardConfig.VCARD_TYPE_V21_GENERIC, null);
+        constructor.addEntryHandler(committer);
+
+        final StringBuilder vcard = new StringBuilder();
+        for (int i = 0; i < entries; i++) {
+            vcard.append("BEGIN:VCARD\r\nVERSION:2.1\r\nN:Doe;Jane").append(i)
+                    .append("\r\nTEL;CELL:555-01").append(i % 100)
+                    .append("\r\nEND:VCARD\r\n");
+        }
+        try {
+            new VCardParser_V21().parse(new ByteArrayInputStream(
+                    vcard.toString().getBytes(StandardCharsets.US_ASCII)), constructor);
+        } finally {
+            committer.finish();
+        }
+        return committer;
+    }
+}
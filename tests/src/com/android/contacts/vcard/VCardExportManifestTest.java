@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.contacts.vcard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.provider.ContactsContract.DeletedContacts;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class VCardExportManifestTest {
+
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mFile = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "VCardExportManifestTest");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void replaysDeltasOnTopOfBase() {
+        final VCardExportManifest manifest = VCardExportManifest.load(mFile);
+        assertFalse(manifest.canExportDelta(1000));
+
+        manifest.addBase("base", 1000, 100, 10, new long[] {1, 2, 3});
+        manifest.addDelta("delta1", 2000, 200, 20, new long[] {2, 4}, new long[] {1});
+        manifest.addDelta("delta2", 3000, 300, 30, new long[0], new long[] {4});
+        assertTrue(manifest.save());
+
+        final VCardExportManifest loaded = VCardExportManifest.load(mFile);
+        assertEquals(300, loaded.getLastUpdatedWatermark());
+        assertEquals(30, loaded.getDeletedWatermark());
+        assertTrue(loaded.canExportDelta(3000));
+        assertFalse(loaded.canExportDelta(3000 + DeletedContacts.DAYS_KEPT_MILLISECONDS));
+
+        final LinkedHashMap<Long, VCardExportManifest.Location> locations = loaded.replay();
+        assertEquals(Arrays.asList(2L, 3L),
+                new ArrayList<>(locations.keySet()));
+        assertEquals("delta1", locations.get(2L).uri);
+        assertEquals(0, locations.get(2L).index);
+        assertEquals("base", locations.get(3L).uri);
+        assertEquals(2, locations.get(3L).index);
+    }
+
+    @Test
+    public void baseReplacesEarlierExports() {
+        final VCardExportManifest manifest = VCardExportManifest.load(mFile);
+        manifest.addBase("base1", 1000, 100, 10, new long[] {1});
+        manifest.addDelta("delta", 2000, 200, 20, new long[] {2}, new long[0]);
+        manifest.addBase("base2", 3000, 300, 30, new long[] {5, 6});
+
+        assertEquals(1, manifest.getExports().size());
+        assertEquals(2, manifest.replay().size());
+        assertEquals("base2", manifest.replay().get(5L).uri);
+    }
+}
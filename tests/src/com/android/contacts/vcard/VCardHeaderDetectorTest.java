@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.contacts.vcard;
+
+import static org.junit.Assert.assertEquals;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.vcard.exception.VCardException;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class VCardHeaderDetectorTest {
+
+    @Test
+    public void detectsVersionOfFirstEntry() throws Exception {
+        assertEquals(ImportVCardActivity.VCARD_VERSION_V21, detect("2.1").getVersion());
+        assertEquals(ImportVCardActivity.VCARD_VERSION_V30, detect("3.0").getVersion());
+        assertEquals(ImportVCardActivity.VCARD_VERSION_V40, detect("4.0").getVersion());
+    }
+
+    @Test
+    public void assumesV21WithoutVersion() {
+        assertEquals(ImportVCardActivity.VCARD_VERSION_V21,
+                VCardHeaderDetector.parseVersion("BEGIN:VCARD\r\nFN:Jane\r\nEND:VCARD\r\n"));
+    }
+
+    @Test(expected = VCardException.class)
+    public void rejectsOtherFiles() throws Exception {
+        VCardHeaderDetector.detect(new ByteArrayInputStream(
+                "not a vcard".getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private static VCardHeaderDetector detect(String version) throws Exception {
+        final String vcard = "BEGIN:VCARD\r\nVERSION:" + version + "\r\nN:Doe;Jane\r\n"
+                + "FN:Jane Doe\r\nEND:VCARD\r\n"
+                + "BEGIN:VCARD\r\nVERSION:" + version + "\r\nFN:John\r\nEND:VCARD\r\n";
+        return VCardHeaderDetector.detect(
+                new ByteArrayInputStream(vcard.getBytes(StandardCharsets.US_ASCII)));
+    }
+}